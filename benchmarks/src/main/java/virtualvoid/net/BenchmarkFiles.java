@@ -0,0 +1,37 @@
+package virtualvoid.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Creates the files StaticHttpFileHandler serves in benchmarks.
+ */
+final class BenchmarkFiles {
+    private BenchmarkFiles() {}
+
+    /**
+     * Creates a temporary directory containing an `index.html` with the given size.
+     */
+    static File directory(long size) throws IOException {
+        File root = File.createTempFile("pooling-benchmark", "");
+        if (!root.delete() || !root.mkdir())
+            throw new IOException("Couldn't create "+root);
+        root.deleteOnExit();
+
+        File file = new File(root, "index.html");
+        file.deleteOnExit();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] chunk = new byte[8192];
+            for (int i = 0; i < chunk.length; i++)
+                chunk[i] = (byte) ('a' + i % 26);
+            for (long written = 0; written < size; written += chunk.length)
+                os.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+        } finally {
+            os.close();
+        }
+        return root;
+    }
+}
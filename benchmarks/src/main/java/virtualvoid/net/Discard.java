@@ -0,0 +1,28 @@
+package virtualvoid.net;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A stream dropping everything written to it, used as the client's end for benchmarks which
+ * only measure producing responses.
+ */
+final class Discard extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+    /**
+     * Logging prints each request to System.out, which would dominate most measurements.
+     */
+    static void silenceLogging() {
+        System.setOut(new PrintStream(new Discard()));
+    }
+}
@@ -0,0 +1,104 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end throughput of a server on the loopback interface. Each request is sent over a new
+ * connection since SimplePooledWebServer doesn't keep connections open.
+ *
+ * The server runs in the benchmark's JVM with Settings as compiled, so it serves www/ from the
+ * working directory on Settings.endpoint. Each server is stopped after its iterations, but
+ * Settings are static, so each one still gets its own fork.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    private static final byte[] REQUEST =
+        "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(HttpHandler.ASCII);
+
+    @Param({"SimplePooledWebServer", "NioPooledWebServer"})
+    public String server;
+
+    private InetSocketAddress address;
+    private NioPooledWebServer nioServer;
+    private SimplePooledWebServer simpleServer;
+
+    @Setup
+    public void startServer() throws Exception {
+        Discard.silenceLogging();
+
+        if ("NioPooledWebServer".equals(server))
+            nioServer = new NioPooledWebServer();
+        else
+            simpleServer = new SimplePooledWebServer();
+        Thread thread = new Thread(server) {
+            @Override
+            public void run() {
+                try {
+                    if (nioServer != null)
+                        nioServer.run();
+                    else
+                        simpleServer.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+
+        address = new InetSocketAddress("localhost", ((InetSocketAddress) Settings.endpoint).getPort());
+        for (int i = 0; ; i++)
+            try {
+                new Socket(address.getAddress(), address.getPort()).close();
+                return;
+            } catch (IOException e) {
+                if (i == 100)
+                    throw e;
+                Thread.sleep(100);
+            }
+    }
+
+    @TearDown
+    public void stopServer() throws Exception {
+        if (nioServer != null)
+            nioServer.stop(1000);
+        else
+            simpleServer.stop(1000);
+    }
+
+    @Benchmark
+    public long request() throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            socket.getOutputStream().write(REQUEST);
+
+            InputStream is = socket.getInputStream();
+            byte[] buffer = new byte[8192];
+            long received = 0;
+            int read;
+            while ((read = is.read(buffer)) >= 0)
+                received += read;
+            return received;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package virtualvoid.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing request line and headers of a typical request, as sent by a command line client
+ * or by a browser with its many headers we aren't interested in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+    private static final String CURL =
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: localhost:8020\r\n" +
+        "User-Agent: curl/8.5.0\r\n" +
+        "Accept: */*\r\n" +
+        "\r\n";
+    private static final String BROWSER =
+        "GET /images/logo.png?v=12 HTTP/1.1\r\n" +
+        "Host: localhost:8020\r\n" +
+        "Connection: keep-alive\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n" +
+        "Accept: image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8\r\n" +
+        "Referer: http://localhost:8020/index.html\r\n" +
+        "Accept-Encoding: gzip, deflate, br\r\n" +
+        "Accept-Language: en-US,en;q=0.9,de;q=0.8\r\n" +
+        "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n" +
+        "If-None-Match: \"5d8c72a5edda8d6a\"\r\n" +
+        "\r\n";
+
+    @Param({"curl", "browser"})
+    public String request;
+
+    private final RequestParser parser = new RequestParser();
+    private ByteBuffer in;
+
+    @Setup
+    public void setup() {
+        in = ByteBuffer.wrap(("curl".equals(request) ? CURL : BROWSER).getBytes(HttpHandler.ASCII));
+    }
+
+    @Benchmark
+    public RequestParser.Status parse() {
+        in.rewind();
+        parser.reset();
+        return parser.parse(in);
+    }
+
+    /**
+     * Parsing together with decoding what a handler usually asks for.
+     */
+    @Benchmark
+    public String parseAndDecodeUri() {
+        in.rewind();
+        parser.reset();
+        parser.parse(in);
+        return parser.getRequest().getUri();
+    }
+}
@@ -0,0 +1,79 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Constructing response heads: rendering them from a Result's headers for each request
+ * compared to using the heads FileCache encodes once per file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseHeadBenchmark {
+    private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(HttpHandler.ASCII);
+
+    /**
+     * A handler answering each request with a new Result, like most handlers do.
+     */
+    private final HttpHandler rendering = new HttpHandler() {
+        @Override
+        protected Result serve(String uri) {
+            return new Result("200 OK") {
+                @Override
+                protected void addHeaders() {
+                    addResponseHeader("Content-Type", "text/html");
+                    addResponseHeader("Content-Length", "103");
+                }
+                @Override
+                protected void writeBody(OutputStream os) {
+                }
+            };
+        }
+    };
+    private StaticHttpFileHandler cached;
+    private Request request;
+
+    @Setup
+    public void setup() throws IOException {
+        Discard.silenceLogging();
+        cached = new StaticHttpFileHandler(BenchmarkFiles.directory(103));
+
+        RequestParser parser = new RequestParser();
+        parser.parse(ByteBuffer.wrap(REQUEST));
+        request = parser.getRequest();
+    }
+
+    @Benchmark
+    public String renderHead() {
+        HttpHandler.Result result = rendering.serve("/index.html");
+        result.addHeaders();
+        return HttpHandler.renderHead("1.1", result.getResultCode(), result.getHeaders(), true);
+    }
+
+    @Benchmark
+    public HttpHandler.Response respondRendered() {
+        return rendering.respond(request);
+    }
+
+    @Benchmark
+    public HttpHandler.Response respondCached() {
+        return cached.respond(request);
+    }
+}
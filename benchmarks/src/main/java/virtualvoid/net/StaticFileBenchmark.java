@@ -0,0 +1,63 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the bodies of StaticHttpFileHandler's results for small files, which are served from
+ * FileCache, and large ones, which are sent from the file. Bodies are either written to a stream,
+ * as SimplePooledWebServer does, or to a channel the way ResponseWriter and HttpConnection do.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StaticFileBenchmark {
+    @Param({"1024", "65536", "16777216"})
+    public long size;
+
+    private StaticHttpFileHandler handler;
+    private final Discard client = new Discard();
+    private final WritableByteChannel channel = Channels.newChannel(client);
+
+    @Setup
+    public void setup() throws IOException {
+        Discard.silenceLogging();
+        handler = new StaticHttpFileHandler(BenchmarkFiles.directory(size));
+    }
+
+    @Benchmark
+    public long writeBody() throws IOException {
+        handler.serve("/index.html").writeBody(client);
+        return client.count;
+    }
+
+    @Benchmark
+    public long writeToChannel() throws IOException {
+        HttpHandler.Result result = handler.serve("/index.html");
+        ByteBuffer body = result.getBodyBuffer();
+        if (body != null)
+            while (body.hasRemaining())
+                channel.write(body);
+        else {
+            FileRegion region = result.getFileRegion();
+            try {
+                region.transferTo(channel);
+            } finally {
+                region.close();
+            }
+        }
+        return client.count;
+    }
+}
@@ -0,0 +1,407 @@
+package virtualvoid.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs each response of the servers to the file Settings.accessLog, one line each:
+ *
+ *   2026-10-17T01:45:12.345Z GET /index.html HTTP/1.1 200 103 52
+ *
+ * with the time (UTC), method, URI, version, status, the length of the body in bytes ("-" if
+ * it isn't known in advance) and the microseconds the handler took. Responses the servers give
+ * without a handler, to requests they can't parse or serve or to connections they reject, are
+ * logged with "-" for the parts of the request they don't know and 0 microseconds.
+ *
+ * Logging must not slow down the threads serving requests, so they only copy the fields into
+ * an entry of a bounded ring buffer, which takes no lock and allocates nothing (unless a URI
+ * is longer than any seen before). Threads claim entries by advancing the tail with a CAS and
+ * publish them through a sequence number per entry, so that the single writer thread knows
+ * when an entry is complete. Every Settings.accessLogFlushInterval milliseconds, or as soon as
+ * the buffer is half full, the writer formats all entries into one buffer and writes them
+ * with a single call. If it falls behind anyway, entries are dropped and counted rather than
+ * making requests wait.
+ *
+ * When the file would grow beyond Settings.accessLogMaxFileSize, it is renamed to ".1" (older
+ * files to ".2" and so on, keeping Settings.accessLogFiles of them) and a new one is started.
+ * Entries still buffered when the JVM exits are lost unless `flush` (or `close`) is called before.
+ */
+final class AccessLog {
+    /**
+     * URIs are cut off after this many bytes.
+     */
+    private final static int MAX_URI_LENGTH = 2048;
+    private final static int BATCH_SIZE = 64 * 1024;
+    /**
+     * The longest line without the URI: time, method, version, status, bytes and duration.
+     */
+    private final static int MAX_LINE_LENGTH = 128;
+    private final static byte[] CONTENT_LENGTH = "\r\ncontent-length:".getBytes(HttpHandler.ASCII);
+
+    private static final class Entry {
+        long time;
+        Request.Method method;
+        byte[] uri = new byte[64];
+        int uriLength;
+        int majorVersion;
+        int minorVersion;
+        int status;
+        long bytes;
+        long micros;
+        /**
+         * Whether the entry was claimed after the log was closed and is only published so that
+         * the writer doesn't wait for it.
+         */
+        boolean skipped;
+    }
+
+    private final static AccessLog log = Settings.accessLog != null
+        ? new AccessLog(new File(Settings.accessLog), Settings.accessLogBufferSize) : null;
+    private final static AtomicLong dropped = new AtomicLong();
+
+    private final File file;
+    private final Entry[] entries;
+    /**
+     * For each entry the position in the ring it's ready for: a producer may fill it if its
+     * sequence equals the tail it claimed, the writer may take it if its sequence is one more.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The position of the next entry to write, only advanced by the writer.
+     */
+    private volatile long head = 0;
+    /**
+     * The position up to which entries were written to the file.
+     */
+    private volatile long written = 0;
+    private volatile boolean closed = false;
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long size;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.", Locale.ROOT);
+    private long formattedSecond = -1;
+    private byte[] formatted;
+
+    AccessLog(File file, int size) {
+        this.file = file;
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        entries = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        writer = new Thread("access-log") {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static boolean isEnabled() {
+        return log != null;
+    }
+    /**
+     * The number of entries dropped because the writer couldn't keep up.
+     */
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Logs a request with its response head, if the access log is enabled.
+     *
+     * @param start when the handler got the request, as given by System.nanoTime
+     */
+    static void log(Request request, ByteBuffer head, boolean onlyHeader, long start) {
+        if (log != null)
+            log.add(request, head, onlyHeader, System.nanoTime() - start);
+    }
+    /**
+     * Logs a response without body which no handler took part in, if the access log is enabled.
+     *
+     * @param request what was parsed of the request, or null if nothing was
+     */
+    static void log(Request request, ByteBuffer head) {
+        if (log != null)
+            log.add(request, head, true, 0);
+    }
+    /**
+     * @param request what was parsed of the request, or null if nothing was
+     */
+    void add(Request request, ByteBuffer head, boolean onlyHeader, long nanos) {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (sequence < position) {
+                // the writer didn't take the entry a round ago yet, so the buffer is full
+                dropped.incrementAndGet();
+                return;
+            } else
+                // another thread claimed this one
+                position = tail.get();
+        }
+
+        Entry entry = entries[(int) position & mask];
+        // `closed` is checked after claiming the entry: the writer's last round takes every
+        // entry claimed before it saw `closed`, and every later one sees it here
+        entry.skipped = closed;
+        if (entry.skipped) {
+            dropped.incrementAndGet();
+            sequences.lazySet((int) position & mask, position + 1);
+            return;
+        }
+        entry.time = System.currentTimeMillis();
+        entry.method = request != null ? request.getMethod() : null;
+        int length = request != null ? Math.min(request.uriLength, MAX_URI_LENGTH) : 0;
+        if (entry.uri.length < length)
+            entry.uri = new byte[Integer.highestOneBit(length - 1) << 1];
+        if (length > 0)
+            System.arraycopy(request.uri, 0, entry.uri, 0, length);
+        entry.uriLength = length;
+        entry.majorVersion = request != null ? request.majorVersion : 0;
+        entry.minorVersion = request != null ? request.minorVersion : 0;
+        entry.status = status(head);
+        entry.bytes = onlyHeader || entry.status == 304 ? 0 : contentLength(head);
+        entry.micros = nanos / 1000;
+        sequences.lazySet((int) position & mask, position + 1);
+
+        if (position - this.head == entries.length / 2)
+            // don't wait for the interval to pass, the buffer may overflow until then
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Makes the writer write all entries logged so far and waits for it, at most a second.
+     */
+    static void flush() {
+        if (log != null)
+            log.awaitWritten(1000);
+    }
+    /**
+     * Waits at most `timeout` milliseconds for the entries added so far to be written.
+     *
+     * @return whether they were written in time
+     */
+    boolean awaitWritten(long timeout) {
+        long until = tail.get();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (written < until) {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Writes the entries logged so far, stops the writer and closes the file. Entries logged
+     * afterwards, also by threads racing this call, are dropped and counted.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeEntries() {
+        // once closing, the entries up to the tail then are the last to be written
+        long last = -1;
+        while (true) {
+            boolean closing = closed;
+            if (closing && last < 0)
+                last = tail.get();
+            long position = head;
+            boolean failed = false;
+            try {
+                while (isReady(position)) {
+                    Entry entry = entries[(int) position & mask];
+                    if (!entry.skipped)
+                        format(entry);
+                    // the entry was copied, the producers may have it back
+                    sequences.lazySet((int) position & mask, position + entries.length);
+                    head = ++position;
+                }
+                write();
+            } catch (IOException e) {
+                System.err.println("Couldn't write access log "+file+": "+e.getMessage());
+                closeFile();
+                batch.clear();
+                failed = true;
+            }
+            written = position;
+            if (closing) {
+                if (position >= last) {
+                    closeFile();
+                    return;
+                }
+                // an entry claimed before closing isn't published yet, which won't take long
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            } else if (failed || !isReady(head))
+                // after a failure, try again with the next interval
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Settings.accessLogFlushInterval));
+        }
+    }
+    private boolean isReady(long position) {
+        return sequences.get((int) position & mask) == position + 1;
+    }
+
+    private void format(Entry entry) throws IOException {
+        if (batch.remaining() < MAX_LINE_LENGTH + entry.uriLength * 3)
+            write();
+
+        long second = entry.time / 1000;
+        if (second != formattedSecond) {
+            formatted = format.format(new Date(second * 1000)).getBytes(HttpHandler.ASCII);
+            formattedSecond = second;
+        }
+        int millis = (int) (entry.time % 1000);
+        batch.put(formatted)
+            .put((byte) ('0' + millis / 100)).put((byte) ('0' + millis / 10 % 10)).put((byte) ('0' + millis % 10))
+            .put((byte) 'Z').put((byte) ' ');
+
+        putString(entry.method != null ? entry.method.name() : "-");
+        batch.put((byte) ' ');
+        if (entry.uriLength == 0)
+            batch.put((byte) '-');
+        for (int i = 0; i < entry.uriLength; i++) {
+            byte b = entry.uri[i];
+            if (b > ' ' && b < 0x7f)
+                batch.put(b);
+            else {
+                // neither spaces nor control characters may break the line
+                batch.put((byte) '%').put(HEX[(b >> 4) & 0xf]).put(HEX[b & 0xf]);
+            }
+        }
+        if (entry.majorVersion == 0 && entry.minorVersion == 0)
+            putString(" - ");
+        else {
+            putString(" HTTP/");
+            putNumber(entry.majorVersion);
+            batch.put((byte) '.');
+            putNumber(entry.minorVersion);
+            batch.put((byte) ' ');
+        }
+        putNumber(entry.status);
+        batch.put((byte) ' ');
+        if (entry.bytes < 0)
+            batch.put((byte) '-');
+        else
+            putNumber(entry.bytes);
+        batch.put((byte) ' ');
+        putNumber(entry.micros);
+        batch.put((byte) '\n');
+    }
+    private final static byte[] HEX = "0123456789ABCDEF".getBytes(HttpHandler.ASCII);
+
+    private void putString(String text) {
+        for (int i = 0; i < text.length(); i++)
+            batch.put((byte) text.charAt(i));
+    }
+    private void putNumber(long number) {
+        if (number >= 10)
+            putNumber(number / 10);
+        batch.put((byte) ('0' + number % 10));
+    }
+
+    private void write() throws IOException {
+        batch.flip();
+        if (batch.hasRemaining()) {
+            if (channel != null && size + batch.remaining() > Settings.accessLogMaxFileSize && size > 0)
+                rotate();
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                size = channel.size();
+            }
+            while (batch.hasRemaining())
+                size += channel.write(batch);
+        }
+        batch.clear();
+    }
+    private void rotate() {
+        closeFile();
+        int files = Settings.accessLogFiles;
+        if (files > 0) {
+            new File(file.getPath() + "." + files).delete();
+            for (int i = files - 1; i > 0; i--)
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else
+            file.delete();
+    }
+    private void closeFile() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+        channel = null;
+    }
+
+    /**
+     * The status code of a response head, "HTTP/1.1 200 OK".
+     */
+    private static int status(ByteBuffer head) {
+        int start = head.position() + "HTTP/1.1 ".length();
+        int status = 0;
+        for (int i = start; i < start + 3 && i < head.limit(); i++)
+            status = status * 10 + head.get(i) - '0';
+        return status;
+    }
+    /**
+     * The value of the Content-Length header of a response head, or -1 if it has none.
+     */
+    static long contentLength(ByteBuffer head) {
+        int end = head.limit() - CONTENT_LENGTH.length;
+        outer:
+        for (int i = head.position(); i < end; i++) {
+            for (int j = 0; j < CONTENT_LENGTH.length; j++) {
+                byte b = head.get(i + j);
+                if (b >= 'A' && b <= 'Z')
+                    b += 'a' - 'A';
+                if (b != CONTENT_LENGTH[j])
+                    continue outer;
+            }
+            long length = 0;
+            int k = i + CONTENT_LENGTH.length;
+            while (k < head.limit() && head.get(k) == ' ')
+                k++;
+            for (; k < head.limit() && head.get(k) >= '0' && head.get(k) <= '9'; k++)
+                length = length * 10 + head.get(k) - '0';
+            return length;
+        }
+        return -1;
+    }
+}
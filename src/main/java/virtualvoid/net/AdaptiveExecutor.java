@@ -0,0 +1,146 @@
+package virtualvoid.net;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread pool which sizes itself following the formula from Settings: N*(1+WT/ST) threads
+ * with N being the number of CPUs and WT/ST the ratio of wait time to service time of the tasks.
+ *
+ * For each task we measure the time it took and the CPU time its thread used. The CPU time is
+ * the service time and the rest is time spent waiting (mostly for clients). At most every
+ * `resizeInterval` milliseconds, the ratio of the tasks finished since the last time gives the
+ * new target size, which is approached halfway to avoid oscillation and kept within the
+ * configured bounds. While tasks are queued the pool never shrinks.
+ *
+ * The queue is bounded: if it is full, `execute` throws a RejectedExecutionException, so servers
+ * can tell clients they are overloaded (see HttpHandler.reject) instead of letting the latency
+ * of all requests grow with an unbounded queue.
+ */
+public class AdaptiveExecutor extends ThreadPoolExecutor {
+    private final static int CPUS = Runtime.getRuntime().availableProcessors();
+    private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private volatile int minThreads;
+    private volatile int maxThreads;
+    private final long resizeInterval;
+    private final boolean measureCpu;
+
+    /**
+     * Start of the task running on the current thread: wall clock and CPU time in nanoseconds.
+     */
+    private final ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+    private final LongAdder tasks = new LongAdder();
+    private final LongAdder taskTime = new LongAdder();
+    private final LongAdder taskCpuTime = new LongAdder();
+    private final AtomicLong lastResize = new AtomicLong(System.currentTimeMillis());
+
+    public AdaptiveExecutor(int minThreads, int maxThreads, int queueSize, long resizeInterval) {
+        super(minThreads, minThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize));
+        checkBounds(minThreads, maxThreads);
+
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.resizeInterval = resizeInterval;
+
+        boolean supported = THREADS.isCurrentThreadCpuTimeSupported();
+        if (supported && !THREADS.isThreadCpuTimeEnabled())
+            THREADS.setThreadCpuTimeEnabled(true);
+        this.measureCpu = supported;
+    }
+
+    private static void checkBounds(int minThreads, int maxThreads) {
+        if (minThreads < 1 || maxThreads < minThreads)
+            throw new IllegalArgumentException("Invalid bounds "+minThreads+".."+maxThreads);
+    }
+    /**
+     * Changes the bounds of the pool while it's running. The pool is moved into the new bounds
+     * right away and adapts within them from then on.
+     */
+    public synchronized void setBounds(int minThreads, int maxThreads) {
+        checkBounds(minThreads, maxThreads);
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        resize(getMaximumPoolSize());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // resizing here, too, lets the pool grow when its tasks take too long to finish
+        maybeResize();
+        super.execute(command);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        long[] start = taskStart.get();
+        start[0] = System.nanoTime();
+        start[1] = measureCpu ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        long[] start = taskStart.get();
+        tasks.increment();
+        taskTime.add(System.nanoTime() - start[0]);
+        if (measureCpu)
+            taskCpuTime.add(THREADS.getCurrentThreadCpuTime() - start[1]);
+
+        maybeResize();
+    }
+
+    private void maybeResize() {
+        long now = System.currentTimeMillis();
+        long last = lastResize.get();
+        if (now - last < resizeInterval || !lastResize.compareAndSet(last, now))
+            return;
+
+        long finished = tasks.sumThenReset();
+        long time = taskTime.sumThenReset();
+        long cpuTime = taskCpuTime.sumThenReset();
+
+        int current = getMaximumPoolSize();
+        boolean queued = !getQueue().isEmpty();
+
+        int target;
+        if (finished > 0 && cpuTime > 0) {
+            double waitRatio = Math.max(0, time - cpuTime) / (double) cpuTime;
+            target = (int) Math.min(maxThreads, Math.ceil(CPUS * (1 + waitRatio)));
+        } else if (queued)
+            // nothing to measure but all threads are busy
+            target = current + 1;
+        else
+            target = current;
+
+        if (queued)
+            target = Math.max(target, current);
+
+        int step = (target - current) / 2;
+        resize(current + (step != 0 ? step : target - current));
+    }
+    private synchronized void resize(int size) {
+        size = Math.max(minThreads, Math.min(maxThreads, size));
+        int current = getMaximumPoolSize();
+        if (size == current)
+            return;
+
+        // the core size may never exceed the maximum
+        if (size > current) {
+            setMaximumPoolSize(size);
+            setCorePoolSize(size);
+        } else {
+            setCorePoolSize(size);
+            setMaximumPoolSize(size);
+        }
+        Logging.log(Logging.Level.INFO, "Resized pool from %d to %d threads", current, size);
+    }
+}
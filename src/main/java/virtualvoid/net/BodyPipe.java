@@ -0,0 +1,169 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A BodySource fed by a producer running on any thread, for handlers generating a body while
+ * it is sent.
+ *
+ * The pipe buffers at most `capacity` bytes (plus the last chunk offered). When it is full,
+ * `offer` refuses further chunks and the producer can either register to be called back when
+ * the client took enough (`whenDrained`), or use `write`, which blocks. Either way a producer
+ * can't outrun the client. The producer has to `finish` the body, or `fail` it to make the
+ * server abort the connection. If the connection fails first, offering chunks throws.
+ */
+public final class BodyPipe extends BodySource {
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+    private int buffered = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException failure;
+    private Runnable available;
+    private Runnable drained;
+
+    public BodyPipe(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a chunk to the body unless the pipe is full. The pipe takes over the buffer.
+     *
+     * @return whether the chunk was taken
+     */
+    public boolean offer(ByteBuffer chunk) throws IOException {
+        Runnable callback;
+        synchronized (this) {
+            if (closed)
+                throw new IOException("The response was aborted");
+            if (finished)
+                throw new IllegalStateException("The body was finished already");
+            if (buffered >= capacity)
+                return false;
+
+            chunks.add(chunk);
+            buffered += chunk.remaining();
+            callback = takeAvailable();
+        }
+        run(callback);
+        return true;
+    }
+    /**
+     * Adds a chunk to the body, waiting as long as the pipe is full.
+     */
+    public void write(ByteBuffer chunk) throws IOException, InterruptedException {
+        synchronized (this) {
+            while (buffered >= capacity && !closed)
+                wait();
+        }
+        if (!offer(chunk))
+            // only the producer adds chunks, so there must be space now
+            throw new IllegalStateException("Concurrent producers");
+    }
+    /**
+     * Runs the callback once as soon as the pipe takes chunks again (or was closed).
+     */
+    public void whenDrained(Runnable callback) {
+        synchronized (this) {
+            if (buffered >= capacity && !closed) {
+                drained = callback;
+                return;
+            }
+        }
+        callback.run();
+    }
+    /**
+     * Marks the end of the body.
+     */
+    public void finish() {
+        Runnable callback;
+        synchronized (this) {
+            finished = true;
+            callback = takeAvailable();
+        }
+        run(callback);
+    }
+    /**
+     * Aborts the body, the server closes the connection after what was offered before.
+     */
+    public void fail(IOException cause) {
+        Runnable callback;
+        synchronized (this) {
+            failure = cause;
+            callback = takeAvailable();
+        }
+        run(callback);
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        int read = 0;
+        Runnable callback = null;
+        synchronized (this) {
+            while (target.hasRemaining() && !chunks.isEmpty()) {
+                ByteBuffer chunk = chunks.peek();
+                int length = Math.min(chunk.remaining(), target.remaining());
+                ByteBuffer part = chunk.duplicate();
+                part.limit(part.position() + length);
+                target.put(part);
+                chunk.position(chunk.position() + length);
+                if (!chunk.hasRemaining())
+                    chunks.poll();
+                read += length;
+            }
+            buffered -= read;
+
+            if (read == 0) {
+                if (failure != null)
+                    throw failure;
+                if (finished)
+                    return -1;
+            }
+            if (buffered < capacity) {
+                callback = drained;
+                drained = null;
+                notifyAll();
+            }
+        }
+        run(callback);
+        return read;
+    }
+    @Override
+    public void whenAvailable(Runnable callback) {
+        synchronized (this) {
+            if (chunks.isEmpty() && !finished && failure == null) {
+                available = callback;
+                return;
+            }
+        }
+        callback.run();
+    }
+    @Override
+    public void close() {
+        Runnable callback;
+        synchronized (this) {
+            closed = true;
+            chunks.clear();
+            buffered = 0;
+            callback = drained;
+            drained = null;
+            notifyAll();
+        }
+        run(callback);
+    }
+
+    private Runnable takeAvailable() {
+        Runnable callback = available;
+        available = null;
+        return callback;
+    }
+    /**
+     * Callbacks are run outside of the lock, they may well call back into the pipe.
+     */
+    private static void run(Runnable callback) {
+        if (callback != null)
+            callback.run();
+    }
+}
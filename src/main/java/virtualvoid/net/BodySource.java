@@ -0,0 +1,107 @@
+package virtualvoid.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The body of a response produced piece by piece, for bodies which are too large to be kept in
+ * memory or are generated while they are sent (see HttpHandler.Result.getBodySource).
+ *
+ * Servers pull the body from the source whenever the client is ready to take more, so a slow
+ * client slows down the producer instead of letting the body pile up in memory. A source may
+ * have nothing to give for a while: then `read` returns 0 and the server asks to be called back
+ * when there is more. The NonBlockingWebServer doesn't use a thread at all in the meantime,
+ * blocking servers wait for the callback.
+ *
+ * Bodies of unknown length are sent with chunked transfer encoding to HTTP/1.1 clients and
+ * delimited by closing the connection for HTTP/1.0 clients. A source is closed by the server when
+ * it was sent completely or the connection failed.
+ */
+public abstract class BodySource implements Closeable {
+    /**
+     * The length of the body or -1 if it isn't known in advance, which is the default. Sources
+     * producing more or less than they announced make the server close the connection.
+     */
+    public long getLength() {
+        return -1;
+    }
+
+    /**
+     * Transfers the next bytes of the body into the target buffer.
+     *
+     * @return the number of bytes transferred, 0 if nothing is available right now, or -1 if
+     *         the body is complete
+     */
+    public abstract int read(ByteBuffer target) throws IOException;
+
+    /**
+     * Called after `read` returned 0: the source has to run the callback once, from any thread,
+     * as soon as `read` would return something else. The callback mustn't be run before this
+     * call. By default it is run right away, which suffices for sources never returning 0.
+     */
+    public void whenAvailable(Runnable callback) {
+        callback.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // nothing to release by default
+    }
+
+    /**
+     * Copies the rest of the body to a stream through a pooled buffer, waiting for the source
+     * whenever it has nothing available. What was written so far is flushed before waiting, so
+     * that the client gets the body as it is produced.
+     */
+    public void transferTo(OutputStream os) throws IOException {
+        long length = getLength();
+        long transferred = 0;
+        ByteBuffer buffer = BufferPool.HEAP.acquire(BufferPool.MAX_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                int read = read(buffer);
+                if (read < 0)
+                    break;
+                else if (read == 0) {
+                    os.flush();
+                    await();
+                    continue;
+                }
+
+                transferred += read;
+                if (length >= 0 && transferred > length)
+                    throw new IOException("Body source produced more than "+length+" bytes");
+                os.write(buffer.array(), 0, buffer.position());
+            }
+        } finally {
+            BufferPool.HEAP.release(buffer);
+        }
+        if (length >= 0 && transferred != length)
+            throw new IOException("Body source produced "+transferred+" instead of "+length+" bytes");
+    }
+    /**
+     * Blocks until the source calls back. A source stalling for longer than a client may is
+     * given up.
+     */
+    private void await() throws IOException {
+        final CountDownLatch available = new CountDownLatch(1);
+        whenAvailable(new Runnable() {
+            @Override
+            public void run() {
+                available.countDown();
+            }
+        });
+        try {
+            if (!available.await(Settings.keepAliveTimeout, TimeUnit.MILLISECONDS))
+                throw new IOException("Body source stalled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for body source");
+        }
+    }
+}
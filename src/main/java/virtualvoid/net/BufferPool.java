@@ -0,0 +1,242 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of buffers for socket I/O, so that connections don't allocate new buffers for reading
+ * requests and copying bodies.
+ *
+ * Buffers come in size classes from 4KiB to 64KiB, a request is served with a buffer of the
+ * smallest class at least as large (larger requests aren't pooled). Each thread keeps a few
+ * released buffers of each class for itself, which makes acquiring and releasing on the same
+ * thread (like a selector loop or a pool thread does) free of any synchronization. Further
+ * buffers go to a shared queue per class, bounded by Settings.bufferPoolSize. Virtual threads
+ * only use the shared queues since they are too many and too short-lived to cache anything.
+ *
+ * DIRECT buffers are for channels, which otherwise copy heap buffers into temporary direct
+ * ones. HEAP buffers are for streams, which need arrays.
+ *
+ * A buffer must not be used after it was released. With Settings.bufferPoolDebug, buffers
+ * which are garbage collected without having been released are reported with the stack trace
+ * of where they were acquired.
+ */
+final class BufferPool {
+    static final BufferPool DIRECT = new BufferPool(true);
+    static final BufferPool HEAP = new BufferPool(false);
+
+    private final static int MIN_SIZE_BITS = 12;
+    private final static int CLASSES = 5;
+    final static int MAX_SIZE = 1 << (MIN_SIZE_BITS + CLASSES - 1);
+    private final static int THREAD_CACHE_SIZE = 4;
+
+    private final boolean direct;
+    private final List<Queue<ByteBuffer>> shared = new ArrayList<Queue<ByteBuffer>>();
+    private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+    private final ThreadLocal<ByteBuffer[][]> threadCaches = new ThreadLocal<ByteBuffer[][]>() {
+        @Override
+        protected ByteBuffer[][] initialValue() {
+            return new ByteBuffer[CLASSES][THREAD_CACHE_SIZE];
+        }
+    };
+
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        for (int i = 0; i < CLASSES; i++) {
+            shared.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity.
+     */
+    ByteBuffer acquire(int size) {
+        Metrics.increment(Metrics.Counter.BUFFERS_ACQUIRED);
+        ByteBuffer buffer = size <= MAX_SIZE ? take(classOf(size)) : null;
+        if (buffer == null) {
+            Metrics.increment(Metrics.Counter.BUFFERS_ALLOCATED);
+            int capacity = size <= MAX_SIZE ? 1 << (MIN_SIZE_BITS + classOf(size)) : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        } else
+            buffer.clear();
+
+        if (Settings.bufferPoolDebug)
+            track(buffer);
+        return buffer;
+    }
+    /**
+     * Gives a buffer back to the pool.
+     */
+    void release(ByteBuffer buffer) {
+        Metrics.increment(Metrics.Counter.BUFFERS_RELEASED);
+        if (Settings.bufferPoolDebug)
+            untrack(buffer);
+
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_SIZE_BITS
+                || buffer.isDirect() != direct)
+            return;
+
+        int sizeClass = classOf(capacity);
+        if (!isVirtual(Thread.currentThread())) {
+            ByteBuffer[] cache = threadCaches.get()[sizeClass];
+            for (int i = 0; i < cache.length; i++)
+                if (cache[i] == null) {
+                    cache[i] = buffer;
+                    return;
+                }
+        }
+
+        int maxShared = (int) (Settings.bufferPoolSize / CLASSES / capacity);
+        if (sharedCounts[sizeClass].incrementAndGet() <= maxShared)
+            shared.get(sizeClass).offer(buffer);
+        else
+            sharedCounts[sizeClass].decrementAndGet();
+    }
+
+    private ByteBuffer take(int sizeClass) {
+        if (!isVirtual(Thread.currentThread())) {
+            ByteBuffer[] cache = threadCaches.get()[sizeClass];
+            for (int i = cache.length - 1; i >= 0; i--)
+                if (cache[i] != null) {
+                    ByteBuffer buffer = cache[i];
+                    cache[i] = null;
+                    return buffer;
+                }
+        }
+
+        ByteBuffer buffer = shared.get(sizeClass).poll();
+        if (buffer != null)
+            sharedCounts[sizeClass].decrementAndGet();
+        return buffer;
+    }
+    private static int classOf(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(0, bits - MIN_SIZE_BITS);
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to a stream without allocating, through a pooled
+     * array if the buffer doesn't have one.
+     */
+    static void write(ByteBuffer buffer, OutputStream os) throws IOException {
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        ByteBuffer chunk = HEAP.acquire(Math.min(buffer.remaining(), MAX_SIZE));
+        try {
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), chunk.capacity());
+                buffer.get(chunk.array(), 0, length);
+                os.write(chunk.array(), 0, length);
+            }
+        } finally {
+            HEAP.release(chunk);
+        }
+    }
+
+    /**
+     * Thread.isVirtual, resolved once: invoking a constant MethodHandle is compiled to a plain
+     * call, unlike invoking a reflective Method, which matters on every acquire and release.
+     */
+    private final static MethodHandle IS_VIRTUAL = isVirtualHandle();
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, there are no virtual threads
+            return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Thread.class);
+        }
+    }
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            // Thread.isVirtual doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A buffer handed out while debugging, which is enqueued when the buffer was collected.
+     */
+    private static final class Acquisition extends WeakReference<ByteBuffer> {
+        final int identity;
+        final Throwable acquiredAt = new Throwable("Buffer acquired here");
+
+        Acquisition(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.identity = System.identityHashCode(buffer);
+        }
+    }
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    /**
+     * The buffers handed out and not yet released, by identity hash code
+     */
+    private final Map<Integer, List<Acquisition>> outstanding = new HashMap<Integer, List<Acquisition>>();
+
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+
+        Acquisition acquisition = new Acquisition(buffer, collected);
+        synchronized (outstanding) {
+            List<Acquisition> acquisitions = outstanding.get(acquisition.identity);
+            if (acquisitions == null)
+                outstanding.put(acquisition.identity, acquisitions = new ArrayList<Acquisition>(1));
+            acquisitions.add(acquisition);
+        }
+    }
+    private void untrack(ByteBuffer buffer) {
+        int identity = System.identityHashCode(buffer);
+        synchronized (outstanding) {
+            List<Acquisition> acquisitions = outstanding.get(identity);
+            if (acquisitions != null)
+                for (Iterator<Acquisition> it = acquisitions.iterator(); it.hasNext();) {
+                    Acquisition acquisition = it.next();
+                    if (acquisition.get() == buffer) {
+                        acquisition.clear();
+                        it.remove();
+                        if (acquisitions.isEmpty())
+                            outstanding.remove(identity);
+                        return;
+                    }
+                }
+        }
+        throw new IllegalStateException("Released a buffer which wasn't acquired or was released before");
+    }
+    private void reportLeaks() {
+        Acquisition leaked;
+        while ((leaked = (Acquisition) collected.poll()) != null) {
+            boolean unreleased;
+            synchronized (outstanding) {
+                List<Acquisition> acquisitions = outstanding.get(leaked.identity);
+                unreleased = acquisitions != null && acquisitions.remove(leaked);
+                if (acquisitions != null && acquisitions.isEmpty())
+                    outstanding.remove(leaked.identity);
+            }
+            if (unreleased) {
+                Metrics.increment(Metrics.Counter.BUFFERS_LEAKED);
+                System.err.println("A pooled buffer was garbage collected without being released");
+                leaked.acquiredAt.printStackTrace(System.err);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package virtualvoid.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Frames everything written to it as chunks of the chunked transfer encoding (RFC 7230,
+ * section 4.1). `finish` sends the last chunk, the underlying stream is never closed.
+ *
+ * Given the channel of an unbuffered stream (like a socket's), each chunk is sent with a single
+ * gathering write of its header, data and CRLF instead of three writes to the stream.
+ */
+final class ChunkedOutputStream extends FilterOutputStream {
+    final static byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(HttpHandler.ASCII);
+    final static byte[] CRLF = { '\r', '\n' };
+    /**
+     * The space a chunk header can take: 8 hex digits for int lengths and CRLF.
+     */
+    final static int MAX_HEADER_LENGTH = 10;
+
+    private final byte[] header = new byte[MAX_HEADER_LENGTH];
+    private final GatheringByteChannel channel;
+    /**
+     * Header, data and CRLF of the chunk written to the channel.
+     */
+    private final ByteBuffer[] frame = { ByteBuffer.wrap(header), null, ByteBuffer.wrap(CRLF) };
+
+    ChunkedOutputStream(OutputStream out) {
+        this(out, null);
+    }
+    /**
+     * @param channel the channel `out` writes to or null
+     */
+    ChunkedOutputStream(OutputStream out, GatheringByteChannel channel) {
+        super(out);
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            // an empty chunk would end the body
+            return;
+
+        int start = header(length, header, header.length);
+        if (channel != null) {
+            frame[0].limit(header.length).position(start);
+            frame[1] = ByteBuffer.wrap(bytes, offset, length);
+            frame[2].clear();
+            while (HttpHandler.hasRemaining(frame))
+                channel.write(frame);
+        } else {
+            out.write(header, start, header.length - start);
+            out.write(bytes, offset, length);
+            out.write(CRLF);
+        }
+    }
+    void finish() throws IOException {
+        out.write(LAST_CHUNK);
+    }
+
+    /**
+     * Renders the header of a chunk with the given length into `target`, ending right before
+     * `end`.
+     *
+     * @return where the header starts
+     */
+    static int header(int length, byte[] target, int end) {
+        int i = end;
+        target[--i] = '\n';
+        target[--i] = '\r';
+        do {
+            target[--i] = (byte) Character.forDigit(length & 0xf, 16);
+            length >>>= 4;
+        } while (length != 0);
+        return i;
+    }
+}
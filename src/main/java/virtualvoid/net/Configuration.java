@@ -0,0 +1,257 @@
+package virtualvoid.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Loads the Settings from a properties file and system properties, and applies changes to the
+ * file while the servers are running.
+ *
+ * The file is given by the system property "server.config" and defaults to "server.properties"
+ * in the working directory, it doesn't have to exist. Its keys are the names of the fields of
+ * Settings, system properties named "server." followed by the field name win over the file.
+ * Values are parsed by the type of the field: numbers, "true" or "false", the names of enum
+ * constants (in any case) and strings, where an empty string stands for null. Unknown keys are
+ * reported and ignored. Values which can't be parsed or are out of the bounds of their setting
+ * (see Settings.Min and Settings.AtMost) are reported, too, and make us keep all previous values:
+ * applying the valid part of a broken file could leave settings which only make sense together,
+ * like the bounds of a pool, half changed.
+ *
+ * Every Settings.reloadInterval milliseconds a background thread looks at the modification
+ * time of the file. When it changed, the file is read again and the Reloadable settings are
+ * updated, settings removed from the file go back to their defaults. Changes to other settings
+ * are reported to need a restart. Components which derived state from settings, like the bounds
+ * of a pool, register a listener to be told after each reload.
+ */
+final class Configuration {
+    static final String FILE = System.getProperty("server.config", "server.properties");
+    private static final String PREFIX = "server.";
+
+    /**
+     * The configurable fields of Settings with their values before anything was overridden.
+     */
+    private static final Map<Field, Object> defaults = new LinkedHashMap<Field, Object>();
+    private static final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+    private static long lastModified;
+
+    private Configuration() {}
+
+    /**
+     * Registers a listener to be run after the settings were reloaded.
+     */
+    static void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+    static void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Overrides the defaults of all settings. Called once while Settings is initialized, so
+     * this mustn't use anything depending on the outcome.
+     */
+    static void load() {
+        for (Field field: Settings.class.getFields())
+            if (isConfigurable(field))
+                defaults.put(field, get(field));
+
+        File file = new File(FILE);
+        lastModified = file.lastModified();
+        apply(read(file), true);
+
+        if (Settings.reloadInterval > 0) {
+            Thread watcher = new Thread("configuration") {
+                @Override
+                public void run() {
+                    watch(new File(FILE));
+                }
+            };
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+    private static void watch(File file) {
+        try {
+            while (true) {
+                Thread.sleep(Settings.reloadInterval);
+                long modified = file.lastModified();
+                if (modified != lastModified) {
+                    lastModified = modified;
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop watching
+        }
+    }
+
+    /**
+     * Reads the file again, updates the Reloadable settings and tells the listeners.
+     */
+    static synchronized void reload() {
+        Logging.log(Logging.Level.INFO, "Reloading settings from %s", FILE);
+        if (!apply(read(new File(FILE)), false))
+            return;
+        for (Runnable listener: listeners)
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                System.err.println("Couldn't apply settings: "+e.getMessage());
+            }
+    }
+
+    private static Properties read(File file) {
+        Properties properties = new Properties();
+        if (!file.exists())
+            return properties;
+
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't read settings from "+file+": "+e.getMessage());
+        }
+        return properties;
+    }
+
+    /**
+     * Applies the properties, overridden by system properties, to the settings if they are all
+     * valid. Settings without a value go back to their defaults.
+     *
+     * @param initial whether the settings are loaded at startup, otherwise only Reloadable
+     *     settings are changed
+     * @return whether the properties were applied
+     */
+    static boolean apply(Properties properties, boolean initial) {
+        for (String key: properties.stringPropertyNames())
+            if (field(key) == null)
+                System.err.println("Unknown setting "+key+" in "+FILE);
+
+        Map<Field, Object> changes = new LinkedHashMap<Field, Object>();
+        boolean valid = true;
+        for (Map.Entry<Field, Object> entry: defaults.entrySet()) {
+            Field field = entry.getKey();
+            String name = field.getName();
+            String value = System.getProperty(PREFIX + name, properties.getProperty(name));
+
+            Object parsed;
+            try {
+                parsed = value != null ? parse(field.getType(), value.trim()) : entry.getValue();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid value '"+value+"' for setting "+name+": "+e.getMessage());
+                valid = false;
+                continue;
+            }
+
+            Object current = get(field);
+            if (parsed == null ? current == null : parsed.equals(current))
+                continue;
+            if (initial || field.isAnnotationPresent(Settings.Reloadable.class))
+                changes.put(field, parsed);
+            else
+                System.err.println("Setting "+name+" only changes with a restart, keeping "+current);
+        }
+
+        for (String problem: validate(changes)) {
+            System.err.println("Invalid settings: "+problem);
+            valid = false;
+        }
+        if (!valid) {
+            System.err.println("Keeping the previous settings");
+            return false;
+        }
+
+        for (Map.Entry<Field, Object> change: changes.entrySet()) {
+            Field field = change.getKey();
+            Object current = get(field);
+            set(field, change.getValue());
+            if (!initial)
+                Logging.log(Logging.Level.INFO, "Changed setting %s from %s to %s", field.getName(), current, change.getValue());
+        }
+        return true;
+    }
+    /**
+     * Checks the settings as they would be with the given changes against their bounds.
+     *
+     * @return a description of each violation
+     */
+    private static List<String> validate(Map<Field, Object> changes) {
+        List<String> problems = new ArrayList<String>();
+        for (Field field: defaults.keySet()) {
+            Settings.Min min = field.getAnnotation(Settings.Min.class);
+            if (min != null && value(field, changes) < min.value())
+                problems.add(field.getName()+" is "+value(field, changes)+" but must be at least "+min.value());
+
+            Settings.AtMost atMost = field.getAnnotation(Settings.AtMost.class);
+            Field limit = atMost != null ? field(atMost.value()) : null;
+            if (limit != null && value(field, changes) > value(limit, changes))
+                problems.add(field.getName()+" is "+value(field, changes)+" but must be at most "
+                    +limit.getName()+" ("+value(limit, changes)+")");
+        }
+        return problems;
+    }
+    private static long value(Field field, Map<Field, Object> changes) {
+        return ((Number) (changes.containsKey(field) ? changes.get(field) : get(field))).longValue();
+    }
+
+    private static boolean isConfigurable(Field field) {
+        int modifiers = field.getModifiers();
+        Class<?> type = field.getType();
+        return Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)
+            && (type.isPrimitive() || type == String.class || type.isEnum());
+    }
+    private static Field field(String name) {
+        for (Field field: defaults.keySet())
+            if (field.getName().equals(name))
+                return field;
+        return null;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Object parse(Class<?> type, String value) {
+        if (type == int.class)
+            return Integer.valueOf(value);
+        else if (type == long.class)
+            return Long.valueOf(value);
+        else if (type == boolean.class) {
+            if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+                throw new IllegalArgumentException("Expected true or false");
+            return Boolean.valueOf(value);
+        } else if (type.isEnum())
+            return Enum.valueOf((Class<? extends Enum>) type, value.toUpperCase(Locale.ROOT));
+        else if (type == String.class)
+            return value.isEmpty() ? null : value;
+        else
+            throw new IllegalArgumentException("Unsupported type "+type);
+    }
+
+    private static Object get(Field field) {
+        try {
+            return field.get(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    private static void set(Field field, Object value) {
+        try {
+            field.set(null, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
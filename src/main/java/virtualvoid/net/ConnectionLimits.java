@@ -0,0 +1,103 @@
+package virtualvoid.net;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Bounds the connections a server keeps open, so that a load spike makes it turn clients away
+ * early instead of taking on more work than it can do in time.
+ *
+ * With Settings.maxConnections open, the server stops accepting until some of them are closed.
+ * Connections arriving meanwhile wait in the backlog of the server socket (Settings.acceptBacklog)
+ * and when that is full, the operating system refuses them, which costs us nothing at all.
+ * A single client address may hold at most Settings.maxConnectionsPerAddress connections,
+ * further ones are accepted only to get the prerendered 503 (see HttpHandler.reject), so one
+ * client can't take all connections from the others.
+ *
+ * Both limits are Reloadable, so each connection is counted for its address even while the
+ * per-address limit is disabled.
+ */
+final class ConnectionLimits {
+    private static final BiFunction<InetAddress, Integer, Integer> INCREMENT = new BiFunction<InetAddress, Integer, Integer>() {
+        @Override
+        public Integer apply(InetAddress address, Integer count) {
+            return count == null ? 1 : count + 1;
+        }
+    };
+    private static final BiFunction<InetAddress, Integer, Integer> DECREMENT = new BiFunction<InetAddress, Integer, Integer>() {
+        @Override
+        public Integer apply(InetAddress address, Integer count) {
+            // removing the entry of the last connection keeps the map from growing with every client ever seen
+            return count == null || count <= 1 ? null : count - 1;
+        }
+    };
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<InetAddress, Integer>();
+    private final AtomicBoolean paused = new AtomicBoolean();
+
+    /**
+     * Counts a new connection from the given address, which may be null if it's unknown.
+     *
+     * @return false if the address already has too many connections, then it wasn't counted
+     */
+    boolean acquire(InetAddress address) {
+        if (address != null) {
+            int count = perAddress.compute(address, INCREMENT);
+            int limit = Settings.maxConnectionsPerAddress;
+            if (limit > 0 && count > limit) {
+                perAddress.computeIfPresent(address, DECREMENT);
+                return false;
+            }
+        }
+        open.incrementAndGet();
+        return true;
+    }
+    /**
+     * Counts a connection acquired before as closed.
+     */
+    void release(InetAddress address) {
+        if (address != null)
+            perAddress.computeIfPresent(address, DECREMENT);
+        open.decrementAndGet();
+        if (paused.get())
+            synchronized (this) {
+                notifyAll();
+            }
+    }
+
+    /**
+     * Whether the server may accept further connections. Called by the accepting threads, which
+     * pause while this is false.
+     */
+    boolean mayAccept() {
+        boolean may = open.get() < Settings.maxConnections;
+        if (!may && paused.compareAndSet(false, true)) {
+            Metrics.increment(Metrics.Counter.ACCEPT_PAUSES);
+            Logging.log(Logging.Level.WARN, "%d connections open, pausing to accept", open.get());
+        } else if (may && paused.compareAndSet(true, false))
+            Logging.log(Logging.Level.INFO, "Accepting connections again");
+        return may;
+    }
+    /**
+     * Blocks until the server may accept further connections.
+     */
+    synchronized void awaitCapacity() throws InterruptedException {
+        // `release` only notifies if it sees us paused, the timeout covers the limit being
+        // raised by a reload, too
+        while (!mayAccept())
+            wait(Settings.timeoutTick);
+    }
+
+    int getOpen() {
+        return open.get();
+    }
+    int getOpen(InetAddress address) {
+        Integer count = perAddress.get(address);
+        return count != null ? count : 0;
+    }
+}
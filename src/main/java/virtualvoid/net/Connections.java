@@ -0,0 +1,119 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open connections of one of the blocking servers, so that it can be stopped gracefully.
+ * Once the server is stopping, responses ask the clients to close their connections and
+ * connections idly waiting for their next request are closed right away, while connections in
+ * the middle of a request are finished first.
+ *
+ * A connection marks itself idle before it waits for the next request and busy as soon as
+ * something arrives. Closing an idle connection may race with a request just being sent, but
+ * clients have to expect persistent connections to be closed at any time and retry.
+ *
+ * The connections are counted against the ConnectionLimits of the server, too.
+ */
+final class Connections {
+    final class Connection {
+        final Socket socket;
+        private final InetAddress address;
+        private volatile boolean idle = false;
+
+        Connection(Socket socket, InetAddress address) {
+            this.socket = socket;
+            this.address = address;
+        }
+
+        boolean mayKeepAlive() {
+            return !stopping;
+        }
+        /**
+         * Marks the connection as waiting for its next request.
+         *
+         * @return false if the server is stopping, then the connection should be closed instead
+         */
+        boolean idle() {
+            idle = true;
+            // `stop` sets the flag before it looks for idle connections, so either it sees us
+            // or we see the flag
+            if (stopping) {
+                idle = false;
+                return false;
+            }
+            return true;
+        }
+        void busy() {
+            idle = false;
+        }
+        /**
+         * Called when the connection was closed, more than once doesn't hurt.
+         */
+        void closed() {
+            if (open.remove(this))
+                limits.release(address);
+        }
+    }
+
+    private final Set<Connection> open = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final ConnectionLimits limits = new ConnectionLimits();
+    private volatile boolean stopping = false;
+
+    /**
+     * Registers a newly accepted connection.
+     *
+     * @return null if its client has too many connections already, it should be rejected then
+     */
+    Connection open(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        if (!limits.acquire(address))
+            return null;
+        Connection connection = new Connection(socket, address);
+        open.add(connection);
+        return connection;
+    }
+    /**
+     * Blocks until the server may accept another connection (see ConnectionLimits).
+     */
+    void awaitCapacity() throws InterruptedException {
+        limits.awaitCapacity();
+    }
+    /**
+     * Whether the server may accept another connection right now.
+     */
+    boolean mayAccept() {
+        return limits.mayAccept();
+    }
+
+    boolean isStopping() {
+        return stopping;
+    }
+    /**
+     * Stops keeping connections alive and closes the idle ones.
+     */
+    void stop() {
+        stopping = true;
+        for (Connection connection: open)
+            if (connection.idle)
+                close(connection.socket);
+    }
+    /**
+     * Closes all connections, for when they didn't finish in time.
+     */
+    void closeAll() {
+        for (Connection connection: open)
+            close(connection.socket);
+    }
+    static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package virtualvoid.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import virtualvoid.net.HttpHandler.Result;
+
+/**
+ * Keeps the complete responses for hot files in memory: the contents in a direct buffer
+ * and the response heads for all combinations of HTTP version and keep-alive already
+ * encoded. Serving a cached file thus neither touches the file system nor renders any
+ * headers, and servers with a channel to the client send head and body with a single
+ * gathering write.
+ *
+ * The cache is bounded by the total size of the cached files, when it's full the least
+ * recently used files are dropped. An entry is checked against the file's length and
+ * modification time at most every Settings.fileCacheRevalidateInterval milliseconds and
+ * dropped if the file changed or vanished.
+ *
+ * Files are cached by their normalized path (see PathResolver.normalize) rather than by the
+ * URI, so that query strings like "?v=123" don't make each variant of a URI load the file again
+ * and push hot files out of the cache.
+ *
+ * A path whose response depends on the encodings the client accepts has one entry per encoding
+ * it is served in (identity or a compressed copy), and remembers for each combination of
+ * Request.Encoding bits which of them the clients accepting it get. Clients which fall back to the
+ * same encoding share its entry, so a file takes its space only once for each encoding. Paths
+ * whose response doesn't vary have a single entry for all clients.
+ */
+final class FileCache {
+    private static final String[] VERSIONS = { "1.0", "1.1" };
+
+    private static final int VARIANTS = 1 << Request.Encoding.values().length;
+    /**
+     * Identity and each Request.Encoding.
+     */
+    private static final int ENCODINGS = Request.Encoding.values().length + 1;
+
+    private static final class Entry {
+        final File file;
+        /**
+         * The length of the file, the contents may be a compressed copy of it
+         */
+        final long length;
+        final long lastModified;
+        final ByteBuffer contents;
+        final String headers;
+        final String etag;
+        /**
+         * The encoded heads indexed by `headIndex`
+         */
+        final ByteBuffer[] heads = new ByteBuffer[4];
+        volatile long lastValidated;
+
+        Entry(File file, long length, long lastModified, ByteBuffer contents, String headers, long now) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contents = contents;
+            this.headers = headers;
+            this.etag = Preconditions.headerValue(headers, "ETag");
+            this.lastValidated = now;
+
+            for (String version: VERSIONS)
+                for (boolean keepAlive: new boolean[] { false, true })
+                    heads[headIndex(version, keepAlive)] = encode(HttpHandler.renderHead(version, "200 OK", headers, keepAlive));
+        }
+
+        long size() {
+            return contents.capacity();
+        }
+
+        private static int headIndex(String version, boolean keepAlive) {
+            return ("1.1".equals(version) ? 2 : 0) + (keepAlive ? 1 : 0);
+        }
+        private static ByteBuffer encode(String head) {
+            byte[] bytes = head.getBytes(HttpHandler.ASCII);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes).flip();
+            return buffer.asReadOnlyBuffer();
+        }
+
+        Result toResult() {
+            return new Result("200 OK") {
+                @Override
+                protected ByteBuffer getEncodedHead(String version, boolean keepAlive) {
+                    return heads[headIndex(version, keepAlive)].duplicate();
+                }
+                @Override
+                protected ByteBuffer getBodyBuffer() {
+                    return contents.duplicate();
+                }
+                @Override
+                protected void writeBody(OutputStream os) throws IOException {
+                    BufferPool.write(contents.duplicate(), os);
+                }
+                @Override
+                protected String getETag() {
+                    return etag;
+                }
+                @Override
+                protected long getLastModified() {
+                    return lastModified;
+                }
+                @Override
+                protected void addHeaders() {
+                    // only needed for versions we haven't prepared a head for and 304 or 206 responses
+                    addResponseHeaders(headers);
+                }
+            };
+        }
+    }
+
+    private volatile long capacity;
+    private volatile long maxFileSize;
+    /**
+     * The entries of a path, indexed by their encoding (see `index`).
+     */
+    private static final class Variants {
+        final boolean varies;
+        final Entry[] entries = new Entry[ENCODINGS];
+        /**
+         * If the response varies: for each combination of accepted encodings, the index of the
+         * entry served to it plus one, 0 if it isn't known yet.
+         */
+        final byte[] served = new byte[VARIANTS];
+
+        Variants(boolean varies) {
+            this.varies = varies;
+        }
+        Entry get(int accepted) {
+            int index = varies ? served[accepted & (VARIANTS - 1)] - 1 : 0;
+            return index >= 0 ? entries[index] : null;
+        }
+        /**
+         * Makes the clients accepting the given encodings get the entry at `index`.
+         */
+        void serve(int accepted, int index) {
+            if (varies)
+                served[accepted & (VARIANTS - 1)] = (byte) (index + 1);
+        }
+        long size() {
+            long size = 0;
+            for (Entry entry: entries)
+                if (entry != null)
+                    size += entry.size();
+            return size;
+        }
+    }
+
+    private final LinkedHashMap<String, Variants> entries = new LinkedHashMap<String, Variants>(16, 0.75f, true);
+    private long size = 0;
+
+    FileCache(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = maxFileSize;
+    }
+    /**
+     * Changes the bounds of the cache, evicting files if it shrinks. A capacity of 0 disables
+     * the cache.
+     */
+    synchronized void setLimits(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = maxFileSize;
+        evict();
+    }
+
+    /**
+     * Returns the cached result for a normalized path or null if there is no valid entry.
+     *
+     * @param accepted the Request.Encoding bits of the encodings the client accepts
+     */
+    Result get(String path, int accepted) {
+        if (capacity == 0)
+            return null;
+
+        Variants variants;
+        Entry entry;
+        synchronized (this) {
+            variants = entries.get(path);
+            entry = variants != null ? variants.get(accepted) : null;
+        }
+        if (entry == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+        if (now - entry.lastValidated >= Settings.fileCacheRevalidateInterval) {
+            if (entry.file.lastModified() != entry.lastModified || entry.file.length() != entry.length) {
+                remove(path, variants, entry);
+                return null;
+            }
+            entry.lastValidated = now;
+        }
+        return entry.toResult();
+    }
+
+    /**
+     * Whether contents of the given size may be cached at all.
+     */
+    boolean fits(long size) {
+        return capacity > 0 && size <= maxFileSize && size <= capacity;
+    }
+
+    /**
+     * Loads a file into the cache and returns a result for it or null if the file isn't
+     * eligible for caching.
+     *
+     * @param varies whether the response for this path depends on the accepted encodings
+     * @param encoding the encoding of the file (like a precompressed sibling) or null for identity
+     * @param headers the response headers to send with the file
+     */
+    Result put(String path, int accepted, boolean varies, Request.Encoding encoding, File file, long length, String headers) throws IOException {
+        if (!fits(length))
+            return null;
+
+        long lastModified = file.lastModified();
+        Result shared = share(path, accepted, varies, encoding, length, lastModified);
+        if (shared != null)
+            return shared;
+        ByteBuffer contents = read(file, length);
+        if (contents == null)
+            return null;
+
+        return store(path, accepted, varies, encoding, new Entry(file, length, lastModified, contents, headers, System.currentTimeMillis()));
+    }
+    /**
+     * Caches contents generated from a file, like a compressed copy, for the clients accepting
+     * the given encodings. The entry is dropped when the file's length or modification time
+     * differ from the given ones.
+     *
+     * @param encoding the encoding of the contents
+     */
+    Result put(String path, int accepted, Request.Encoding encoding, File file, long length, long lastModified, byte[] contents, String headers) {
+        if (!fits(contents.length))
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(contents.length);
+        buffer.put(contents).flip();
+        return store(path, accepted, true, encoding,
+            new Entry(file, length, lastModified, buffer.asReadOnlyBuffer(), headers, System.currentTimeMillis()));
+    }
+    /**
+     * Makes the clients accepting the given encodings share the entry of the encoding they are
+     * served, if it is cached for the file as it is now. Unlike `put` this never touches the
+     * file, so it may be called where reading a file would block.
+     *
+     * @return its result or null if there is no such entry
+     */
+    synchronized Result share(String path, int accepted, boolean varies, Request.Encoding encoding,
+            long length, long lastModified) {
+        Variants variants = entries.get(path);
+        if (variants == null || variants.varies != varies)
+            return null;
+
+        Entry entry = variants.entries[index(encoding)];
+        if (entry == null || entry.length != length || entry.lastModified != lastModified)
+            return null;
+        variants.serve(accepted, index(encoding));
+        return entry.toResult();
+    }
+    private Result store(String path, int accepted, boolean varies, Request.Encoding encoding, Entry entry) {
+        synchronized (this) {
+            Variants variants = entries.get(path);
+            if (variants == null || variants.varies != varies) {
+                if (variants != null)
+                    size -= variants.size();
+                variants = new Variants(varies);
+                entries.put(path, variants);
+            }
+
+            int index = index(encoding);
+            Entry old = variants.entries[index];
+            if (old != null)
+                size -= old.size();
+            variants.entries[index] = entry;
+            variants.serve(accepted, index);
+            size += entry.size();
+            evict();
+        }
+        return entry.toResult();
+    }
+    private static int index(Request.Encoding encoding) {
+        return encoding != null ? encoding.ordinal() + 1 : 0;
+    }
+
+    /**
+     * Reads a file into a read-only direct buffer. Returns null if the file doesn't have the
+     * expected length (anymore).
+     */
+    private static ByteBuffer read(File file, long length) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer contents = ByteBuffer.allocateDirect((int) length);
+            while (contents.hasRemaining())
+                if (channel.read(contents) < 0)
+                    return null;
+            if (channel.size() != length)
+                return null;
+
+            contents.flip();
+            return contents.asReadOnlyBuffer();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private synchronized void remove(String path, Variants variants, Entry entry) {
+        if (entries.get(path) != variants)
+            return;
+
+        boolean empty = true;
+        for (int i = 0; i < ENCODINGS; i++)
+            if (variants.entries[i] == entry) {
+                variants.entries[i] = null;
+                size -= entry.size();
+            } else if (variants.entries[i] != null)
+                empty = false;
+        if (empty)
+            entries.remove(path);
+    }
+    private void evict() {
+        Iterator<Map.Entry<String, Variants>> eldest = entries.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package virtualvoid.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A region of a file to be sent as a response body. The region is transferred with
+ * FileChannel.transferTo, which for socket channels lets the operating system copy the
+ * data from the file system cache directly to the socket (sendfile) without it ever
+ * passing through the Java heap.
+ *
+ * A FileRegion remembers how much of it was transferred so far, so it can be used with
+ * non-blocking channels taking only parts of it at a time. The file is opened on the first
+ * transfer and has to be closed afterwards.
+ *
+ * Bodies which have to read a region instead of transferring it, like multipart/byteranges put
+ * together from several regions, do so on the READER thread. Reading blocks until the file
+ * system delivers, and the NonBlockingWebServer's selector threads mustn't wait for that. The
+ * StaticHttpFileHandler loads files into its FileCache there, too.
+ */
+public final class FileRegion implements Closeable {
+    /**
+     * Reads files for all servers, so that the threads serving connections never wait for it.
+     */
+    final static ExecutorService READER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "file-reader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final long position;
+    private final long count;
+
+    private FileChannel channel;
+    private long transferred = 0;
+
+    public FileRegion(File file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    /**
+     * A part of this region, starting `offset` bytes into it.
+     */
+    public FileRegion slice(long offset, long count) {
+        if (offset < 0 || count < 0 || offset + count > this.count)
+            throw new IndexOutOfBoundsException(offset + "+" + count + " exceeds " + this.count);
+        return new FileRegion(file, position + offset, count);
+    }
+
+    public long getCount() {
+        return count;
+    }
+    public boolean isComplete() {
+        return transferred >= count;
+    }
+
+    /**
+     * Transfers as much of the rest of the region as the target takes. A blocking target
+     * gets the complete rest, a non-blocking one maybe only parts of it.
+     *
+     * @return the number of bytes transferred by this call
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (channel == null)
+            channel = new FileInputStream(file).getChannel();
+
+        long before = transferred;
+        while (transferred < count) {
+            long written = channel.transferTo(position + transferred, count - transferred, target);
+            if (written == 0) {
+                // either a non-blocking target is full or the file shrank in the meantime
+                if (channel.size() < position + count)
+                    throw new IOException("File "+file+" was truncated while being sent");
+                break;
+            }
+            transferred += written;
+        }
+        return transferred - before;
+    }
+
+    /**
+     * Reads the next bytes of the region into a buffer, for bodies put together from several
+     * parts.
+     *
+     * @return the number of bytes read or -1 if the region is complete
+     */
+    public int read(ByteBuffer target) throws IOException {
+        if (transferred >= count)
+            return -1;
+        if (channel == null)
+            channel = new FileInputStream(file).getChannel();
+
+        int limit = target.limit();
+        if (target.remaining() > count - transferred)
+            target.limit(target.position() + (int) (count - transferred));
+        try {
+            int read = channel.read(target, position + transferred);
+            if (read < 0)
+                throw new IOException("File "+file+" was truncated while being sent");
+            transferred += read;
+            return read;
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    /**
+     * Reads the rest of the region into a buffer from the pool, for small regions which are
+     * cheaper to write together with other buffers than to transfer on their own. The region
+     * is closed afterwards and the caller has to release the buffer.
+     */
+    ByteBuffer readAll(BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire((int) (count - transferred));
+        try {
+            buffer.limit((int) (count - transferred));
+            while (buffer.hasRemaining())
+                read(buffer);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        } finally {
+            close();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Copies the rest of the region to a stream through a pooled buffer, for clients we
+     * don't have a channel to.
+     */
+    public void transferTo(OutputStream os) throws IOException {
+        if (channel == null)
+            channel = new FileInputStream(file).getChannel();
+
+        ByteBuffer buffer = BufferPool.HEAP.acquire(BufferPool.MAX_SIZE);
+        try {
+            while (transferred < count) {
+                buffer.clear();
+                if (count - transferred < buffer.capacity())
+                    buffer.limit((int) (count - transferred));
+
+                int read = channel.read(buffer, position + transferred);
+                if (read < 0)
+                    throw new IOException("File "+file+" was truncated while being sent");
+                os.write(buffer.array(), 0, read);
+                transferred += read;
+            }
+        } finally {
+            BufferPool.HEAP.release(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+}
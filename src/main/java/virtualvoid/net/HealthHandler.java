@@ -0,0 +1,12 @@
+package virtualvoid.net;
+
+/**
+ * Answers each request with a short "OK", for load balancers and monitoring checking that
+ * the server is up. Meant to be routed to by a Router next to the actual site.
+ */
+public class HealthHandler extends HttpHandler {
+    @Override
+    protected Result serve(String uri) {
+        return new TextResult("OK\n");
+    }
+}
@@ -0,0 +1,498 @@
+package virtualvoid.net;
+
+import static virtualvoid.net.Logging.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a single connection of the NonBlockingWebServer. An instance is attached
+ * to the SelectionKey of its channel and is advanced by the thread of its SelectorLoop whenever
+ * the channel becomes readable or writable.
+ *
+ * A connection alternates between two states: while READING it feeds the bytes received to
+ * its RequestParser until a complete request head has arrived, then it processes the request and switches to WRITING
+ * until the complete response has been written. Afterwards it either goes back to READING
+ * (keep-alive) or closes the channel. At no point do we wait for the client, so a slow client
+ * only costs us its buffers and not a thread.
+ *
+ * Streamed bodies (see BodySource) are pulled from their source only when the channel took what
+ * was pulled before, so the client's pace limits the producer. While the source has nothing
+ * available, the connection isn't interested in any operation until the source calls back and
+ * the loop resumes it. The same goes for responses still produced on another thread (see
+ * Router): responses to earlier requests are written, then the connection waits for the
+ * pending one to call back.
+ *
+ * The connection is its own timeout on the loop's TimerWheel. Its deadline is pushed back
+ * whenever the client makes progress and it expires when the client stalls for too long.
+ */
+final class HttpConnection extends TimerWheel.Timeout {
+    private final static int BUFFER_SIZE = 8192;
+    /**
+     * The maximal number of responses to pipelined requests written at once.
+     */
+    private final static int MAX_BATCHED_RESPONSES = 16;
+    /**
+     * The size of the buffer streamed bodies are pulled into.
+     */
+    private final static int SOURCE_BUFFER_SIZE = 16384;
+    /**
+     * The maximal number of reads made to drop the input before closing a connection.
+     */
+    private final static int MAX_DISCARDED_READS = 8;
+
+    private enum State { READING, WRITING, CLOSED }
+
+    private final HttpHandler handler;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    /**
+     * The client's address, which the channel doesn't tell anymore once it's closed.
+     */
+    private final InetAddress address;
+    private final SelectionKey key;
+    private final TimerWheel timeouts;
+
+    private final RequestParser parser = new RequestParser();
+    /**
+     * A direct buffer from the BufferPool, only held while it contains bytes or we are reading.
+     * Idle keep-alive connections thus don't tie up any buffers.
+     */
+    private ByteBuffer in;
+    private ByteBuffer[] out;
+    /**
+     * A body to be transferred from a file after `out` was written, or null.
+     */
+    private FileRegion region;
+    /**
+     * A body to be pulled from a source after `out` was written, or null. `chunk` is a pooled
+     * buffer holding what was pulled (framed as a chunk if `chunked`) and not yet written.
+     */
+    private BodySource source;
+    private boolean chunked;
+    /**
+     * The number of bytes the source still has to deliver, or -1 if it didn't tell.
+     */
+    private long sourceRemaining;
+    private ByteBuffer chunk;
+    private final byte[] chunkHeader = new byte[ChunkedOutputStream.MAX_HEADER_LENGTH];
+    /**
+     * A response to be written after `out` once it's done, or null.
+     */
+    private HttpHandler.Pending pending;
+    /**
+     * Whether we wait for the source or the pending response to call back.
+     */
+    private boolean waiting = false;
+    private final Runnable resumer = new Runnable() {
+        @Override
+        public void run() {
+            loop.resume(HttpConnection.this);
+        }
+    };
+    private boolean keepAlive;
+
+    private State state = State.READING;
+    /**
+     * When the first bytes of the current request head and the current responses were
+     * handled, for Metrics.
+     */
+    private long parseStart, writeStart;
+
+    HttpConnection(HttpHandler handler, SocketChannel channel, InetAddress address, SelectorLoop loop, Selector selector, long now) throws IOException {
+        this.handler = handler;
+        this.loop = loop;
+        this.channel = channel;
+        this.address = address;
+        this.timeouts = loop.getTimeouts();
+
+        channel.configureBlocking(false);
+        HttpHandler.configure(channel.socket());
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        timeouts.schedule(this, now + Settings.firstReadTimeout);
+    }
+
+    /**
+     * Called by the selecting thread when the channel is ready for the operations
+     * we are interested in.
+     */
+    void handle(long now) throws IOException {
+        if (key.isReadable()) {
+            if (in == null)
+                in = BufferPool.DIRECT.acquire(BUFFER_SIZE);
+            int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+            // Headers have to be send continuously without to much pauses in between
+            if (read > 0)
+                timeouts.schedule(this, now + Settings.headerTimeout);
+        }
+        advance(now);
+        releaseInput();
+    }
+    /**
+     * Called by the loop's thread after the body source we waited for called back.
+     */
+    void resume(long now) throws IOException {
+        if (!waiting)
+            return;
+
+        waiting = false;
+        advance(now);
+        releaseInput();
+    }
+    private boolean hasInput() {
+        return in != null && in.position() > 0;
+    }
+    /**
+     * Closes the connection if it waits for the next request, when the server is stopping.
+     */
+    void closeIfIdle() {
+        if (state == State.READING && !parser.inProgress() && !hasInput())
+            close();
+    }
+    private void releaseInput() {
+        if (in != null && in.position() == 0) {
+            // everything received was consumed
+            BufferPool.DIRECT.release(in);
+            in = null;
+        }
+    }
+
+    /**
+     * Drives the state machine as far as possible without blocking. The input buffer lives as
+     * long as the connection, so requests the client sent at once (pipelining) are all answered
+     * in order, and responses to requests which are already complete are written together.
+     */
+    private void advance(long now) throws IOException {
+        while (state != State.CLOSED) {
+            if (state == State.WRITING) {
+                if (!writeResponse(now)) {
+                    interestIn(waiting ? 0 : SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                Metrics.record(Metrics.Phase.WRITE, writeStart);
+                // a stopping server only answers what the client already sent
+                if (!keepAlive || (loop.isStopping() && !hasInput())) {
+                    discardInput();
+                    close();
+                    return;
+                }
+                state = State.READING;
+                // the rest of a pipelined request may already be waiting
+                timeouts.schedule(this, now + (parser.inProgress() ? Settings.headerTimeout : Settings.keepAliveTimeout));
+            }
+
+            HttpHandler.Response response = nextRequest();
+            if (response == null) {
+                interestIn(SelectionKey.OP_READ);
+                return;
+            }
+
+            // Answer all requests the client pipelined so far with one write
+            List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            int responses = 1;
+            while (add(response, buffers) && responses < MAX_BATCHED_RESPONSES
+                    && (response = nextRequest()) != null)
+                responses++;
+
+            out = buffers.toArray(new ByteBuffer[buffers.size()]);
+            state = State.WRITING;
+            writeStart = Metrics.start();
+        }
+    }
+
+    /**
+     * Drops what the client sent beyond the requests we answered, like the body of a request
+     * (see HttpHandler.respond), so that closing the channel with unread bytes doesn't reset the
+     * connection before the client got the responses. Only what already arrived is read, and
+     * not much of it, as the client may keep sending.
+     */
+    private void discardInput() {
+        if (in == null)
+            in = BufferPool.DIRECT.acquire(BUFFER_SIZE);
+        try {
+            for (int reads = 0; reads < MAX_DISCARDED_READS; reads++) {
+                in.clear();
+                if (channel.read(in) <= 0)
+                    break;
+            }
+        } catch (IOException e) {
+            // we close it anyway
+        }
+    }
+
+    /**
+     * Parses the bytes received so far and processes the request if it is complete, in
+     * which case the response is returned, otherwise null.
+     */
+    private HttpHandler.Response nextRequest() {
+        if (in == null)
+            return null;
+
+        in.flip();
+        if (in.hasRemaining() && !parser.inProgress())
+            parseStart = Metrics.start();
+        RequestParser.Status status = parser.parse(in);
+        in.compact();
+
+        if (status != RequestParser.Status.INCOMPLETE)
+            Metrics.record(Metrics.Phase.PARSE, parseStart);
+
+        switch (status) {
+        case INCOMPLETE:
+            return null;
+        case COMPLETE:
+            Request request = parser.getRequest();
+            log("Got request '%s'", request);
+
+            HttpHandler.Response response = handler.respond(request, !loop.isStopping());
+            parser.reset();
+            return response;
+        default:
+            System.err.printf("Bad Request from %s: %s\n", channel, status);
+            return HttpHandler.fail(status, parser.getRequest());
+        }
+    }
+
+    /**
+     * Adds head and body of a response to the buffers to be written.
+     *
+     * @return whether further responses may be added behind this one
+     */
+    private boolean add(HttpHandler.Response response, List<ByteBuffer> buffers) throws IOException {
+        if (response.pending != null) {
+            HttpHandler.Response done = response.pending.poll();
+            if (done == null) {
+                pending = response.pending;
+                // it's written after the buffers, so nothing may follow it
+                return false;
+            }
+            response = done;
+        }
+        keepAlive = response.keepAlive;
+        buffers.add(response.head);
+
+        if (response.source != null) {
+            source = response.source;
+            chunked = response.chunked;
+            sourceRemaining = source.getLength();
+            // the body is pulled after the buffers, so nothing may follow it
+            return false;
+        }
+        if (response.body != null) {
+            ByteBuffer body = response.body.getBodyBuffer();
+            if (body == null) {
+                // reading a file here would block the loop, so files are never gathered but
+                // transferred after the buffers (hot files are loaded into memory off the loop,
+                // see StaticHttpFileHandler.load)
+                region = response.body.getFileRegion();
+                if (region != null)
+                    // the region is transferred after the buffers, so nothing may follow it
+                    return false;
+
+                // this Result only knows how to write to streams, so we have to buffer the body
+                // completely before we can write it piecewise when the channel is ready.
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                response.body.writeBody(buffer);
+                body = ByteBuffer.wrap(buffer.toByteArray());
+            }
+            buffers.add(body);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Writes as much of the current response as the channel takes.
+     *
+     * @return true if the response was written completely
+     */
+    private boolean writeResponse(long now) throws IOException {
+        long written = 0;
+        if (HttpHandler.hasRemaining(out)) {
+            written = channel.write(out);
+            if (HttpHandler.hasRemaining(out)) {
+                progress(written, now);
+                return false;
+            }
+        }
+        if (region != null) {
+            written += region.transferTo(channel);
+            if (!region.isComplete()) {
+                progress(written, now);
+                return false;
+            }
+            region.close();
+            region = null;
+        }
+        while (source != null || (chunk != null && chunk.hasRemaining())) {
+            if (chunk != null && chunk.hasRemaining()) {
+                written += channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    progress(written, now);
+                    return false;
+                }
+            } else if (!pull()) {
+                progress(written, now);
+                waiting = true;
+                source.whenAvailable(resumer);
+                return false;
+            }
+        }
+        if (chunk != null) {
+            BufferPool.DIRECT.release(chunk);
+            chunk = null;
+        }
+        if (pending != null) {
+            HttpHandler.Response response = pending.poll();
+            if (response == null) {
+                waiting = true;
+                timeouts.schedule(this, now + Settings.routeTimeout);
+                pending.whenDone(resumer);
+                return false;
+            }
+            pending = null;
+            List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            add(response, buffers);
+            out = buffers.toArray(new ByteBuffer[buffers.size()]);
+            return writeResponse(now);
+        }
+        out = null;
+        return true;
+    }
+
+    /**
+     * Pulls the next part of the body from the source into `chunk`. When the source is
+     * complete, it is closed and `chunk` gets the last chunk if needed.
+     *
+     * @return false if the source had nothing available
+     */
+    private boolean pull() throws IOException {
+        if (chunk == null)
+            chunk = BufferPool.DIRECT.acquire(SOURCE_BUFFER_SIZE);
+
+        // leave room for the chunk header in front and CRLF behind the data
+        int start = chunked ? ChunkedOutputStream.MAX_HEADER_LENGTH : 0;
+        chunk.clear().position(start);
+        if (chunked)
+            chunk.limit(chunk.capacity() - ChunkedOutputStream.CRLF.length);
+
+        int read = source.read(chunk);
+        if (read == 0) {
+            chunk.limit(0);
+            return false;
+        } else if (read < 0) {
+            if (sourceRemaining > 0)
+                throw new IOException("Body source ended "+sourceRemaining+" bytes early");
+
+            chunk.clear();
+            if (chunked)
+                chunk.put(ChunkedOutputStream.LAST_CHUNK);
+            chunk.flip();
+            HttpHandler.closeQuietly(source);
+            source = null;
+            return true;
+        }
+
+        if (sourceRemaining >= 0 && (sourceRemaining -= read) < 0)
+            throw new IOException("Body source produced more than it announced");
+        if (chunked) {
+            int end = chunk.position();
+            chunk.limit(chunk.capacity());
+            chunk.put(ChunkedOutputStream.CRLF);
+            int headerStart = ChunkedOutputStream.header(read, chunkHeader, chunkHeader.length);
+            for (int i = headerStart; i < chunkHeader.length; i++)
+                chunk.put(i, chunkHeader[i]);
+            chunk.limit(end + ChunkedOutputStream.CRLF.length).position(headerStart);
+        } else
+            chunk.flip();
+        return true;
+    }
+    /**
+     * A client slowly taking a big response is only given up when it stalls.
+     */
+    private void progress(long written, long now) {
+        if (written > 0)
+            timeouts.schedule(this, now + Settings.keepAliveTimeout);
+    }
+
+    private void interestIn(int ops) {
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /**
+     * Called by the wheel when the deadline has passed. If the client already started
+     * sending a request, it is told so with a 408 if the channel takes it right away.
+     */
+    @Override
+    protected void expire(long now) {
+        Metrics.increment(Metrics.Counter.TIMEOUTS);
+        try {
+            if (state == State.READING && parser.inProgress())
+                channel.write(HttpHandler.fail("408 Request Timeout", parser.getRequest()).head);
+        } catch (IOException e) {
+            // we close it anyway
+        }
+
+        log("Closing connection to %s", channel);
+        close();
+    }
+
+    /**
+     * Gives up the connection after processing failed unexpectedly, like a handler throwing.
+     * Unless a response is being written already, the client is told with a 500 if the
+     * channel takes it right away.
+     */
+    void abort() {
+        try {
+            if (state == State.READING)
+                channel.write(HttpHandler.fail("500 Internal Server Error", parser.getRequest()).head);
+        } catch (IOException e) {
+            // we close it anyway
+        }
+        close();
+    }
+
+    void close() {
+        if (state == State.CLOSED)
+            return;
+
+        state = State.CLOSED;
+        timeouts.cancel(this);
+        if (in != null) {
+            BufferPool.DIRECT.release(in);
+            in = null;
+        }
+        loop.closed(address);
+        Metrics.increment(Metrics.Counter.CONNECTIONS_CLOSED);
+        key.cancel();
+        try {
+            channel.close();
+            if (region != null)
+                region.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+        if (source != null) {
+            HttpHandler.closeQuietly(source);
+            source = null;
+        }
+        // a pending response which is done later has nobody to go to
+        pending = null;
+        if (chunk != null) {
+            BufferPool.DIRECT.release(chunk);
+            chunk = null;
+        }
+    }
+}
@@ -2,19 +2,14 @@ package virtualvoid.net;
 
 import static virtualvoid.net.Logging.log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * An abstract HttpHandler class which does basic parsing and defers the actual
@@ -22,10 +17,18 @@ import java.util.regex.Pattern;
  */
 public abstract class HttpHandler implements Handler {
     protected abstract Result serve(String uri);
+    /**
+     * Handlers interested in more than the URI of a request can override this. Note, that
+     * the request is only valid during this call.
+     */
+    protected Result serve(Request request) {
+        return serve(request.getUri());
+    }
 
     /**
      * Class Result represents the result which has to be sent back
-     * to the client. Implementors have to implement addHeaders and writeBody.
+     * to the client. Implementors have to implement addHeaders and either writeBody or
+     * getBodySource.
      */
     public static abstract class Result {
         private final String resultCode;
@@ -47,44 +50,219 @@ public abstract class HttpHandler implements Handler {
                 .append(value)
                 .append("\r\n");
         }
+        /**
+         * Adds complete header lines, each terminated by CRLF.
+         */
+        void addResponseHeaders(String lines) {
+            headerBuffer.append(lines);
+        }
 
         protected abstract void addHeaders();
-        protected abstract void writeBody(OutputStream os) throws IOException;
+        /**
+         * Writes the body to a stream. By default, this copies the body source if there is one
+         * and writes nothing otherwise.
+         */
+        protected void writeBody(OutputStream os) throws IOException {
+            BodySource source = getBodySource();
+            if (source != null)
+                try {
+                    source.transferTo(os);
+                } finally {
+                    source.close();
+                }
+        }
+
+        /**
+         * Results whose body is already in memory can return it here. Servers having a channel
+         * to the client then write it directly, which saves copying for direct or mapped buffers.
+         * Each call has to return a new buffer positioned at the start of the body. Returns null
+         * by default, in which case writeBody is used.
+         */
+        protected ByteBuffer getBodyBuffer() {
+            return null;
+        }
+        /**
+         * Results whose body is the region of a file can return it here. Servers having
+         * a channel to the client then transfer it without copying (see FileRegion). Each call
+         * has to return a new region. Returns null by default, in which case writeBody is used.
+         */
+        protected FileRegion getFileRegion() {
+            return null;
+        }
+        /**
+         * Results producing their body piece by piece return a new source for it here. Servers
+         * then pull the body from the source as the client takes it, without blocking a thread
+         * in the NonBlockingWebServer (see BodySource). The Content-Length, or chunked transfer
+         * encoding if the length isn't known, is added by the server, so addHeaders mustn't add
+         * them. The source should only start producing when it is read, since it is closed right
+         * away for HEAD requests. Returns null by default, in which case getBodyBuffer,
+         * getFileRegion or writeBody are used.
+         */
+        protected BodySource getBodySource() {
+            return null;
+        }
+        /**
+         * Results sent over and over again can return their complete, encoded response head
+         * for the given HTTP version and keep-alive decision here, so that it doesn't have to be
+         * rendered for each request. Each call has to return a new buffer. Returns null by
+         * default, in which case the head is rendered from result code and headers.
+         */
+        protected ByteBuffer getEncodedHead(String version, boolean keepAlive) {
+            return null;
+        }
+        /**
+         * The entity tag of the body (including quotes) which is also sent as ETag header, so
+         * that conditional requests can be answered with 304 (see Preconditions). Returns null
+         * by default.
+         */
+        protected String getETag() {
+            return null;
+        }
+        /**
+         * The time the body was last modified in milliseconds, which is also sent as
+         * Last-Modified header. Returns -1 by default.
+         */
+        protected long getLastModified() {
+            return -1;
+        }
     }
 
-    private void fail(Writer writer, String code) throws IOException {
-        writer.append("HTTP/1.0 ")
-            .append(code)
-            .append("\r\n");
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+    private final static int BUFFER_SIZE = 8192;
+
+    /**
+     * A response ready to be sent back: the encoded status line together with all headers,
+     * the result whose body follows (null if no body has to be sent) and whether the
+     * connection should be kept open afterwards. Responses are produced by `respond`
+     * and written by whichever server owns the connection.
+     *
+     * If the result streams its body, `source` is the source to send it from, framed with
+     * chunked transfer encoding if `chunked` is set.
+     *
+     * A response still being produced on another thread has nothing but `pending` set, the
+     * server has to wait for it to take its place.
+     */
+    static final class Response {
+        final ByteBuffer head;
+        final Result body;
+        final BodySource source;
+        final boolean chunked;
+        final boolean keepAlive;
+        final Pending pending;
+
+        Response(ByteBuffer head, Result body, boolean keepAlive) {
+            this(head, body, null, false, keepAlive);
+        }
+        Response(ByteBuffer head, Result body, BodySource source, boolean chunked, boolean keepAlive) {
+            this.head = head;
+            this.body = body;
+            this.source = source;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            this.pending = null;
+        }
+        Response(Pending pending) {
+            this.head = null;
+            this.body = null;
+            this.source = null;
+            this.chunked = false;
+            this.keepAlive = false;
+            this.pending = pending;
+        }
     }
+    /**
+     * The future of a response produced on another thread (see Router). The blocking servers
+     * simply `await` it, the NonBlockingWebServer is called back `whenDone`.
+     */
+    static final class Pending {
+        /**
+         * The request this answers, for logging a response given in its place.
+         */
+        final Request request;
+        private Response response;
+        private Runnable callback;
 
-    private final static Pattern HeaderLine = Pattern.compile("([^:]*):\\s*(.*)");
-    private Map<String, String> readHeaders(BufferedReader reader) throws IOException {
-        Map<String, String> headers = new LinkedHashMap<String, String>();
+        Pending(Request request) {
+            this.request = request;
+        }
 
-        int length = 0;
-        do {
-            String line = reader.readLine();
-            length = line.length();
-            if (length > 0) {
-                Matcher matcher = HeaderLine.matcher(line);
-                if (matcher.matches())
-                    headers.put(matcher.group(1), matcher.group(2).toLowerCase());
-                else
-                    log("Skipping invalid header: '%s'", line);
+        void complete(Response response) {
+            Runnable callback;
+            synchronized (this) {
+                this.response = response;
+                callback = this.callback;
+                this.callback = null;
+                notifyAll();
+            }
+            if (callback != null)
+                callback.run();
+        }
+        /**
+         * Returns the response or null if it isn't done yet.
+         */
+        synchronized Response poll() {
+            return response;
+        }
+        /**
+         * Runs the callback once as soon as the response is done.
+         */
+        void whenDone(Runnable callback) {
+            synchronized (this) {
+                if (response == null) {
+                    this.callback = callback;
+                    return;
+                }
+            }
+            callback.run();
+        }
+        /**
+         * Waits for the response at most `timeout` milliseconds and returns null if it
+         * isn't done by then.
+         */
+        synchronized Response await(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            long left = timeout;
+            while (response == null && left > 0) {
+                wait(left);
+                left = deadline - System.currentTimeMillis();
             }
-        } while (length > 0) ;
+            return response;
+        }
+    }
+
+    /**
+     * An error response closing the connection. It is logged right away, as no handler answers
+     * the request.
+     *
+     * @param request what was parsed of the request, or null if nothing was
+     */
+    static Response fail(String code, Request request) {
+        ByteBuffer head = ByteBuffer.wrap(("HTTP/1.0 " + code + "\r\n\r\n").getBytes(ASCII));
+        AccessLog.log(request, head);
+        return new Response(head, null, false);
+    }
+
+    /**
+     * Renders the status line and headers of a response.
+     */
+    static String renderHead(String version, String resultCode, String headers, boolean keepAlive) {
+        StringBuilder head = new StringBuilder()
+            .append("HTTP/")
+            .append(version)
+            .append(' ')
+            .append(resultCode)
+            .append("\r\n")
+            .append(headers);
+
+        if (keepAlive && "1.0".equals(version))
+            head.append("Connection: keep-alive\r\n");
+        else if (!keepAlive && "1.1".equals(version))
+            head.append("Connection: close\r\n");
 
-        return headers;
+        return head.append("\r\n").toString();
     }
-    private boolean shouldKeepAlive(Map<String, String> headers, String version) {
-        boolean hasConnectionKeepAlive =
-            headers.containsKey("Connection") &&
-            headers.get("Connection").contains("keep-alive");
-        boolean hasConnectionClose =
-            headers.containsKey("Connection") &&
-            headers.get("Connection").contains("close");
 
+    private static boolean shouldKeepAlive(Request request) {
         // Keep-Alive in HTTP/1.0: Not specified but implementations use
         // header "Connection: Keep-Alive" to flag a persistent connection.
         // The receiver has to acknowledge the persistent connection with a response header
@@ -97,84 +275,309 @@ public abstract class HttpHandler implements Handler {
         // by default. The sender can flag a connection close with the request header
         // "Connection: close"
         return
-            ("1.0".equals(version) &&
-             hasConnectionKeepAlive
+            (request.isVersion(1, 0) &&
+             request.hasConnectionKeepAlive()
             ) ||
-            ("1.1".equals(version) &&
-             !hasConnectionClose);
+            (request.isVersion(1, 1) &&
+             !request.hasConnectionClose());
     }
 
     @Override
     public boolean handleConnection(Socket client) throws IOException {
+        return handleConnection(client, null);
+    }
+    /**
+     * Handles a connection tracked by a server which may be stopped (see Connections).
+     */
+    boolean handleConnection(Socket client, Connections.Connection connection) throws IOException {
         client.setSoTimeout(Settings.firstReadTimeout);
 
-        return waitAndServeRequest(client);
+        return waitAndServeRequest(client, false, connection);
     }
-    final static Pattern GETHEADRequest = Pattern.compile("(GET|HEAD) ([^ ]+) HTTP/(\\d\\.\\d)");
-    private boolean waitAndServeRequest(Socket client) throws IOException {
-        final OutputStream os = client.getOutputStream();
-        final Writer writer = new OutputStreamWriter(os);
+    /**
+     * Lets any handler handle a tracked connection, only HttpHandlers can close it gracefully.
+     */
+    static boolean handleConnection(Handler handler, Socket client, Connections.Connection connection) throws IOException {
+        if (handler instanceof HttpHandler)
+            return ((HttpHandler) handler).handleConnection(client, connection);
+        else
+            return handler.handleConnection(client);
+    }
+    /**
+     * Serves all requests of a connection until the client closes it, doesn't want it to
+     * be kept alive, or stays idle for longer than Settings.keepAliveTimeout. This is meant
+     * for servers dedicating a thread to each connection for its whole lifetime.
+     */
+    public void serveConnection(Socket client) throws IOException {
+        serveConnection(client, null);
+    }
+    void serveConnection(Socket client, Connections.Connection connection) throws IOException {
+        client.setSoTimeout(Settings.firstReadTimeout);
 
-        final InputStream is = client.getInputStream();
-        // FIXME: to read request bodies we would have to make sure to use correct encoding here
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        waitAndServeRequest(client, true, connection);
+    }
+    /**
+     * Processes a single parsed request. This is independent of how the request was read,
+     * so both the blocking servers and the NonBlockingWebServer share it.
+     */
+    Response respond(Request request) {
+        return respond(request, true);
+    }
+    /**
+     * Processes a request, closing the connection afterwards unless `mayKeepAlive` is set.
+     * Servers which are stopping use this to tell clients about it.
+     */
+    Response respond(Request request, boolean mayKeepAlive) {
+        Request.Method method = request.getMethod();
+        if (method != Request.Method.GET && method != Request.Method.HEAD)
+            return fail("501 Method not implemented", request);
 
-        // Request processing
+        boolean onlyHeader = method == Request.Method.HEAD;
+
+        String version = request.getVersion();
+        if (!(request.isVersion(1, 0) || request.isVersion(1, 1)))
+            return fail("501 Version not implemented "+version, request);
+
+        Metrics.increment(Metrics.Counter.REQUESTS);
+        // the access log needs the time even if metrics are disabled
+        long start = AccessLog.isEnabled() ? System.nanoTime() : Metrics.start();
+
+        Result res = Preconditions.apply(request, serve(request));
+        // We never read request bodies, so the connection can't be used for further requests:
+        // the body would be parsed as the next request, and a client could smuggle requests
+        // past a proxy in front of us that way.
+        boolean keepAlive = mayKeepAlive && shouldKeepAlive(request) && !request.hasBody();
+        BodySource source = res.getBodySource();
+        boolean chunked = false;
+
+        ByteBuffer head = source == null ? res.getEncodedHead(version, keepAlive) : null;
+        if (head == null) {
+            res.addHeaders();
+            if (source != null) {
+                long length = source.getLength();
+                if (length >= 0)
+                    res.addResponseHeader("Content-Length", Long.toString(length));
+                else if (request.isVersion(1, 1)) {
+                    chunked = true;
+                    res.addResponseHeader("Transfer-Encoding", "chunked");
+                } else
+                    // HTTP/1.0 clients only learn about the end of the body by the connection closing
+                    keepAlive = false;
+            }
+            head = ByteBuffer.wrap(renderHead(version, res.getResultCode(), res.getHeaders(), keepAlive).getBytes(ASCII));
+        }
+
+        if (onlyHeader && source != null) {
+            closeQuietly(source);
+            source = null;
+        }
+
+        Metrics.record(Metrics.Phase.SERVE, start);
+        AccessLog.log(request, head, onlyHeader, start);
+        return new Response(head, onlyHeader ? null : res, source, chunked, keepAlive);
+    }
+    static void closeQuietly(BodySource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            System.err.println("Couldn't close body source: "+e.getMessage());
+        }
+    }
+    /**
+     * The response when we are overloaded, rendered once so that turning clients away costs as
+     * little as possible.
+     */
+    private final static byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+        + (Settings.retryAfter > 0 ? "Retry-After: " + Settings.retryAfter + "\r\n" : "")
+        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII);
+    /**
+     * A 503 for a request we can't serve because we are overloaded.
+     */
+    static Response unavailable(Request request) {
+        ByteBuffer head = ByteBuffer.wrap(SERVICE_UNAVAILABLE);
+        AccessLog.log(request, head);
+        return new Response(head, null, false);
+    }
+    /**
+     * Tells a client that we can't take its connection right now and closes it. This is for
+     * servers whose executor rejected the connection or whose client has too many connections
+     * (see ConnectionLimits), so it must not wait for the client:
+     * only what already arrived of the request is skipped, so that closing the socket doesn't
+     * reset the connection before the client got the response.
+     */
+    static void reject(Socket client) {
+        Metrics.increment(Metrics.Counter.REJECTED);
         try {
-            String requestLine = reader.readLine();
-            log("Got request '%s'", requestLine);
+            InputStream is = client.getInputStream();
+            is.skip(is.available());
+            client.getOutputStream().write(SERVICE_UNAVAILABLE);
+            client.shutdownOutput();
+            AccessLog.log(null, ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+        } catch (IOException e) {
+            // the client is gone anyway
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+            Metrics.increment(Metrics.Counter.CONNECTIONS_CLOSED);
+        }
+    }
 
-            // Headers have to be send continuously without to much pauses in between
-            client.setSoTimeout(Settings.headerTimeout);
-            Map<String, String> headers = readHeaders(reader);
+    /**
+     * Maps the outcome of parsing an invalid request to a response.
+     *
+     * @param request what was parsed of the request
+     */
+    static Response fail(RequestParser.Status status, Request request) {
+        Metrics.increment(Metrics.Counter.BAD_REQUESTS);
+        if (status == RequestParser.Status.TOO_LARGE)
+            return fail("431 Request Header Fields Too Large", request);
+        else
+            return fail("400 Bad Request", request);
+    }
+    /**
+     * A small plain text body.
+     */
+    static final class TextResult extends Result {
+        private final byte[] body;
 
-            Matcher lineMatcher = GETHEADRequest.matcher(requestLine);
-            if (lineMatcher.matches()) {
-                String method = lineMatcher.group(1);
-                String uri = lineMatcher.group(2);
-                String version = lineMatcher.group(3);
+        TextResult(String text) {
+            super("200 OK");
+            this.body = text.getBytes(ASCII);
+        }
 
-                boolean onlyHeader = "HEAD".equals(method);
+        @Override
+        protected ByteBuffer getBodyBuffer() {
+            return ByteBuffer.wrap(body);
+        }
+        @Override
+        protected void writeBody(OutputStream os) throws IOException {
+            os.write(body);
+        }
+        @Override
+        protected void addHeaders() {
+            addResponseHeader("Content-Type", "text/plain");
+            addResponseHeader("Content-Length", Integer.toString(body.length));
+            addResponseHeader("Cache-Control", "no-cache");
+        }
+    }
 
-                if (!("1.0".equals(version) || "1.1".equals(version)))
-                    fail(writer, "501 Version not implemented "+version);
-                else {
-                    Result res = serve(uri);
-                    res.addHeaders();
+    /**
+     * Sets up a newly accepted connection as configured in Settings.
+     */
+    static void configure(Socket client) {
+        if (Settings.tcpNoDelay)
+            try {
+                client.setTcpNoDelay(true);
+            } catch (SocketException e) {
+                // the client is gone already, reading its request will tell
+            }
+    }
 
-                    boolean keepAlive = shouldKeepAlive(headers, version);
+    static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer: buffers)
+            if (buffer.hasRemaining())
+                return true;
+        return false;
+    }
+    /**
+     * Serves requests until the client has no more requests pending. Clients may send several
+     * requests at once without waiting for the responses (pipelining). Those requests are answered
+     * in order and their responses are only flushed when no further complete request was received.
+     * We only return a connection to be kept alive when all bytes received were processed, so no
+     * part of a pipelined request is lost when the connection is monitored for data again.
+     * Requests with a body end the connection after their response (see `respond`), so nothing
+     * the client sent behind them is taken for a request.
+     *
+     * If `untilIdle` is set, we don't return keep-alive connections but wait for further requests
+     * ourselves, unless the server is stopping.
+     */
+    private boolean waitAndServeRequest(Socket client, boolean untilIdle, Connections.Connection connection) throws IOException {
+        final OutputStream os = client.getOutputStream();
+        final InputStream is = client.getInputStream();
+        final ResponseWriter out = new ResponseWriter(client.getChannel(), os);
 
-                    writer.append("HTTP/")
-                        .append(version)
-                        .append(' ')
-                        .append(res.getResultCode())
-                        .append("\r\n")
-                        .append(res.getHeaders());
+        RequestParser parser = new RequestParser();
+        ByteBuffer in = BufferPool.HEAP.acquire(BUFFER_SIZE);
+        in.limit(0);
+        boolean served = false;
+        boolean idle = false;
+        long parseStart = 0;
 
-                    if (keepAlive && "1.0".equals(version))
-                        writer.append("Connection: keep-alive\r\n");
-                    else if (!keepAlive && "1.1".equals(version))
-                        writer.append("Connection: close\r\n");
+        // Request processing
+        try {
+            while (true) {
+                if (parseStart == 0 && in.hasRemaining())
+                    parseStart = Metrics.start();
+                RequestParser.Status status = parser.parse(in);
+                if (status == RequestParser.Status.INCOMPLETE) {
+                    // answer what we have before waiting for the client
+                    out.flush();
+                    if (served && !parser.inProgress()) {
+                        if (!untilIdle)
+                            return true;
+                        if (connection != null && !connection.idle())
+                            return false;
 
-                    writer.append("\r\n");
+                        client.setSoTimeout(Settings.keepAliveTimeout);
+                        idle = true;
+                    }
 
-                    writer.flush();
+                    // the parser consumed everything, so we can always read to the start of the buffer
+                    int read;
+                    try {
+                        read = is.read(in.array(), 0, in.capacity());
+                    } catch (SocketException e) {
+                        if (idle && connection != null && !connection.mayKeepAlive())
+                            // closed by the server while stopping
+                            return false;
+                        throw e;
+                    }
+                    if (read < 0)
+                        // the client closed the connection without sending a (complete) request
+                        return false;
+                    in.clear().limit(read);
 
-                    if (!onlyHeader)
-                        res.writeBody(os);
+                    // Headers have to be send continuously without to much pauses in between
+                    client.setSoTimeout(Settings.headerTimeout);
+                    if (idle && connection != null)
+                        connection.busy();
+                    idle = false;
+                    continue;
+                }
 
-                    return keepAlive;
+                Response response;
+                Metrics.record(Metrics.Phase.PARSE, parseStart);
+                parseStart = 0;
+                if (status == RequestParser.Status.COMPLETE) {
+                    log("Got request '%s'", parser.getRequest());
+                    response = respond(parser.getRequest(), connection == null || connection.mayKeepAlive());
+                } else {
+                    System.err.printf("Bad Request from %s: %s\n", client, status);
+                    response = fail(status, parser.getRequest());
                 }
-            } else {
-                System.err.printf("Bad Request: '%s'\n", requestLine);
-                fail(writer, "400 Bad Request");
+                served = true;
+                if (!out.add(response))
+                    break;
+                parser.reset();
             }
         } catch(SocketTimeoutException e) {
-            fail(writer, "408 Request Timeout");
+            Metrics.increment(Metrics.Counter.TIMEOUTS);
+            // an idle keep-alive connection is closed silently
+            if (!idle)
+                out.add(fail("408 Request Timeout", parser.getRequest()));
+        } finally {
+            BufferPool.HEAP.release(in);
         }
 
-        writer.flush();
-        writer.close();
+        out.flush();
+        // skip what already arrived of requests we didn't answer (or a request body), so that
+        // closing the socket with unread bytes doesn't reset the connection before the client
+        // got the responses
+        is.skip(is.available());
+        os.close();
 
         return false;
     }
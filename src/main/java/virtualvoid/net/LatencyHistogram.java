@@ -0,0 +1,106 @@
+package virtualvoid.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram: values are counted in buckets whose
+ * width grows with the magnitude of the values, so that each value is kept with a relative
+ * error below 1% over the whole range of longs in a fixed amount of memory.
+ *
+ * Values below 2^SUB_BUCKET_BITS are counted exactly. Larger values are shifted right until
+ * they fit into SUB_BUCKET_BITS bits and are counted in the bucket for that shift and the
+ * remaining bits. Recording is lock-free and may happen from many threads at once; reading
+ * while values are recorded gives a consistent enough picture for reporting.
+ */
+public final class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 8;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int HALF = SUB_BUCKETS / 2;
+    /**
+     * Shifts for values with up to 63 bits, each adds HALF buckets to the SUB_BUCKETS exact ones
+     */
+    private final static int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts a value, negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+    /**
+     * Adds all values counted by another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n > 0)
+                counts.addAndGet(i, n);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+
+        long value = other.max.get(), current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+    public long getMax() {
+        return max.get();
+    }
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / (double) n;
+    }
+    /**
+     * The value below or at which the given percentage of all values lies, as the highest value
+     * counted in the same bucket, but at most the maximal value recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+
+        long wanted = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = index / HALF - 1;
+        long subBucket = index - shift * HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,352 @@
+package virtualvoid.net;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator for tuning pool sizes and timeouts against a server on this machine.
+ *
+ * It opens a number of keep-alive connections, each of which sends its requests as fast as
+ * the server answers them, optionally pipelining several requests at once. Another number of
+ * clients opens a new connection for each request. Requests are picked at random from all files
+ * below a directory (www/ by default), so the mix resembles what the server actually serves.
+ * Afterwards throughput and latency percentiles for both kinds of clients are reported.
+ *
+ * Latencies are measured from sending a request (or the batch of pipelined requests it's part
+ * of) until its response was received completely. Since clients wait for the responses before
+ * sending again, the load adapts to the server and latencies show what each client experienced,
+ * not what an open stream of requests would see.
+ *
+ * Only the loopback interface is used. Run with
+ *
+ *   mvn compile exec:java -Dserver.main=virtualvoid.net.LoadGenerator -Dexec.args="[name=value...]"
+ *
+ * with these options:
+ *
+ *   connections=32   keep-alive connections
+ *   close=0          clients opening a new connection for each request
+ *   pipeline=1       requests sent at once on keep-alive connections
+ *   seconds=10       duration of the measurement
+ *   warmup=2         seconds of load before measuring
+ *   port=8020        the port of the server, Settings.endpoint by default, also for a started one
+ *   root=www         the directory whose files are requested
+ *   server=...       a server class to start in its own JVM for the run, e.g. NonBlockingWebServer
+ */
+public class LoadGenerator {
+    private final InetSocketAddress address;
+    private final List<String> uris;
+    private final int pipeline;
+
+    private volatile long measureFrom;
+    private volatile long end;
+
+    private final LatencyHistogram keepAliveLatencies = new LatencyHistogram();
+    private final LatencyHistogram closeLatencies = new LatencyHistogram();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public LoadGenerator(int port, List<String> uris, int pipeline) {
+        if (uris.isEmpty())
+            throw new IllegalArgumentException("Nothing to request");
+        if (pipeline < 1)
+            throw new IllegalArgumentException("Pipelining depth must be at least 1");
+
+        this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.uris = uris;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Runs the load and prints the report.
+     */
+    public void run(int connections, int close, int warmupSeconds, int seconds) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        measureFrom = now + warmupSeconds * 1000L;
+        end = measureFrom + seconds * 1000L;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < connections + close; i++) {
+            final boolean keepAlive = i < connections;
+            final long seed = i;
+            Thread thread = new Thread("load-" + i) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    if (keepAlive)
+                        runKeepAlive(random);
+                    else
+                        runClose(random);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread: threads)
+            thread.join();
+
+        System.out.printf("%d keep-alive connections (pipelining %d), %d closing clients, %d seconds%n",
+            connections, pipeline, close, seconds);
+        report("keep-alive", keepAliveLatencies, seconds);
+        report("close", closeLatencies, seconds);
+
+        long total = keepAliveLatencies.getCount() + closeLatencies.getCount();
+        System.out.printf("%-10s %10.0f req/s %8.1f MB/s %8d errors%n",
+            "total", total / (double) seconds, bytes.get() / 1e6 / seconds, errors.get());
+    }
+
+    private void runKeepAlive(Random random) {
+        while (System.currentTimeMillis() < end)
+            try {
+                Connection connection = new Connection(address);
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        long start = System.nanoTime();
+                        StringBuilder batch = new StringBuilder();
+                        for (int i = 0; i < pipeline; i++)
+                            appendRequest(batch, random, false);
+                        connection.send(batch);
+
+                        for (int i = 0; i < pipeline; i++) {
+                            boolean open = connection.readResponse();
+                            record(keepAliveLatencies, start);
+                            if (!open)
+                                // the server gave up on the connection, start a new one
+                                throw new IOException("Connection closed by server");
+                        }
+                    }
+                } finally {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+    }
+    private void runClose(Random random) {
+        while (System.currentTimeMillis() < end)
+            try {
+                long start = System.nanoTime();
+                Connection connection = new Connection(address);
+                try {
+                    StringBuilder request = new StringBuilder();
+                    appendRequest(request, random, true);
+                    connection.send(request);
+                    connection.readResponse();
+                    record(closeLatencies, start);
+                } finally {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+    }
+    private void appendRequest(StringBuilder out, Random random, boolean close) {
+        out.append("GET ")
+            .append(uris.get(random.nextInt(uris.size())))
+            .append(" HTTP/1.1\r\nHost: localhost\r\n");
+        if (close)
+            out.append("Connection: close\r\n");
+        out.append("\r\n");
+    }
+    private void record(LatencyHistogram latencies, long start) {
+        if (System.currentTimeMillis() >= measureFrom)
+            latencies.record(System.nanoTime() - start);
+    }
+
+    private static void report(String name, LatencyHistogram latencies, int seconds) {
+        if (latencies.getCount() == 0)
+            return;
+
+        System.out.printf("%-10s %10.0f req/s  mean %s  p50 %s  p99 %s  p99.9 %s  max %s%n",
+            name, latencies.getCount() / (double) seconds,
+            millis((long) latencies.getMean()),
+            millis(latencies.getValueAtPercentile(50)),
+            millis(latencies.getValueAtPercentile(99)),
+            millis(latencies.getValueAtPercentile(99.9)),
+            millis(latencies.getMax()));
+    }
+    private static String millis(long nanos) {
+        return String.format("%8.3f ms", nanos / 1e6);
+    }
+
+    /**
+     * A connection to the server reading responses with their bodies.
+     */
+    private final class Connection {
+        private final Socket socket;
+        private final InputStream is;
+        private final OutputStream os;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            is = new BufferedInputStream(socket.getInputStream());
+            os = socket.getOutputStream();
+        }
+
+        void send(CharSequence requests) throws IOException {
+            os.write(requests.toString().getBytes(HttpHandler.ASCII));
+        }
+
+        /**
+         * Reads a response up to the end of its body.
+         *
+         * @return whether the connection stays open
+         */
+        boolean readResponse() throws IOException {
+            StringBuilder head = new StringBuilder();
+            int last = -1;
+            // read up to the empty line ending the head
+            while (true) {
+                int b = is.read();
+                if (b < 0)
+                    throw new IOException("Connection closed");
+                if (b == '\n' && last == '\n')
+                    break;
+                if (b != '\r')
+                    last = b;
+                head.append((char) b);
+            }
+
+            String lower = head.toString().toLowerCase();
+            if (!lower.startsWith("http/1.") || lower.length() < 12 || lower.charAt(9) >= '4')
+                errors.incrementAndGet();
+
+            int index = lower.indexOf("\ncontent-length:");
+            boolean close = lower.contains("\nconnection: close");
+            long received = head.length();
+            if (index >= 0) {
+                long length = Long.parseLong(lower.substring(index + 16, lower.indexOf('\n', index + 1)).trim());
+                received += skip(length);
+            } else if (close)
+                // the body ends with the connection
+                received += skip(Long.MAX_VALUE);
+
+            bytes.addAndGet(received);
+            return !close;
+        }
+        private long skip(long length) throws IOException {
+            long skipped = 0;
+            while (skipped < length) {
+                long n = is.skip(length - skipped);
+                if (n <= 0) {
+                    if (is.read() < 0) {
+                        if (length == Long.MAX_VALUE)
+                            return skipped;
+                        throw new IOException("Connection closed");
+                    }
+                    n = 1;
+                }
+                skipped += n;
+            }
+            return skipped;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * The URIs of all files below root.
+     */
+    static List<String> urisBelow(File root) {
+        List<String> uris = new ArrayList<String>();
+        collect(root, "/", uris);
+        return uris;
+    }
+    private static void collect(File directory, String prefix, List<String> uris) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file: files) {
+            String name = file.getName();
+            // we don't bother encoding names which would need it
+            if (file.isHidden() || !name.matches("[A-Za-z0-9._~!$&'()*+,;=:@-]+"))
+                continue;
+            if (file.isDirectory())
+                collect(file, prefix + name + "/", uris);
+            else
+                uris.add(prefix + name);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg: args) {
+            int index = arg.indexOf('=');
+            if (index < 0)
+                throw new IllegalArgumentException("Expected name=value but got '"+arg+"'");
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+
+        int connections = intOption(options, "connections", 32);
+        int close = intOption(options, "close", 0);
+        int pipeline = intOption(options, "pipeline", 1);
+        int seconds = intOption(options, "seconds", 10);
+        int warmup = intOption(options, "warmup", 2);
+        int port = intOption(options, "port", ((InetSocketAddress) Settings.endpoint).getPort());
+        File root = new File(options.containsKey("root") ? options.get("root") : "www");
+
+        List<String> uris = urisBelow(root);
+        LoadGenerator generator = new LoadGenerator(port, uris, pipeline);
+        System.out.printf("Requesting %d files from %s%n", uris.size(), root);
+
+        String server = options.get("server");
+        Process process = server != null ? startServer(server, generator.address) : null;
+        try {
+            generator.run(connections, close, warmup, seconds);
+        } finally {
+            if (process != null) {
+                process.destroy();
+                process.waitFor();
+            }
+        }
+    }
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Starts a server in its own JVM with the classes we were loaded from, listening on the
+     * port of the given address (see Settings.port).
+     */
+    private static Process startServer(String server, InetSocketAddress address) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classpath = new File(LoadGenerator.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        File nowhere = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+        Process process = new ProcessBuilder(java, "-cp", classpath, "-Dserver.port=" + address.getPort(),
+                server.contains(".") ? server : "virtualvoid.net." + server)
+            .redirectOutput(nowhere)
+            .redirectError(nowhere)
+            .start();
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(address.getAddress(), address.getPort()).close();
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroy();
+        throw new IllegalStateException("Server didn't start");
+    }
+}
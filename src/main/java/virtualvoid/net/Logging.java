@@ -1,7 +1,107 @@
 package virtualvoid.net;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging for the servers. Messages below Settings.logLevel are dropped right away, so
+ * disabled logging costs a comparison (use the overloads with fixed arity on hot paths,
+ * which don't even need an array for the arguments).
+ *
+ * Enabled messages are handed to a background thread which formats and prints them, so
+ * request processing never waits for the console. Arguments are converted to Strings before
+ * that, since objects like Requests are reused as soon as we return. If the background
+ * thread can't keep up, messages are dropped and counted instead of slowing down the server.
+ */
 public abstract class Logging {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private final static int QUEUE_SIZE = 8192;
+    private final static BlockingQueue<Object[]> queue = new ArrayBlockingQueue<Object[]>(QUEUE_SIZE);
+    private final static AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread("logging") {
+            @Override
+            public void run() {
+                writeMessages();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(Settings.logLevel) >= 0;
+    }
+
+    /**
+     * Logs a debug message about connections and requests.
+     */
+    public static void log(String format, Object arg) {
+        if (isEnabled(Level.DEBUG))
+            enqueue(Level.DEBUG, format, new Object[] { arg });
+    }
+    public static void log(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG))
+            enqueue(Level.DEBUG, format, new Object[] { arg1, arg2 });
+    }
     public static void log(String format, Object... args) {
-        System.out.printf(format+"\n", args);
+        if (isEnabled(Level.DEBUG))
+            enqueue(Level.DEBUG, format, args);
+    }
+    public static void log(Level level, String format, Object... args) {
+        if (isEnabled(level))
+            enqueue(level, format, args);
+    }
+
+    /**
+     * The number of messages dropped because the background thread couldn't keep up.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void enqueue(Level level, String format, Object[] args) {
+        Object[] message = new Object[args.length + 2];
+        message[0] = level;
+        message[1] = format;
+        for (int i = 0; i < args.length; i++)
+            message[i + 2] = args[i] instanceof Number ? args[i] : String.valueOf(args[i]);
+
+        if (!queue.offer(message))
+            dropped.incrementAndGet();
+    }
+
+    private static void writeMessages() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        List<Object[]> messages = new ArrayList<Object[]>();
+        try {
+            while (true) {
+                messages.add(queue.take());
+                queue.drainTo(messages);
+
+                for (Object[] message: messages) {
+                    Object[] args = new Object[message.length - 2];
+                    System.arraycopy(message, 2, args, 0, args.length);
+                    String text = String.format((String) message[1], args);
+                    out.write(message[0] == Level.DEBUG ? text : message[0] + " " + text);
+                    out.write('\n');
+                }
+                messages.clear();
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // stop logging
+        } catch (IOException e) {
+            System.err.println("Logging failed: "+e.getMessage());
+        }
     }
 }
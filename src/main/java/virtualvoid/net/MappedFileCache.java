@@ -0,0 +1,95 @@
+package virtualvoid.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps small, frequently requested files memory-mapped, so they can be written to sockets
+ * directly from the mapping without opening and reading the file for each request. The cache
+ * is bounded by the total number of bytes mapped; when it is full, the least recently used
+ * files are dropped.
+ *
+ * A mapping is only used as long as length and modification time of its file are unchanged.
+ * Note though, that a file being truncated while its mapping is written to a socket may crash
+ * the writing thread, which is why the cache is disabled by default (see Settings).
+ */
+final class MappedFileCache {
+    private static final class Entry {
+        final MappedByteBuffer buffer;
+        final long lastModified;
+
+        Entry(MappedByteBuffer buffer, long lastModified) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    MappedFileCache(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Returns the mapped contents of a file with the given length or null if the file
+     * isn't eligible for caching.
+     */
+    ByteBuffer get(File file, long length) throws IOException {
+        if (length > maxFileSize || length > capacity || length == 0)
+            return null;
+
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null) {
+                if (entry.lastModified == lastModified && entry.buffer.capacity() == length)
+                    return entry.buffer.duplicate();
+
+                remove(file);
+            }
+        }
+
+        MappedByteBuffer buffer = map(file, length);
+        synchronized (this) {
+            remove(file);
+            entries.put(file, new Entry(buffer, lastModified));
+            size += length;
+            evict();
+        }
+        return buffer.duplicate();
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after closing the file
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void remove(File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null)
+            size -= entry.buffer.capacity();
+    }
+    private void evict() {
+        Iterator<Map.Entry<File, Entry>> eldest = entries.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().buffer.capacity();
+            eldest.remove();
+        }
+    }
+}
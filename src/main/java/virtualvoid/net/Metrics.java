@@ -0,0 +1,216 @@
+package virtualvoid.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters and latency histograms of all servers in this JVM.
+ *
+ * Counters are LongAdders, which spread concurrent increments over several cells instead of
+ * letting all threads fight for one, and histograms are lock-free (see LatencyHistogram), so
+ * recording never blocks a request. The metrics are published as JMX MBean
+ * "virtualvoid.net:type=Metrics" and rendered as text by the StatsHandler (see Settings.statsUri).
+ */
+public abstract class Metrics {
+    public enum Counter {
+        CONNECTIONS_ACCEPTED,
+        CONNECTIONS_CLOSED,
+        REQUESTS,
+        /** Requests which couldn't be parsed */
+        BAD_REQUESTS,
+        /** Connections closed because the client took too long */
+        TIMEOUTS,
+        /**
+         * Connections or requests (see Router) turned away with a 503 because the server was
+         * overloaded or the client had too many connections (see ConnectionLimits)
+         */
+        REJECTED,
+        /** Times a server stopped accepting because it had Settings.maxConnections open */
+        ACCEPT_PAUSES,
+        ERRORS,
+        /** Buffers taken from a BufferPool, the difference to released ones are in use */
+        BUFFERS_ACQUIRED,
+        BUFFERS_RELEASED,
+        /** Buffers a BufferPool had to allocate since none was pooled */
+        BUFFERS_ALLOCATED,
+        /** Buffers garbage collected without being released, only counted with Settings.bufferPoolDebug */
+        BUFFERS_LEAKED
+    }
+
+    /**
+     * The phases a request goes through, each of them has a histogram of the nanoseconds spent.
+     */
+    public enum Phase {
+        /** From accepting a connection until it's handed to a thread or selector */
+        ACCEPT,
+        /** Waiting in the executor's queue for a thread */
+        QUEUE,
+        /** From receiving the first bytes of a request until its head was complete */
+        PARSE,
+        /** Processing the request in the handler, including rendering the response head */
+        SERVE,
+        /** Writing responses until the client took them */
+        WRITE
+    }
+
+    private final static LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final static LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+    static {
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+        for (int i = 0; i < phases.length; i++)
+            phases[i] = new LatencyHistogram();
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("virtualvoid.net:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Couldn't register metrics with JMX: "+e.getMessage());
+        }
+    }
+
+    public static void increment(Counter counter) {
+        if (Settings.metrics)
+            counters[counter.ordinal()].increment();
+    }
+    public static long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * The current time to measure phases with, 0 if metrics are disabled.
+     */
+    public static long start() {
+        return Settings.metrics ? System.nanoTime() : 0;
+    }
+    /**
+     * Records the time since `start` for the given phase.
+     */
+    public static void record(Phase phase, long start) {
+        if (Settings.metrics && start != 0)
+            phases[phase.ordinal()].record(System.nanoTime() - start);
+    }
+    public static LatencyHistogram get(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Renders all metrics as text, latencies in microseconds.
+     */
+    public static String render() {
+        StringBuilder text = new StringBuilder();
+        for (Counter counter: Counter.values())
+            text.append(name(counter, "")).append(' ').append(get(counter)).append('\n');
+        text.append("logMessagesDropped ").append(Logging.getDropped()).append('\n');
+        text.append("accessLogDropped ").append(AccessLog.getDropped()).append('\n');
+
+        text.append('\n');
+        text.append(String.format("%-8s %10s %10s %10s %10s %10s %10s%n", "phase", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (Phase phase: Phase.values()) {
+            LatencyHistogram histogram = get(phase);
+            text.append(String.format("%-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                phase.name().toLowerCase(), histogram.getCount(), histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Converts e.g. CONNECTIONS_ACCEPTED to "connectionsAccepted" + suffix.
+     */
+    private static String name(Enum<?> constant, String suffix) {
+        StringBuilder name = new StringBuilder();
+        for (String part: constant.name().toLowerCase().split("_"))
+            name.append(name.length() == 0 ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+        return name.append(suffix).toString();
+    }
+
+    /**
+     * Exposes a read-only attribute for each counter and the count and latency percentiles
+     * (in microseconds) of each phase, e.g. "serveP99Micros".
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+        private final static String[] STATISTICS = { "Count", "MeanMicros", "P50Micros", "P99Micros", "P999Micros", "MaxMicros" };
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Counter counter: Counter.values())
+                if (name(counter, "").equals(attribute))
+                    return get(counter);
+
+            for (Phase phase: Phase.values())
+                for (String statistic: STATISTICS)
+                    if (name(phase, statistic).equals(attribute))
+                        return statistic(get(phase), statistic);
+
+            throw new AttributeNotFoundException(attribute);
+        }
+        private static Object statistic(LatencyHistogram histogram, String statistic) {
+            if ("Count".equals(statistic))
+                return histogram.getCount();
+            else if ("MeanMicros".equals(statistic))
+                return histogram.getMean() / 1000;
+            else if ("P50Micros".equals(statistic))
+                return histogram.getValueAtPercentile(50) / 1000.0;
+            else if ("P99Micros".equals(statistic))
+                return histogram.getValueAtPercentile(99) / 1000.0;
+            else if ("P999Micros".equals(statistic))
+                return histogram.getValueAtPercentile(99.9) / 1000.0;
+            else
+                return histogram.getMax() / 1000.0;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute: attributes)
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // left out as specified
+                }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Counter counter: Counter.values())
+                attributes.add(new MBeanAttributeInfo(name(counter, ""), "long", counter.name(), true, false, false));
+            for (Phase phase: Phase.values())
+                for (String statistic: STATISTICS)
+                    attributes.add(new MBeanAttributeInfo(name(phase, statistic),
+                        "Count".equals(statistic) ? "long" : "double", phase.name() + " " + statistic, true, false, false));
+
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of the web servers",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // there are no operations, this is what the MBeanServer reports for unknown ones
+            throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+        }
+    }
+}
@@ -7,12 +7,14 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A pooling web server using NIO and selection for keep-alive handling.
@@ -29,13 +31,56 @@ import java.util.concurrent.Future;
  * every time and reregister it with the selector.
  * (see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6403933)
  *
- * Third, we have to manage timeouts ourselves. We do this by running over the list of connections
- * each x seconds and check if the timestamp in the attachment is older than the configured timeout,
- * in which case the connection is closed.
+ * Third, we have to manage timeouts ourselves. Each waiting connection gets a timeout on a
+ * TimerWheel which is cancelled when data arrives and otherwise closes the connection. Running
+ * over all connections each x seconds instead becomes expensive with many idle connections.
+ *
+ * Idle keep-alive connections count against Settings.maxConnections like active ones. While the
+ * server has that many open, the main thread doesn't register the server channel and thus pauses
+ * accepting (see ConnectionLimits).
+ *
+ * `stop` shuts the server down gracefully: the main thread stops accepting and closes the
+ * connections waiting for their next request, the pool finishes the requests already sent,
+ * with the responses telling the clients to close the connection, and is shut down.
+ * `run` returns once the pool is done.
  */
 public class NioPooledWebServer {
     private final ExecutorService executor = Settings.createExecutor();
-    private final ExecutorCompletionService<SocketChannel> keepAliveChannels = new ExecutorCompletionService<SocketChannel>(executor);
+    private final ExecutorCompletionService<Connections.Connection> keepAliveChannels =
+        new ExecutorCompletionService<Connections.Connection>(executor);
+    private final Connections connections = new Connections();
+    /**
+     * Counted down by the main thread when it doesn't accept connections anymore.
+     */
+    private final CountDownLatch stoppedAccepting = new CountDownLatch(1);
+    /**
+     * The timeouts of connections waiting for their next request, only used by the main thread.
+     */
+    private final TimerWheel timeouts = new TimerWheel(Settings.timeoutTick, 512, System.currentTimeMillis());
+
+    /**
+     * Closes a keep-alive connection which didn't send anything for Settings.keepAliveTimeout.
+     */
+    private static final class KeepAliveTimeout extends TimerWheel.Timeout {
+        private final Connections.Connection connection;
+
+        KeepAliveTimeout(Connections.Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        protected void expire(long now) {
+            Logging.log("Closing connection to %s", connection.socket);
+            Metrics.increment(Metrics.Counter.TIMEOUTS);
+            // this cancels the channel's key, too
+            close(connection);
+        }
+    }
+    private static void close(Connections.Connection connection) {
+        connection.closed();
+        Connections.close(connection.socket);
+        Metrics.increment(Metrics.Counter.CONNECTIONS_CLOSED);
+    }
 
     /**
      * Check the pool for completion of one or more of its task and in case it's keep-alive
@@ -43,37 +88,38 @@ public class NioPooledWebServer {
      */
     private void registerKeepAliveChannels(Selector selector) throws IOException, InterruptedException {
         long now = System.currentTimeMillis();
-        Future<SocketChannel> alive;
+        Future<Connections.Connection> alive;
         while ((alive = keepAliveChannels.poll()) != null) {
             try {
-                SocketChannel channel = alive.get();
-                if (channel != null) {
-                    channel.configureBlocking(false);
-                    channel.register(selector, SelectionKey.OP_READ, now);
+                Connections.Connection connection = alive.get();
+                if (connection == null)
+                    continue;
+                if (connections.isStopping()) {
+                    // it was kept alive just before we stopped
+                    close(connection);
+                    continue;
                 }
+
+                SocketChannel channel = connection.socket.getChannel();
+                channel.configureBlocking(false);
+                KeepAliveTimeout timeout = new KeepAliveTimeout(connection);
+                channel.register(selector, SelectionKey.OP_READ, timeout);
+                timeouts.schedule(timeout, now + Settings.keepAliveTimeout);
             } catch (ExecutionException e) {
                 e.printStackTrace();
             }
         }
     }
     /**
-     * Each x seconds check all registrations if they have timed-out in which case the
-     * corresponding channel is closed.
+     * Closes the connections waiting for their next request, when we are stopping.
      */
-    private long cleanupKeepAliveChannels(long lastCleanup, Set<SelectionKey> keys) throws IOException {
-        long now = System.currentTimeMillis();
-        if (now - lastCleanup > 5000) {
-            System.err.println("Cleaning up keep-alive connections. "+keys.size());
-            for (SelectionKey key: keys)
-                if ((key.interestOps() & SelectionKey.OP_READ) != 0 &&
-                        ((Long)key.attachment()) + Settings.keepAliveTimeout < now) {
-                    System.out.println("Closing connection to "+key.channel());
-                    key.channel().close();
-                }
-            return now;
-        }
-        else
-            return lastCleanup;
+    private void closeIdle(Selector selector) {
+        for (SelectionKey key: selector.keys())
+            if (key.attachment() instanceof KeepAliveTimeout) {
+                KeepAliveTimeout timeout = (KeepAliveTimeout) key.attachment();
+                timeouts.cancel(timeout);
+                close(timeout.connection);
+            }
     }
 
     public void run() throws IOException, InterruptedException {
@@ -81,15 +127,30 @@ public class NioPooledWebServer {
         serverChannel.configureBlocking(false);
 
         ServerSocket theServer = serverChannel.socket();
-        theServer.bind(Settings.endpoint);
+        theServer.bind(Settings.endpoint, Settings.acceptBacklog);
 
         final Selector selector = Selector.open();
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-        long lastCleanup = System.currentTimeMillis();
         while(true) {
             registerKeepAliveChannels(selector);
-            lastCleanup = cleanupKeepAliveChannels(lastCleanup, selector.keys());
+            if (connections.isStopping()) {
+                if (serverChannel.isOpen()) {
+                    serverChannel.close();
+                    stoppedAccepting.countDown();
+                    closeIdle(selector);
+                }
+                if (executor.isTerminated()) {
+                    // close what the last tasks kept alive
+                    registerKeepAliveChannels(selector);
+                    selector.close();
+                    return;
+                }
+            }
+            // the key of the server channel is cancelled after each accept, it's only registered
+            // again while we may accept more connections
+            if (serverChannel.isOpen() && serverChannel.keyFor(selector) == null && connections.mayAccept())
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            timeouts.advance(System.currentTimeMillis());
 
             if (selector.select(10) == 0)
                 continue;
@@ -98,47 +159,90 @@ public class NioPooledWebServer {
                 if (key.isAcceptable()) {
                     // we take it for granted that only the server channel is
                     // registered for acception.
+                    long start = Metrics.start();
                     SocketChannel clientChannel = serverChannel.accept();
+                    Metrics.increment(Metrics.Counter.CONNECTIONS_ACCEPTED);
                     clientChannel.configureBlocking(true);
-                    schedule(clientChannel);
+                    HttpHandler.configure(clientChannel.socket());
+                    Connections.Connection connection = connections.open(clientChannel.socket());
+                    if (connection != null)
+                        schedule(connection);
+                    else
+                        // the client has too many connections already
+                        HttpHandler.reject(clientChannel.socket());
+                    Metrics.record(Metrics.Phase.ACCEPT, start);
 
                     // workaround: cancel the key and reregister it later on
                     // see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6403933
                     key.cancel();
                 } else if (key.isReadable()) {
                     SocketChannel clientChannel = (SocketChannel) key.channel();
+                    KeepAliveTimeout timeout = (KeepAliveTimeout) key.attachment();
 
                     // cancel the registration, we go back into blocking mode
                     // and let the processing be done inside of an own thread
                     key.cancel();
+                    timeouts.cancel(timeout);
                     clientChannel.configureBlocking(true);
                     Logging.log("Reusing channel %s", clientChannel);
-                    schedule(clientChannel);
+                    schedule(timeout.connection);
                 }
             }
 
+            // deregisters the cancelled keys, so that their channels can be registered again
             selector.selectNow();
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         }
     }
-    private void schedule(final SocketChannel clientChannel) {
-        keepAliveChannels.submit(new Callable<SocketChannel>() {
+    /**
+     * Stops the server gracefully, waiting at most `timeout` milliseconds for the connections
+     * to finish. Those which don't are closed.
+     *
+     * @return whether all connections finished in time
+     */
+    public boolean stop(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        connections.stop();
+        // the main thread may still hand accepted connections to the pool until it noticed
+        stoppedAccepting.await(timeout, TimeUnit.MILLISECONDS);
+        executor.shutdown();
+        if (executor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS))
+            return true;
+
+        connections.closeAll();
+        executor.shutdownNow();
+        return false;
+    }
+    /**
+     * Hands the channel to the pool, or rejects it with a 503 if the pool is overloaded.
+     */
+    private void schedule(final Connections.Connection connection) {
+        try {
+            submit(connection);
+        } catch (RejectedExecutionException e) {
+            connection.closed();
+            HttpHandler.reject(connection.socket);
+        }
+    }
+    private void submit(final Connections.Connection connection) {
+        final long queued = Metrics.start();
+        keepAliveChannels.submit(new Callable<Connections.Connection>() {
             @Override
-            public SocketChannel call() throws Exception {
-                Socket client = clientChannel.socket();
+            public Connections.Connection call() throws Exception {
+                Metrics.record(Metrics.Phase.QUEUE, queued);
+                Socket client = connection.socket;
                 try {
-                    boolean keepAlive = Settings.handler.handleConnection(client);
+                    boolean keepAlive = HttpHandler.handleConnection(Settings.handler, client, connection);
 
                     // if the connection should be kept alive, return it to the executor
                     // for `registerKeepAliveChannels` to pick it up.
-                    if (keepAlive)
-                        return clientChannel;
+                    if (keepAlive && connection.mayKeepAlive())
+                        return connection;
                 } catch (IOException exception) {
+                    Metrics.increment(Metrics.Counter.ERRORS);
                     System.err.println("Error when handling request: "+exception.getMessage());
                     exception.printStackTrace(System.err);
                 }
-                if (!client.isClosed())
-                    client.close();
+                close(connection);
 
                 return null;
             }
@@ -146,6 +250,18 @@ public class NioPooledWebServer {
     }
 
     public static void main(String[] args) throws Exception {
-        new NioPooledWebServer().run();
+        final NioPooledWebServer server = new NioPooledWebServer();
+        Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+            @Override
+            public void run() {
+                try {
+                    server.stop(Settings.shutdownTimeout);
+                } catch (Exception e) {
+                    System.err.println("Couldn't stop the server: "+e.getMessage());
+                }
+                AccessLog.flush();
+            }
+        });
+        server.run();
     }
 }
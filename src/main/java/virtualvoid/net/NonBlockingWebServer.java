@@ -0,0 +1,222 @@
+package virtualvoid.net;
+
+import static virtualvoid.net.Logging.log;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A web server doing all network I/O without blocking. In contrast to NioPooledWebServer,
+ * which only uses the selector for idle keep-alive connections and hands active connections
+ * to a pool in blocking mode, this server drives reading, parsing and writing of every
+ * connection by readiness events of a selector. Each connection's progress is kept in an
+ * HttpConnection attached to its SelectionKey (see there).
+ *
+ * Since no thread is ever tied to a connection, the number of open connections is only
+ * limited by memory and file descriptors, not by the size of a pool. The flip side is that
+ * the handler is called on the selecting thread, so it must not block for long. This
+ * works well with StaticHttpFileHandler, but needs an HttpHandler: the raw socket API of
+ * Handler cannot be driven without blocking.
+ *
+ * To make use of all cores, connections are spread over several SelectorLoops
+ * (Settings.selectorThreads). By default, the main thread accepts all connections and hands
+ * them to the loops as configured by Settings.balancing. With Settings.reusePort each loop
+ * instead gets its own server channel bound to the same port with SO_REUSEPORT, so that the
+ * kernel distributes new connections and accepting doesn't go through a single thread.
+ *
+ * The connections of all loops count against Settings.maxConnections. While the server has that
+ * many open, neither the acceptor nor the loops accept any more (see ConnectionLimits).
+ *
+ * Timeouts are managed the same way NioPooledWebServer does it: each loop keeps the deadlines
+ * of its connections on a TimerWheel, so expiring them doesn't mean checking all connections.
+ *
+ * `stop` shuts the server down gracefully: accepting stops, each loop closes the connections
+ * waiting for their next request and finishes the requests already sent, with the responses
+ * telling the clients to close the connection. `run` returns once all loops are done.
+ */
+public class NonBlockingWebServer {
+    /**
+     * Strategies to pick the loop for a newly accepted connection.
+     */
+    public enum Balancing {
+        ROUND_ROBIN,
+        /** The loop with the fewest open connections */
+        LEAST_LOADED
+    }
+
+    private final HttpHandler handler;
+    private final ConnectionLimits limits = new ConnectionLimits();
+    private final SelectorLoop[] loops;
+    private int nextLoop = 0;
+    private volatile Thread[] threads;
+    private volatile ServerSocketChannel acceptor;
+    private volatile boolean stopping = false;
+    /**
+     * Counted down when the acceptor won't hand any more connections to the loops.
+     */
+    private final CountDownLatch acceptorStopped = new CountDownLatch(1);
+
+    public NonBlockingWebServer() throws IOException {
+        this(Settings.handler);
+    }
+    public NonBlockingWebServer(Handler handler) throws IOException {
+        if (!(handler instanceof HttpHandler))
+            throw new IllegalArgumentException("NonBlockingWebServer needs an HttpHandler but got "+handler);
+        this.handler = (HttpHandler) handler;
+
+        loops = new SelectorLoop[Settings.selectorThreads];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new SelectorLoop(this.handler, limits);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        if (Settings.reusePort && reusePortSupported())
+            runWithReusePort();
+        else
+            runWithAcceptor();
+    }
+
+    private void runWithAcceptor() throws IOException, InterruptedException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(Settings.endpoint, Settings.acceptBacklog);
+        acceptor = serverChannel;
+
+        Thread[] threads = startLoops();
+
+        while(true) {
+            // with too many connections open, clients wait in the backlog until some are closed
+            limits.awaitCapacity();
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                if (!stopping)
+                    throw e;
+                acceptorStopped.countDown();
+                for (Thread thread: threads)
+                    thread.join();
+                return;
+            }
+            long start = Metrics.start();
+            log("New connection: %s", clientChannel);
+            Metrics.increment(Metrics.Counter.CONNECTIONS_ACCEPTED);
+            if (limits.acquire(clientChannel.socket().getInetAddress()))
+                chooseLoop().register(clientChannel);
+            else
+                // the client has too many connections already
+                HttpHandler.reject(clientChannel.socket());
+            Metrics.record(Metrics.Phase.ACCEPT, start);
+        }
+    }
+    private SelectorLoop chooseLoop() {
+        switch (Settings.balancing) {
+        case LEAST_LOADED:
+            SelectorLoop best = loops[0];
+            for (SelectorLoop loop: loops)
+                if (loop.load() < best.load())
+                    best = loop;
+            return best;
+        default:
+            nextLoop = (nextLoop + 1) % loops.length;
+            return loops[nextLoop];
+        }
+    }
+
+    private void runWithReusePort() throws IOException, InterruptedException {
+        for (SelectorLoop loop: loops) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(reusePortOption(serverChannel), true);
+            serverChannel.socket().bind(Settings.endpoint, Settings.acceptBacklog);
+            loop.listen(serverChannel);
+        }
+
+        for (Thread thread: startLoops())
+            thread.join();
+    }
+    private boolean reusePortSupported() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePortOption(channel) != null)
+                return true;
+
+            System.err.println("SO_REUSEPORT isn't supported on this platform, falling back to a single acceptor");
+            return false;
+        } finally {
+            channel.close();
+        }
+    }
+    /**
+     * Looks up SO_REUSEPORT by name, since it only exists on some platforms and Java versions.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption(ServerSocketChannel channel) {
+        for (SocketOption<?> option: channel.supportedOptions())
+            if ("SO_REUSEPORT".equals(option.name()))
+                return (SocketOption<Boolean>) option;
+        return null;
+    }
+
+    private Thread[] startLoops() {
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "selector-"+i);
+            threads[i].start();
+        }
+        this.threads = threads;
+        return threads;
+    }
+
+    /**
+     * Stops the server gracefully, waiting at most `timeout` milliseconds for the connections
+     * to finish. Those which don't are closed.
+     *
+     * @return whether all connections finished in time
+     */
+    public boolean stop(long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        stopping = true;
+        if (acceptor != null) {
+            acceptor.close();
+            // it may just hand over a connection it accepted
+            acceptorStopped.await(timeout, TimeUnit.MILLISECONDS);
+        }
+        for (SelectorLoop loop: loops)
+            loop.stop();
+        if (threads == null)
+            return true;
+
+        boolean drained = true;
+        for (Thread thread: threads) {
+            thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+            drained &= !thread.isAlive();
+        }
+        if (!drained) {
+            for (SelectorLoop loop: loops)
+                loop.abort();
+            for (Thread thread: threads)
+                thread.join();
+        }
+        return drained;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final NonBlockingWebServer server = new NonBlockingWebServer();
+        Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+            @Override
+            public void run() {
+                try {
+                    server.stop(Settings.shutdownTimeout);
+                } catch (Exception e) {
+                    System.err.println("Couldn't stop the server: "+e.getMessage());
+                }
+                AccessLog.flush();
+            }
+        });
+        server.run();
+    }
+}
@@ -0,0 +1,257 @@
+package virtualvoid.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps request URIs to the files below a root directory and caches the outcome together with
+ * the file's metadata, so that hot URIs are served without any file system calls.
+ *
+ * A URI is percent-decoded (as UTF-8) once and then normalized: empty and "." segments are
+ * dropped and ".." removes the segment before it. URIs which would leave the root this way,
+ * contain a backslash or NUL, or address a dot-file or anything in a dot-directory (like
+ * ".git") don't resolve. Neither do files reached through a symbolic link pointing outside of
+ * the root. The metadata of the file is read with a single call.
+ *
+ * Outcomes are cached by the normalized path, including paths which didn't resolve, for
+ * Settings.pathCacheTtl milliseconds. URIs differing only in their query or spelling thus share
+ * an entry, and invalid URIs aren't cached at all. Until an entry expires, changes to the file
+ * system go unnoticed, which is the price for not having to stat hot files on each request. The
+ * cache holds at most Settings.pathCacheSize paths: when it's full, expired entries are dropped
+ * and if that doesn't help, a sixteenth of the entries, so that the hot ones mostly survive a
+ * flood of requests for distinct paths.
+ */
+final class PathResolver {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * When the cache is full and nothing expired, 1/EVICTED_FRACTION of it is dropped.
+     */
+    private final static int EVICTED_FRACTION = 16;
+
+    /**
+     * A resolved file and its metadata at the time it was resolved.
+     */
+    static final class Entry {
+        final File file;
+        final long length;
+        final long lastModified;
+        final String mimeType;
+        final long validUntil;
+        private final Path path;
+
+        Entry(Path path, long length, long lastModified, long validUntil) {
+            this.path = path;
+            this.file = path != null ? path.toFile() : null;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.mimeType = path != null ? mimeType(path.getFileName().toString()) : null;
+            this.validUntil = validUntil;
+        }
+        boolean exists() {
+            return file != null;
+        }
+    }
+
+    private final Path root;
+    private final Path realRoot;
+    private volatile long ttl;
+    private volatile int maxEntries;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    PathResolver(File root, long ttl, int maxEntries) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.realRoot = realPath(this.root);
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+    /**
+     * Changes how long outcomes are cached and how many, for URIs resolved from now on.
+     */
+    void setLimits(long ttl, int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+    /**
+     * The number of paths cached.
+     */
+    int size() {
+        return entries.size();
+    }
+    private static Path realPath(Path path) {
+        try {
+            return path.toRealPath();
+        } catch (IOException e) {
+            // the root doesn't exist (yet), nothing will resolve until it does
+            return path;
+        }
+    }
+
+    /**
+     * Returns the regular file a URI addresses or null if there is none or it may not be
+     * served.
+     */
+    Entry resolve(String uri) {
+        String path = normalize(uri);
+        return path != null ? resolvePath(path) : null;
+    }
+    /**
+     * Returns the regular file at a path as returned by `normalize` or null if there is none or
+     * it may not be served.
+     */
+    Entry resolvePath(String path) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(path);
+        if (entry == null || now >= entry.validUntil) {
+            entry = lookup(root.resolve(path), now);
+            cache(path, entry, now);
+        }
+        return entry.exists() ? entry : null;
+    }
+    /**
+     * Returns the file next to a resolved one with the given suffix appended to its name, like
+     * "index.html.gz", or null if there is none.
+     */
+    Entry resolveSibling(Entry entry, String suffix) {
+        // file paths can't contain NUL, so these keys don't collide with normalized paths
+        String key = "\0" + entry.file.getPath() + suffix;
+        long now = System.currentTimeMillis();
+        Entry sibling = entries.get(key);
+        if (sibling == null || now >= sibling.validUntil) {
+            sibling = lookup(entry.path.resolveSibling(entry.path.getFileName() + suffix), now);
+            cache(key, sibling, now);
+        }
+        return sibling.exists() ? sibling : null;
+    }
+
+    private Entry lookup(Path path, long now) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                if (!path.toRealPath().startsWith(realRoot)) {
+                    System.err.println("Not serving "+path+" which links to outside of "+realRoot);
+                    return new Entry(null, -1, -1, now + ttl);
+                }
+                return new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis(), now + ttl);
+            }
+        } catch (IOException e) {
+            // doesn't exist or isn't accessible
+        }
+        return new Entry(null, -1, -1, now + ttl);
+    }
+    private void cache(String key, Entry entry, long now) {
+        if (entries.size() >= maxEntries) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();)
+                if (now >= it.next().validUntil)
+                    it.remove();
+            // the map's order has nothing to do with how hot the entries are, so this drops
+            // random ones
+            int keep = maxEntries - Math.max(1, maxEntries / EVICTED_FRACTION);
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && entries.size() > keep;) {
+                it.next();
+                it.remove();
+            }
+        }
+        entries.put(key, entry);
+    }
+
+    /**
+     * Decodes and normalizes the path of a URI to a path relative to the root with segments
+     * separated by "/". Returns null if the URI is invalid or addresses something we don't
+     * serve.
+     */
+    static String normalize(String uri) {
+        int start = 0;
+        int end = uri.length();
+        for (int i = 0; i < end; i++)
+            if (uri.charAt(i) == '?' || uri.charAt(i) == '#')
+                end = i;
+
+        // absolute URIs as sent to proxies
+        if (uri.startsWith("http://") || uri.startsWith("https://")) {
+            start = uri.indexOf('/', uri.indexOf("//") + 2);
+            if (start < 0 || start > end)
+                return "";
+        }
+        if (start >= end || uri.charAt(start) != '/')
+            return null;
+
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end)
+                    return null;
+                int high = Character.digit(uri.charAt(i + 1), 16);
+                int low = Character.digit(uri.charAt(i + 2), 16);
+                if (high < 0 || low < 0)
+                    return null;
+                c = (char) (high << 4 | low);
+                i += 2;
+            }
+            if (c == 0 || c == '\\')
+                return null;
+            decoded[length++] = (byte) c;
+        }
+
+        List<String> segments = new ArrayList<String>();
+        for (String segment: new String(decoded, 0, length, UTF8).split("/"))
+            if (segment.isEmpty() || segment.equals("."))
+                continue;
+            else if (segment.equals("..")) {
+                if (segments.isEmpty())
+                    return null;
+                segments.remove(segments.size() - 1);
+            } else if (segment.startsWith("."))
+                return null;
+            else
+                segments.add(segment);
+
+        StringBuilder path = new StringBuilder();
+        for (String segment: segments) {
+            if (path.length() > 0)
+                path.append('/');
+            path.append(segment);
+        }
+        return path.toString();
+    }
+
+    private final static Map<String, String> MIME_TYPES = new HashMap<String, String>();
+    static {
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm", "text/html");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("csv", "text/csv");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("mjs", "application/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("xml", "application/xml");
+        MIME_TYPES.put("wasm", "application/wasm");
+        MIME_TYPES.put("pdf", "application/pdf");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+    }
+    static String mimeType(String name) {
+        String extension = name.substring(name.lastIndexOf(".") + 1).toLowerCase();
+        String type = MIME_TYPES.get(extension);
+        return type != null ? type : "application/octet-stream";
+    }
+}
@@ -0,0 +1,504 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import virtualvoid.net.HttpHandler.Result;
+
+/**
+ * Evaluates conditional requests (RFC 7232) and range requests (RFC 7233) against the result
+ * a handler produced for a GET or HEAD request.
+ *
+ * Results provide their validators with getETag and getLastModified. A client which already
+ * has the current body (If-None-Match, or If-Modified-Since if it didn't send an entity tag)
+ * gets a 304 without body. A Range request gets a 206 with only the requested parts of the
+ * body, as long as If-Range still matches. Ranges are only served for results whose body is a
+ * buffer or a file region, so parts are sliced from them without copying: a single range keeps
+ * the zero-copy transfer of the whole body, several ranges are sent as multipart/byteranges.
+ * Overlapping and adjacent ranges are merged, requests with more than Settings.maxRanges ranges
+ * get the whole body. A Range which can't be satisfied gets a 416. Multipart bodies from files
+ * are streamed (see BodySource), so they are never kept in memory. Their parts are read ahead by
+ * FileRegion.READER, as the NonBlockingWebServer pulls the body on its selector threads.
+ */
+final class Preconditions {
+    private Preconditions() {}
+
+    /**
+     * The IMF-fixdate format of HTTP dates, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    private final static DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    /**
+     * Separates the parts of multipart responses, it only has to be unlikely to occur in files.
+     */
+    private final static String BOUNDARY = "virtualvoid-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    static String formatDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+    /**
+     * Parses an HTTP date, returns -1 if it is invalid.
+     */
+    static long parseDate(String date) {
+        try {
+            // also accepts days without leading zero
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    static Result apply(Request request, Result result) {
+        if (!result.getResultCode().startsWith("200 "))
+            return result;
+
+        String etag = result.getETag();
+        long lastModified = result.getLastModified();
+
+        String ifNoneMatch = request.getIfNoneMatch();
+        if (ifNoneMatch != null) {
+            if (etag != null && matches(ifNoneMatch, etag))
+                return notModified(result);
+        } else if (lastModified >= 0 && request.getIfModifiedSince() != null) {
+            long since = parseDate(request.getIfModifiedSince());
+            // dates only have a resolution of seconds
+            if (since >= 0 && lastModified / 1000 <= since / 1000)
+                return notModified(result);
+        }
+
+        String range = request.getRange();
+        if (range == null || !rangeApplies(request.getIfRange(), etag, lastModified))
+            return result;
+
+        ByteBuffer buffer = result.getBodyBuffer();
+        FileRegion region = buffer == null ? result.getFileRegion() : null;
+        if (buffer == null && region == null)
+            return result;
+
+        long length = buffer != null ? buffer.remaining() : region.getCount();
+        long[] ranges = parseRanges(range, length);
+        if (ranges == null)
+            return result;
+        else if (ranges.length == 0)
+            return notSatisfiable(length);
+        else if (ranges.length == 2)
+            return partial(result, buffer, region, ranges[0], ranges[1], length);
+        else
+            return multipart(result, buffer, region, ranges, length);
+    }
+
+    /**
+     * Whether the given entity tag is in the list of an If-None-Match header, using the weak
+     * comparison.
+     */
+    static boolean matches(String list, String etag) {
+        if (list.trim().equals("*"))
+            return true;
+
+        String opaque = opaque(etag);
+        for (String candidate: list.split(","))
+            if (opaque(candidate.trim()).equals(opaque))
+                return true;
+        return false;
+    }
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+    /**
+     * If-Range needs a strong match of the entity tag or the exact modification date.
+     */
+    private static boolean rangeApplies(String ifRange, String etag, long lastModified) {
+        if (ifRange == null)
+            return true;
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        else
+            return lastModified >= 0 && parseDate(ifRange) == lastModified / 1000 * 1000;
+    }
+
+    /**
+     * Parses the value of a Range header for a body of the given length into pairs of first
+     * and last byte of the satisfiable ranges, sorted and merged. Returns an empty array if no
+     * range is satisfiable and null if the header is to be ignored: if it is invalid, doesn't
+     * address bytes or has more than Settings.maxRanges ranges.
+     */
+    static long[] parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > Settings.maxRanges)
+            return null;
+
+        long[] ranges = new long[specs.length * 2];
+        int count = 0;
+        try {
+            for (String spec: specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0)
+                    return null;
+
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start, end;
+                if (first.isEmpty()) {
+                    // a suffix of the body
+                    long suffix = digits(last);
+                    if (suffix == 0 || length == 0)
+                        continue;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = digits(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : digits(last);
+                    if (end < start)
+                        return null;
+                    if (start >= length)
+                        continue;
+                    end = Math.min(end, length - 1);
+                }
+                ranges[count++] = start;
+                ranges[count++] = end;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return merge(ranges, count);
+    }
+    private static long digits(String number) {
+        if (number.isEmpty())
+            throw new NumberFormatException("Empty number");
+        for (int i = 0; i < number.length(); i++)
+            if (number.charAt(i) < '0' || number.charAt(i) > '9')
+                throw new NumberFormatException(number);
+        return Long.parseLong(number);
+    }
+    /**
+     * Sorts ranges by their start and merges overlapping and adjacent ones.
+     */
+    private static long[] merge(long[] ranges, int count) {
+        int n = count / 2;
+        // an insertion sort of the pairs suffices for the few ranges we accept
+        for (int i = 1; i < n; i++)
+            for (int j = i; j > 0 && ranges[2 * j] < ranges[2 * (j - 1)]; j--) {
+                swap(ranges, 2 * j, 2 * (j - 1));
+                swap(ranges, 2 * j + 1, 2 * (j - 1) + 1);
+            }
+
+        int merged = 0;
+        for (int i = 0; i < n; i++) {
+            long start = ranges[2 * i], end = ranges[2 * i + 1];
+            if (merged > 0 && start <= ranges[merged - 1] + 1)
+                ranges[merged - 1] = Math.max(ranges[merged - 1], end);
+            else {
+                ranges[merged++] = start;
+                ranges[merged++] = end;
+            }
+        }
+        return Arrays.copyOf(ranges, merged);
+    }
+    private static void swap(long[] array, int i, int j) {
+        long value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+
+    /**
+     * Returns the header lines of a result (which must not have been added yet), without the
+     * ones named.
+     */
+    private static String headersWithout(Result result, String... names) {
+        result.addHeaders();
+        StringBuilder kept = new StringBuilder();
+        lines:
+        for (String line: result.getHeaders().split("\r\n")) {
+            if (line.isEmpty())
+                continue;
+            for (String name: names)
+                if (line.regionMatches(true, 0, name, 0, name.length()) && line.startsWith(":", name.length()))
+                    continue lines;
+            kept.append(line).append("\r\n");
+        }
+        return kept.toString();
+    }
+    /**
+     * Returns the value of a header in the given header lines or null if it isn't there.
+     */
+    static String headerValue(String headers, String name) {
+        for (String line: headers.split("\r\n"))
+            if (line.regionMatches(true, 0, name, 0, name.length()) && line.startsWith(":", name.length()))
+                return line.substring(name.length() + 1).trim();
+        return null;
+    }
+
+    /**
+     * A result with the given headers and no body.
+     */
+    private static Result empty(String resultCode, final String headers) {
+        return new Result(resultCode) {
+            @Override
+            protected void writeBody(OutputStream os) {
+                // no body
+            }
+            @Override
+            protected void addHeaders() {
+                addResponseHeaders(headers);
+            }
+        };
+    }
+    /**
+     * A 304 keeps the headers a cache would have to update, but has no body.
+     */
+    private static Result notModified(Result result) {
+        return empty("304 Not Modified",
+            headersWithout(result, "Content-Type", "Content-Length", "Content-Encoding", "Accept-Ranges"));
+    }
+    private static Result notSatisfiable(long length) {
+        return empty("416 Range Not Satisfiable", "Content-Range: bytes */" + length + "\r\nContent-Length: 0\r\n");
+    }
+
+    private static Result partial(Result result, final ByteBuffer buffer, final FileRegion region,
+            final long start, long end, long length) {
+        final long count = end - start + 1;
+        final String headers = headersWithout(result, "Content-Length") +
+            "Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n" +
+            "Content-Length: " + count + "\r\n";
+
+        return new Result("206 Partial Content") {
+            @Override
+            protected ByteBuffer getBodyBuffer() {
+                return buffer != null ? slice(buffer, start, count) : null;
+            }
+            @Override
+            protected FileRegion getFileRegion() {
+                return region != null ? region.slice(start, count) : null;
+            }
+            @Override
+            protected void writeBody(OutputStream os) throws IOException {
+                if (buffer != null)
+                    BufferPool.write(getBodyBuffer(), os);
+                else {
+                    FileRegion part = getFileRegion();
+                    try {
+                        part.transferTo(os);
+                    } finally {
+                        part.close();
+                    }
+                }
+            }
+            @Override
+            protected void addHeaders() {
+                addResponseHeaders(headers);
+            }
+        };
+    }
+    private static ByteBuffer slice(ByteBuffer body, long start, long count) {
+        ByteBuffer part = body.duplicate();
+        part.position(body.position() + (int) start);
+        part.limit(part.position() + (int) count);
+        return part;
+    }
+
+    /**
+     * Several ranges are sent as multipart/byteranges, each part with the content type of the
+     * body and its own Content-Range. Parts of a buffer are put together into a single buffer,
+     * parts of a file are streamed one after another.
+     */
+    private static Result multipart(Result result, ByteBuffer buffer, final FileRegion region,
+            final long[] ranges, long length) {
+        String headers = headersWithout(result, "Content-Length", "Content-Type");
+        String contentType = headerValue(result.getHeaders(), "Content-Type");
+
+        final byte[][] partHeads = new byte[ranges.length / 2][];
+        final byte[] end = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(HttpHandler.ASCII);
+        long total = end.length;
+        for (int i = 0; i < partHeads.length; i++) {
+            long start = ranges[2 * i], last = ranges[2 * i + 1];
+            partHeads[i] = ("\r\n--" + BOUNDARY + "\r\n" +
+                (contentType != null ? "Content-Type: " + contentType + "\r\n" : "") +
+                "Content-Range: bytes " + start + "-" + last + "/" + length + "\r\n\r\n").getBytes(HttpHandler.ASCII);
+            total += partHeads[i].length + last - start + 1;
+        }
+
+        final ByteBuffer body;
+        if (buffer != null) {
+            body = ByteBuffer.allocate((int) total);
+            for (int i = 0; i < partHeads.length; i++)
+                body.put(partHeads[i]).put(slice(buffer, ranges[2 * i], ranges[2 * i + 1] - ranges[2 * i] + 1));
+            body.put(end).flip();
+        } else
+            body = null;
+
+        // the server adds the Content-Length of a body source
+        final String allHeaders = headers +
+            "Content-Type: multipart/byteranges; boundary=" + BOUNDARY + "\r\n" +
+            (body != null ? "Content-Length: " + total + "\r\n" : "");
+        final long bodyLength = total;
+
+        return new Result("206 Partial Content") {
+            @Override
+            protected ByteBuffer getBodyBuffer() {
+                return body != null ? body.duplicate() : null;
+            }
+            @Override
+            protected BodySource getBodySource() {
+                return body == null ? new MultipartSource(region, ranges, partHeads, end, bodyLength) : null;
+            }
+            @Override
+            protected void writeBody(OutputStream os) throws IOException {
+                if (body != null)
+                    BufferPool.write(body.duplicate(), os);
+                else
+                    super.writeBody(os);
+            }
+            @Override
+            protected void addHeaders() {
+                addResponseHeaders(allHeaders);
+            }
+        };
+    }
+
+    /**
+     * The parts of a multipart body from a file: alternating part heads and file regions,
+     * followed by the closing boundary.
+     *
+     * The regions are read ahead into `prefetched` by FileRegion.READER, one buffer at a time.
+     * While the next buffer is being read, `read` returns 0 and the server is called back
+     * when it is there. The fields shared with the reader are guarded by the source.
+     */
+    private static final class MultipartSource extends BodySource {
+        private final static int PREFETCH_SIZE = 16384;
+
+        private final Object[] parts;
+        private final long length;
+        private int current = 0;
+        /**
+         * What was read ahead of the current region and not taken yet, or null.
+         */
+        private ByteBuffer prefetched;
+        private boolean reading = false;
+        private IOException failure;
+        private Runnable callback;
+
+        MultipartSource(FileRegion region, long[] ranges, byte[][] partHeads, byte[] end, long length) {
+            this.parts = new Object[partHeads.length * 2 + 1];
+            for (int i = 0; i < partHeads.length; i++) {
+                parts[2 * i] = ByteBuffer.wrap(partHeads[i]);
+                parts[2 * i + 1] = region.slice(ranges[2 * i], ranges[2 * i + 1] - ranges[2 * i] + 1);
+            }
+            parts[parts.length - 1] = ByteBuffer.wrap(end);
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+        @Override
+        public synchronized int read(ByteBuffer target) throws IOException {
+            if (failure != null)
+                throw failure;
+
+            int read = 0;
+            while (current < parts.length && target.hasRemaining()) {
+                Object part = parts[current];
+                ByteBuffer buffer = part instanceof ByteBuffer ? (ByteBuffer) part : prefetched;
+                if (buffer == null) {
+                    // the region belongs to the READER until it's done
+                    if (reading)
+                        break;
+                    FileRegion region = (FileRegion) part;
+                    if (region.isComplete()) {
+                        region.close();
+                        current++;
+                        continue;
+                    }
+                    prefetch(region);
+                    break;
+                }
+
+                int length = Math.min(buffer.remaining(), target.remaining());
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + length);
+                target.put(slice);
+                buffer.position(buffer.position() + length);
+                read += length;
+                if (!buffer.hasRemaining()) {
+                    if (buffer == prefetched)
+                        prefetched = null;
+                    else
+                        current++;
+                }
+            }
+            return read == 0 && current == parts.length ? -1 : read;
+        }
+        /**
+         * Makes the READER read the next part of the region into `prefetched`.
+         */
+        private void prefetch(final FileRegion region) {
+            reading = true;
+            try {
+                FileRegion.READER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteBuffer buffer = ByteBuffer.allocate(PREFETCH_SIZE);
+                        IOException exception = null;
+                        try {
+                            while (buffer.hasRemaining() && region.read(buffer) >= 0)
+                                ;
+                        } catch (IOException e) {
+                            exception = e;
+                        }
+                        buffer.flip();
+                        done(buffer, exception);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reading = false;
+                failure = new IOException("Couldn't read the parts of the body", e);
+            }
+        }
+        private void done(ByteBuffer buffer, IOException exception) {
+            Runnable callback;
+            synchronized (this) {
+                reading = false;
+                prefetched = buffer;
+                failure = exception;
+                callback = this.callback;
+                this.callback = null;
+            }
+            if (callback != null)
+                callback.run();
+        }
+        @Override
+        public void whenAvailable(Runnable callback) {
+            synchronized (this) {
+                if (reading) {
+                    this.callback = callback;
+                    return;
+                }
+            }
+            callback.run();
+        }
+        @Override
+        public void close() throws IOException {
+            for (Object part: parts)
+                if (part instanceof FileRegion)
+                    ((FileRegion) part).close();
+        }
+    }
+}
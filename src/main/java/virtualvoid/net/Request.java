@@ -0,0 +1,216 @@
+package virtualvoid.net;
+
+/**
+ * A request as parsed by the RequestParser. Only the request line and the headers the
+ * server cares about are kept, in their raw bytes. Strings are only created when a
+ * handler asks for them.
+ *
+ * Instances are owned and reused by their parser: a Request is only valid until
+ * the parser starts on the next request of the connection.
+ */
+public final class Request {
+    public enum Method {
+        GET, HEAD, POST, PUT, DELETE, OPTIONS, TRACE, CONNECT,
+        /** Any other method */
+        OTHER;
+
+        final byte[] name = name().getBytes(HttpHandler.ASCII);
+    }
+    /**
+     * The content codings we can serve besides identity.
+     */
+    public enum Encoding {
+        GZIP("gzip"), BR("br");
+
+        final String token;
+        final byte[] tokenBytes;
+
+        Encoding(String token) {
+            this.token = token;
+            this.tokenBytes = token.getBytes(HttpHandler.ASCII);
+        }
+        public String getToken() {
+            return token;
+        }
+        /**
+         * The bit of this encoding in `getAcceptedEncodings`.
+         */
+        public int bit() {
+            return 1 << ordinal();
+        }
+    }
+
+    Method method;
+    int majorVersion;
+    int minorVersion;
+
+    final byte[] uri;
+    int uriLength;
+    private String uriString;
+
+    boolean connectionClose;
+    boolean connectionKeepAlive;
+    long contentLength;
+    boolean transferEncoding;
+    int acceptedEncodings;
+
+    /**
+     * The values of the other well-known headers are kept in `values`. They are addressed by
+     * offset and length, a negative offset means the header wasn't sent.
+     */
+    final byte[] values;
+    int valuesLength;
+    int hostOffset, hostLength;
+    int ifNoneMatchOffset, ifNoneMatchLength;
+    int rangeOffset, rangeLength;
+    int ifModifiedSinceOffset, ifModifiedSinceLength;
+    int ifRangeOffset, ifRangeLength;
+
+    Request(int maxUriLength, int maxValuesLength) {
+        uri = new byte[maxUriLength];
+        values = new byte[maxValuesLength];
+        reset();
+    }
+
+    /**
+     * Returns a copy of this request which stays valid when the parser moves on, for handlers
+     * serving it on another thread.
+     */
+    Request copy() {
+        Request copy = new Request(uriLength, valuesLength);
+        System.arraycopy(uri, 0, copy.uri, 0, uriLength);
+        System.arraycopy(values, 0, copy.values, 0, valuesLength);
+        copy.method = method;
+        copy.majorVersion = majorVersion;
+        copy.minorVersion = minorVersion;
+        copy.uriLength = uriLength;
+        copy.uriString = uriString;
+        copy.connectionClose = connectionClose;
+        copy.connectionKeepAlive = connectionKeepAlive;
+        copy.contentLength = contentLength;
+        copy.transferEncoding = transferEncoding;
+        copy.acceptedEncodings = acceptedEncodings;
+        copy.valuesLength = valuesLength;
+        copy.hostOffset = hostOffset;
+        copy.hostLength = hostLength;
+        copy.ifNoneMatchOffset = ifNoneMatchOffset;
+        copy.ifNoneMatchLength = ifNoneMatchLength;
+        copy.rangeOffset = rangeOffset;
+        copy.rangeLength = rangeLength;
+        copy.ifModifiedSinceOffset = ifModifiedSinceOffset;
+        copy.ifModifiedSinceLength = ifModifiedSinceLength;
+        copy.ifRangeOffset = ifRangeOffset;
+        copy.ifRangeLength = ifRangeLength;
+        return copy;
+    }
+
+    void reset() {
+        method = null;
+        majorVersion = minorVersion = 0;
+        uriLength = 0;
+        uriString = null;
+        connectionClose = connectionKeepAlive = false;
+        contentLength = -1;
+        transferEncoding = false;
+        acceptedEncodings = 0;
+        valuesLength = 0;
+        hostOffset = ifNoneMatchOffset = rangeOffset = ifModifiedSinceOffset = ifRangeOffset = -1;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+    public String getUri() {
+        if (uriString == null)
+            uriString = new String(uri, 0, uriLength, HttpHandler.ASCII);
+        return uriString;
+    }
+    /**
+     * Returns the HTTP version as e.g. "1.1"
+     */
+    public String getVersion() {
+        if (majorVersion == 1 && minorVersion == 1)
+            return "1.1";
+        else if (majorVersion == 1 && minorVersion == 0)
+            return "1.0";
+        else
+            return majorVersion + "." + minorVersion;
+    }
+    public boolean isVersion(int major, int minor) {
+        return majorVersion == major && minorVersion == minor;
+    }
+
+    /**
+     * Whether the Connection header contained the token "close".
+     */
+    public boolean hasConnectionClose() {
+        return connectionClose;
+    }
+    /**
+     * Whether the Connection header contained the token "keep-alive".
+     */
+    public boolean hasConnectionKeepAlive() {
+        return connectionKeepAlive;
+    }
+    /**
+     * The value of the Content-Length header or -1 if there was none.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+    /**
+     * Whether the request has a body, announced by a Content-Length greater than 0 or a
+     * Transfer-Encoding header.
+     */
+    public boolean hasBody() {
+        return contentLength > 0 || transferEncoding;
+    }
+    /**
+     * The encodings the Accept-Encoding header allowed, as a combination of their bits.
+     */
+    public int getAcceptedEncodings() {
+        return acceptedEncodings;
+    }
+    public boolean accepts(Encoding encoding) {
+        return (acceptedEncodings & encoding.bit()) != 0;
+    }
+    /**
+     * The value of the Host header or null if there was none.
+     */
+    public String getHost() {
+        return value(hostOffset, hostLength);
+    }
+    /**
+     * The value of the If-None-Match header or null if there was none.
+     */
+    public String getIfNoneMatch() {
+        return value(ifNoneMatchOffset, ifNoneMatchLength);
+    }
+    /**
+     * The value of the Range header or null if there was none.
+     */
+    public String getRange() {
+        return value(rangeOffset, rangeLength);
+    }
+    /**
+     * The value of the If-Modified-Since header or null if there was none.
+     */
+    public String getIfModifiedSince() {
+        return value(ifModifiedSinceOffset, ifModifiedSinceLength);
+    }
+    /**
+     * The value of the If-Range header or null if there was none.
+     */
+    public String getIfRange() {
+        return value(ifRangeOffset, ifRangeLength);
+    }
+
+    private String value(int offset, int length) {
+        return offset < 0 ? null : new String(values, offset, length, HttpHandler.ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + getUri() + " HTTP/" + getVersion();
+    }
+}
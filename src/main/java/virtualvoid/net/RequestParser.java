@@ -0,0 +1,450 @@
+package virtualvoid.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental parser for request lines and headers working directly on the bytes received.
+ *
+ * The parser is fed with whatever bytes arrived so far and consumes them completely as long as
+ * the request head isn't complete yet, keeping partial tokens in its own buffers. It can thus be
+ * resumed after the next read without the caller having to keep or re-scan any bytes. When the
+ * head is complete, parsing stops right after it, so bytes of pipelined requests stay in the buffer.
+ *
+ * Methods and the headers the server cares about (Connection, Content-Length, Transfer-Encoding,
+ * Host, If-None-Match, If-Modified-Since, Range, If-Range, Accept-Encoding) are recognized by comparing
+ * bytes, other headers are skipped. No Strings are created while parsing, only the URI and header
+ * values the handler asks for are decoded later on (see Request). A parser and its Request are meant to be reused for all
+ * requests of a connection.
+ */
+final class RequestParser {
+    enum Status {
+        /** More bytes are needed */
+        INCOMPLETE,
+        COMPLETE,
+        BAD_REQUEST,
+        /** The head exceeds MAX_HEAD_SIZE */
+        TOO_LARGE
+    }
+
+    /**
+     * The maximal size of request line and headers together.
+     */
+    final static int MAX_HEAD_SIZE = 8192;
+    /**
+     * The maximal length of methods and header names we keep, longer ones can't be
+     * one we are interested in.
+     */
+    private final static int MAX_TOKEN_LENGTH = 32;
+
+    private enum State {
+        METHOD, URI, VERSION, REQUEST_LINE_END,
+        HEADER_START, HEADER_NAME, HEADER_VALUE_START, HEADER_VALUE, HEADER_LINE_END,
+        HEAD_END, DONE
+    }
+
+    private final static int OTHER_HEADER = 0;
+    private final static int CONNECTION = 1;
+    private final static int CONTENT_LENGTH = 2;
+    private final static int HOST = 3;
+    private final static int IF_NONE_MATCH = 4;
+    private final static int RANGE = 5;
+    private final static int ACCEPT_ENCODING = 6;
+    private final static int IF_MODIFIED_SINCE = 7;
+    private final static int IF_RANGE = 8;
+    private final static int TRANSFER_ENCODING = 9;
+    /**
+     * The lower-case names of the well-known headers indexed by their ids above.
+     */
+    private final static byte[][] HEADER_NAMES = {
+        null,
+        bytes("connection"),
+        bytes("content-length"),
+        bytes("host"),
+        bytes("if-none-match"),
+        bytes("range"),
+        bytes("accept-encoding"),
+        bytes("if-modified-since"),
+        bytes("if-range"),
+        bytes("transfer-encoding")
+    };
+    private final static byte[] CLOSE = bytes("close");
+    private final static byte[] KEEP_ALIVE = bytes("keep-alive");
+    private final static byte[] HTTP = bytes("HTTP/");
+
+    /**
+     * Characters allowed in methods and header names (tchar in RFC 7230)
+     */
+    private final static boolean[] TOKEN_CHARS = new boolean[128];
+    static {
+        for (char c = '0'; c <= '9'; c++)
+            TOKEN_CHARS[c] = true;
+        for (char c = 'a'; c <= 'z'; c++)
+            TOKEN_CHARS[c] = TOKEN_CHARS[Character.toUpperCase(c)] = true;
+        for (char c: "!#$%&'*+-.^_`|~".toCharArray())
+            TOKEN_CHARS[c] = true;
+    }
+
+    private final Request request = new Request(MAX_HEAD_SIZE, MAX_HEAD_SIZE);
+
+    private State state = State.METHOD;
+    private int headSize = 0;
+    private final byte[] token = new byte[MAX_TOKEN_LENGTH];
+    private int tokenLength = 0;
+    private boolean tokenTooLong = false;
+
+    private int header;
+    private int valueStart;
+    private int valueEnd;
+
+    Request getRequest() {
+        return request;
+    }
+
+    /**
+     * Whether parts of a request were received already.
+     */
+    boolean inProgress() {
+        return state != State.METHOD || tokenLength > 0;
+    }
+
+    /**
+     * Prepares parsing the next request.
+     */
+    void reset() {
+        request.reset();
+        state = State.METHOD;
+        headSize = 0;
+        tokenLength = 0;
+        tokenTooLong = false;
+    }
+
+    /**
+     * Consumes bytes from the buffer until the request head is complete or the buffer
+     * is exhausted.
+     */
+    Status parse(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (state == State.DONE)
+                return Status.COMPLETE;
+            if (++headSize > MAX_HEAD_SIZE)
+                return Status.TOO_LARGE;
+
+            byte b = in.get();
+            switch (state) {
+            case METHOD:
+                if (b == ' ') {
+                    if (!parseMethod())
+                        return Status.BAD_REQUEST;
+                    state = State.URI;
+                } else if ((b == '\r' || b == '\n') && tokenLength == 0)
+                    // be robust and ignore empty lines before the request line
+                    headSize--;
+                else if (isTokenChar(b) && tokenLength < MAX_TOKEN_LENGTH)
+                    token[tokenLength++] = b;
+                else
+                    return Status.BAD_REQUEST;
+                break;
+
+            case URI:
+                if (b == ' ') {
+                    if (request.uriLength == 0)
+                        return Status.BAD_REQUEST;
+                    tokenLength = 0;
+                    state = State.VERSION;
+                } else if ((b > ' ' && b != 127) || b < 0)
+                    request.uri[request.uriLength++] = b;
+                else
+                    return Status.BAD_REQUEST;
+                break;
+
+            case VERSION:
+                if (b == '\r')
+                    state = State.REQUEST_LINE_END;
+                else if (b == '\n') {
+                    if (!parseVersion())
+                        return Status.BAD_REQUEST;
+                    state = State.HEADER_START;
+                } else if (tokenLength < MAX_TOKEN_LENGTH)
+                    token[tokenLength++] = b;
+                else
+                    return Status.BAD_REQUEST;
+                break;
+
+            case REQUEST_LINE_END:
+                if (b != '\n' || !parseVersion())
+                    return Status.BAD_REQUEST;
+                state = State.HEADER_START;
+                break;
+
+            case HEADER_START:
+                if (b == '\r')
+                    state = State.HEAD_END;
+                else if (b == '\n') {
+                    state = State.DONE;
+                    return Status.COMPLETE;
+                } else if (isTokenChar(b)) {
+                    // this also rejects obsolete line folding
+                    tokenLength = 0;
+                    tokenTooLong = false;
+                    addNameChar(b);
+                    state = State.HEADER_NAME;
+                } else
+                    return Status.BAD_REQUEST;
+                break;
+
+            case HEADER_NAME:
+                if (b == ':') {
+                    header = tokenTooLong ? OTHER_HEADER : knownHeader();
+                    valueStart = valueEnd = request.valuesLength;
+                    state = State.HEADER_VALUE_START;
+                } else if (isTokenChar(b))
+                    addNameChar(b);
+                else
+                    return Status.BAD_REQUEST;
+                break;
+
+            case HEADER_VALUE_START:
+                if (b == ' ' || b == '\t')
+                    break;
+                state = State.HEADER_VALUE;
+                // fall through, b is part of the value
+            case HEADER_VALUE:
+                if (b == '\r')
+                    state = State.HEADER_LINE_END;
+                else if (b == '\n') {
+                    if (!endHeader())
+                        return Status.BAD_REQUEST;
+                    state = State.HEADER_START;
+                } else if ((b >= 0 && b < ' ' && b != '\t') || b == 127)
+                    return Status.BAD_REQUEST;
+                else if (header != OTHER_HEADER) {
+                    request.values[request.valuesLength++] = b;
+                    if (b != ' ' && b != '\t')
+                        valueEnd = request.valuesLength;
+                }
+                break;
+
+            case HEADER_LINE_END:
+                if (b != '\n' || !endHeader())
+                    return Status.BAD_REQUEST;
+                state = State.HEADER_START;
+                break;
+
+            case HEAD_END:
+                if (b != '\n')
+                    return Status.BAD_REQUEST;
+                state = State.DONE;
+                return Status.COMPLETE;
+
+            default:
+                throw new IllegalStateException("Unexpected state "+state);
+            }
+        }
+        return state == State.DONE ? Status.COMPLETE : Status.INCOMPLETE;
+    }
+
+    private static boolean isTokenChar(byte b) {
+        return b > 0 && TOKEN_CHARS[b];
+    }
+    private void addNameChar(byte b) {
+        if (tokenLength < MAX_TOKEN_LENGTH)
+            token[tokenLength++] = toLowerCase(b);
+        else
+            tokenTooLong = true;
+    }
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private boolean parseMethod() {
+        if (tokenLength == 0)
+            return false;
+
+        request.method = Request.Method.OTHER;
+        for (Request.Method method: Request.Method.values())
+            if (equals(token, tokenLength, method.name)) {
+                request.method = method;
+                break;
+            }
+        return true;
+    }
+    /**
+     * Parses the version in `token` which has to look like "HTTP/1.1".
+     */
+    private boolean parseVersion() {
+        if (tokenLength != HTTP.length + 3 || token[HTTP.length + 1] != '.')
+            return false;
+        for (int i = 0; i < HTTP.length; i++)
+            if (token[i] != HTTP[i])
+                return false;
+
+        int major = token[HTTP.length] - '0';
+        int minor = token[HTTP.length + 2] - '0';
+        if (major < 0 || major > 9 || minor < 0 || minor > 9)
+            return false;
+
+        request.majorVersion = major;
+        request.minorVersion = minor;
+        return true;
+    }
+
+    private int knownHeader() {
+        for (int i = 1; i < HEADER_NAMES.length; i++)
+            if (equals(token, tokenLength, HEADER_NAMES[i]))
+                return i;
+        return OTHER_HEADER;
+    }
+    /**
+     * Interprets the value of a well-known header which was collected in the request's values.
+     */
+    private boolean endHeader() {
+        int length = valueEnd - valueStart;
+        request.valuesLength = valueEnd;
+
+        switch (header) {
+        case CONNECTION:
+            parseConnection(request.values, valueStart, valueEnd);
+            request.valuesLength = valueStart;
+            break;
+        case CONTENT_LENGTH:
+            if (!parseContentLength(request.values, valueStart, valueEnd))
+                return false;
+            request.valuesLength = valueStart;
+            break;
+        case HOST:
+            request.hostOffset = valueStart;
+            request.hostLength = length;
+            break;
+        case IF_NONE_MATCH:
+            request.ifNoneMatchOffset = valueStart;
+            request.ifNoneMatchLength = length;
+            break;
+        case RANGE:
+            request.rangeOffset = valueStart;
+            request.rangeLength = length;
+            break;
+        case ACCEPT_ENCODING:
+            parseAcceptEncoding(request.values, valueStart, valueEnd);
+            request.valuesLength = valueStart;
+            break;
+        case IF_MODIFIED_SINCE:
+            request.ifModifiedSinceOffset = valueStart;
+            request.ifModifiedSinceLength = length;
+            break;
+        case IF_RANGE:
+            request.ifRangeOffset = valueStart;
+            request.ifRangeLength = length;
+            break;
+        case TRANSFER_ENCODING:
+            // whatever the coding, the request has a body (see Request.hasBody)
+            request.transferEncoding = true;
+            request.valuesLength = valueStart;
+            break;
+        }
+        return true;
+    }
+    /**
+     * Looks for the tokens "close" and "keep-alive" in a comma-separated list.
+     */
+    private void parseConnection(byte[] value, int start, int end) {
+        int tokenStart = start;
+        for (int i = start; i <= end; i++)
+            if (i == end || value[i] == ',') {
+                int s = tokenStart, e = i;
+                while (s < e && (value[s] == ' ' || value[s] == '\t'))
+                    s++;
+                while (e > s && (value[e - 1] == ' ' || value[e - 1] == '\t'))
+                    e--;
+
+                if (equalsIgnoreCase(value, s, e, CLOSE))
+                    request.connectionClose = true;
+                else if (equalsIgnoreCase(value, s, e, KEEP_ALIVE))
+                    request.connectionKeepAlive = true;
+
+                tokenStart = i + 1;
+            }
+    }
+    /**
+     * Collects the encodings we know from a comma-separated list of codings with optional
+     * parameters, leaving out those with a quality of 0. "*" stands for all of them.
+     */
+    private void parseAcceptEncoding(byte[] value, int start, int end) {
+        int tokenStart = start;
+        for (int i = start; i <= end; i++)
+            if (i == end || value[i] == ',') {
+                int s = tokenStart, e = tokenStart;
+                while (e < i && value[e] != ';')
+                    e++;
+                int parameters = e;
+                while (s < e && (value[s] == ' ' || value[s] == '\t'))
+                    s++;
+                while (e > s && (value[e - 1] == ' ' || value[e - 1] == '\t'))
+                    e--;
+
+                if (!hasZeroQuality(value, parameters, i)) {
+                    if (e - s == 1 && value[s] == '*')
+                        request.acceptedEncodings = -1;
+                    else
+                        for (Request.Encoding encoding: Request.Encoding.values())
+                            if (equalsIgnoreCase(value, s, e, encoding.tokenBytes))
+                                request.acceptedEncodings |= encoding.bit();
+                }
+                tokenStart = i + 1;
+            }
+    }
+    /**
+     * Whether the parameters of a coding (like ";q=0.000") contain a quality of 0.
+     */
+    private static boolean hasZeroQuality(byte[] value, int start, int end) {
+        for (int i = start; i + 2 < end; i++)
+            if (toLowerCase(value[i]) == 'q' && value[i + 1] == '=' && (value[i - 1] == ';' || value[i - 1] == ' ')) {
+                int j = i + 2;
+                if (value[j++] != '0')
+                    return false;
+                if (j < end && value[j] == '.')
+                    j++;
+                while (j < end && value[j] == '0')
+                    j++;
+                return j == end || value[j] == ' ' || value[j] == ';';
+            }
+        return false;
+    }
+    private boolean parseContentLength(byte[] value, int start, int end) {
+        if (start == end)
+            return false;
+
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9 || length > (Long.MAX_VALUE - digit) / 10)
+                return false;
+            length = length * 10 + digit;
+        }
+        // with differing lengths we and a proxy in front of us could disagree about where the
+        // body ends
+        if (request.contentLength >= 0 && request.contentLength != length)
+            return false;
+        request.contentLength = length;
+        return true;
+    }
+
+    private static boolean equals(byte[] bytes, int length, byte[] expected) {
+        if (length != expected.length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (bytes[i] != expected[i])
+                return false;
+        return true;
+    }
+    private static boolean equalsIgnoreCase(byte[] bytes, int start, int end, byte[] lowerCase) {
+        if (end - start != lowerCase.length)
+            return false;
+        for (int i = 0; i < lowerCase.length; i++)
+            if (toLowerCase(bytes[start + i]) != lowerCase[i])
+                return false;
+        return true;
+    }
+    private static byte[] bytes(String str) {
+        return str.getBytes(HttpHandler.ASCII);
+    }
+}
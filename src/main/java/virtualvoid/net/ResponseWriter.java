@@ -0,0 +1,165 @@
+package virtualvoid.net;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import virtualvoid.net.HttpHandler.Response;
+import virtualvoid.net.HttpHandler.Result;
+
+/**
+ * Writes the responses of a blocking connection. Responses are collected until `flush` is
+ * called, so that the answers to several pipelined requests leave in as few writes as possible.
+ *
+ * If the client's socket belongs to a channel (which is the case for the NioPooledWebServer),
+ * heads and bodies in memory are sent together with one gathering write and bodies in files
+ * are transferred directly (see FileRegion). Files up to Settings.gatherFileSize are read into
+ * pooled buffers and gathered, too, since transferring them costs more writes and TCP
+ * segments than copying them. Otherwise everything goes through a buffered stream.
+ * Streamed bodies (see BodySource) are copied as they are produced, this thread waits whenever
+ * the source has nothing available, just like it waits for responses still pending. With a
+ * channel, each chunk of a chunked body leaves with one gathering write.
+ */
+final class ResponseWriter {
+    private final GatheringByteChannel channel;
+    private final OutputStream os;
+    private final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    /**
+     * The buffers from the BufferPool among `pending`, released once they were written.
+     */
+    private final List<ByteBuffer> pooled = new ArrayList<ByteBuffer>();
+    /**
+     * Whether anything was added since the last flush.
+     */
+    private boolean unflushed = false;
+
+    /**
+     * @param channel the channel `os` writes to or null
+     */
+    ResponseWriter(GatheringByteChannel channel, OutputStream os) {
+        this.channel = channel;
+        this.os = channel != null ? os : new BufferedOutputStream(os);
+    }
+
+    /**
+     * Adds a response, waiting for it first if it's still pending.
+     *
+     * @return whether the connection may be kept open afterwards
+     */
+    boolean add(Response response) throws IOException {
+        if (response.pending != null)
+            response = await(response.pending);
+        write(response);
+        return response.keepAlive;
+    }
+    private Response await(HttpHandler.Pending pending) throws IOException {
+        // don't hold back the responses to earlier requests while we wait
+        flush();
+        try {
+            Response response = pending.await(Settings.routeTimeout);
+            if (response == null) {
+                Metrics.increment(Metrics.Counter.TIMEOUTS);
+                return HttpHandler.unavailable(pending.request);
+            }
+            return response;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+    }
+    private void write(Response response) throws IOException {
+        unflushed = true;
+        pending.add(response.head);
+
+        Result result = response.body;
+        if (result == null)
+            return;
+
+        if (response.source != null) {
+            long start = Metrics.start();
+            writePending();
+            try {
+                if (response.chunked) {
+                    ChunkedOutputStream chunks = new ChunkedOutputStream(os, channel);
+                    response.source.transferTo(chunks);
+                    chunks.finish();
+                } else
+                    response.source.transferTo(os);
+            } finally {
+                HttpHandler.closeQuietly(response.source);
+            }
+            Metrics.record(Metrics.Phase.WRITE, start);
+            return;
+        }
+
+        if (channel != null) {
+            ByteBuffer body = result.getBodyBuffer();
+            if (body != null) {
+                pending.add(body);
+                return;
+            }
+
+            FileRegion region = result.getFileRegion();
+            if (region != null && region.getCount() <= Settings.gatherFileSize) {
+                body = region.readAll(BufferPool.DIRECT);
+                pooled.add(body);
+                pending.add(body);
+                return;
+            } else if (region != null) {
+                flush();
+                long start = Metrics.start();
+                try {
+                    region.transferTo(channel);
+                } finally {
+                    region.close();
+                }
+                Metrics.record(Metrics.Phase.WRITE, start);
+                return;
+            }
+        }
+
+        long start = Metrics.start();
+        writePending();
+        result.writeBody(os);
+        Metrics.record(Metrics.Phase.WRITE, start);
+    }
+
+    /**
+     * Writes everything collected so far.
+     */
+    void flush() throws IOException {
+        if (!unflushed)
+            return;
+
+        long start = Metrics.start();
+        writePending();
+        os.flush();
+        unflushed = false;
+        Metrics.record(Metrics.Phase.WRITE, start);
+    }
+
+    private void writePending() throws IOException {
+        if (pending.isEmpty())
+            return;
+
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+        pending.clear();
+
+        try {
+            if (channel != null)
+                while (HttpHandler.hasRemaining(buffers))
+                    channel.write(buffers);
+            else
+                for (ByteBuffer buffer: buffers)
+                    BufferPool.write(buffer, os);
+        } finally {
+            for (ByteBuffer buffer: pooled)
+                BufferPool.DIRECT.release(buffer);
+            pooled.clear();
+        }
+    }
+}
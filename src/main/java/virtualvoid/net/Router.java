@@ -0,0 +1,236 @@
+package virtualvoid.net;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An HttpHandler dispatching requests by method and path to other HttpHandlers, so that
+ * several of them (e.g. the static site and health or metrics endpoints) can share one server.
+ *
+ * Routes are given by a path prefix. A prefix matches the path if the path equals it or continues
+ * it with a new segment: "/api" matches "/api" and "/api/users" but not "/apis", while "/"
+ * matches everything. Of all matching prefixes the longest one wins. The prefixes are compiled into
+ * a trie over their bytes, so a request is routed by walking its raw URI once, without creating
+ * any strings or running any regular expressions. Routes have to be added before the router
+ * serves requests.
+ *
+ * A route may be restricted to some methods, a request to a path whose route doesn't take its
+ * method is answered with 405. Note, that the servers don't read request bodies, so only GET
+ * and HEAD requests reach any handler.
+ *
+ * By default a route's handler runs on the thread which parsed the request. A route given an
+ * executor runs its handler there instead and the connection waits for the response (see
+ * HttpHandler.Pending): the NonBlockingWebServer without blocking its selector loop, the other
+ * servers blocking the connection's thread, for Settings.routeTimeout at most. Slow routes thus
+ * only tie up their own executor and can't starve fast ones. When the executor rejects a
+ * request, the client gets a 503.
+ */
+public class Router extends HttpHandler {
+    private static final int METHODS = Request.Method.values().length;
+
+    private static final class Route {
+        final HttpHandler handler;
+        final Executor executor;
+
+        Route(HttpHandler handler, Executor executor) {
+            this.handler = handler;
+            this.executor = executor;
+        }
+    }
+    /**
+     * A node of the trie, standing for the prefix spelled by the bytes on the way to it.
+     * `routes` is null unless a route ends here, then it holds the route for each method.
+     */
+    private static final class Node {
+        byte[] labels = new byte[0];
+        Node[] children = new Node[0];
+        Route[] routes;
+        /**
+         * Whether the prefix ends with a slash, in which case it matches any continuation.
+         */
+        boolean directory;
+
+        Node child(byte label) {
+            for (int i = 0; i < labels.length; i++)
+                if (labels[i] == label)
+                    return children[i];
+            return null;
+        }
+        Node addChild(byte label) {
+            Node child = child(label);
+            if (child == null) {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                labels[labels.length - 1] = label;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Routes requests with any method to the handler, on the thread parsing the request.
+     */
+    public Router route(String prefix, HttpHandler handler) {
+        return route(prefix, handler, null);
+    }
+    /**
+     * Routes requests with the given methods (any if none are given) to the handler, on the
+     * executor if it isn't null.
+     */
+    public Router route(String prefix, HttpHandler handler, Executor executor, Request.Method... methods) {
+        if (!prefix.startsWith("/"))
+            throw new IllegalArgumentException("Route prefixes have to start with '/' but got "+prefix);
+
+        byte[] bytes = prefix.getBytes(ASCII);
+        Node node = root;
+        for (byte b: bytes)
+            node = node.addChild(b);
+        if (node.routes == null)
+            node.routes = new Route[METHODS];
+        node.directory = bytes[bytes.length - 1] == '/';
+
+        Route route = new Route(handler, executor);
+        if (methods.length == 0)
+            Arrays.fill(node.routes, route);
+        else
+            for (Request.Method method: methods)
+                node.routes[method.ordinal()] = route;
+        return this;
+    }
+
+    /**
+     * Returns the node of the longest prefix matching the path of the request, or null.
+     */
+    private Node match(Request request) {
+        return match(request.uri, request.uriLength);
+    }
+    private Node match(byte[] uri, int end) {
+        int start = pathStart(uri, end);
+        if (start < 0)
+            return null;
+
+        Node node = root;
+        Node matched = null;
+        for (int i = start; node != null; i++) {
+            if (node.routes != null && (node.directory || i == end || isSegmentEnd(uri[i])))
+                matched = node;
+            if (i == end || uri[i] == '?' || uri[i] == '#')
+                break;
+            node = node.child(uri[i]);
+        }
+        return matched;
+    }
+    private static boolean isSegmentEnd(byte b) {
+        return b == '/' || b == '?' || b == '#';
+    }
+    /**
+     * The index where the path starts, skipping scheme and authority of absolute URIs as sent to
+     * proxies, or -1 if there is no path.
+     */
+    private static int pathStart(byte[] uri, int length) {
+        if (length > 0 && uri[0] == '/')
+            return 0;
+
+        for (int i = 0; i + 2 < length; i++)
+            if (uri[i] == ':' && uri[i + 1] == '/' && uri[i + 2] == '/') {
+                for (int j = i + 3; j < length; j++)
+                    if (uri[j] == '/')
+                        return j;
+                break;
+            }
+        return -1;
+    }
+
+    @Override
+    Response respond(Request request, final boolean mayKeepAlive) {
+        Node node = match(request);
+        Route route = node != null ? node.routes[request.getMethod().ordinal()] : null;
+        if (route == null)
+            // answered by serve or, for metrics or unsupported requests, by HttpHandler itself
+            return super.respond(request, mayKeepAlive);
+        if (route.executor == null)
+            return route.handler.respond(request, mayKeepAlive);
+
+        final HttpHandler handler = route.handler;
+        final Request copy = request.copy();
+        final Pending pending = new Pending(copy);
+        try {
+            route.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Response response;
+                    try {
+                        response = handler.respond(copy, mayKeepAlive);
+                    } catch (RuntimeException e) {
+                        System.err.println("Handler failed on "+copy+": "+e);
+                        Metrics.increment(Metrics.Counter.ERRORS);
+                        response = fail("500 Internal Server Error", copy);
+                    }
+                    pending.complete(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.increment(Metrics.Counter.REJECTED);
+            return unavailable(request);
+        }
+        return new Response(pending);
+    }
+
+    /**
+     * Answers requests without a route, which `respond` leaves to HttpHandler.
+     */
+    @Override
+    protected Result serve(Request request) {
+        return unrouted(match(request));
+    }
+    /**
+     * Serves a URI like a GET request for it, with the route's handler running on the calling
+     * thread.
+     */
+    @Override
+    protected Result serve(String uri) {
+        byte[] bytes = uri.getBytes(ASCII);
+        Node node = match(bytes, bytes.length);
+        Route route = node != null ? node.routes[Request.Method.GET.ordinal()] : null;
+        return route != null ? route.handler.serve(uri) : unrouted(node);
+    }
+    /**
+     * The result for a request whose method has no route at the given node (null if the path
+     * has none at all).
+     */
+    private static Result unrouted(Node node) {
+        if (node == null)
+            return new EmptyResult("404 Not Found", null);
+
+        StringBuilder allowed = new StringBuilder();
+        for (Request.Method method: Request.Method.values())
+            if (node.routes[method.ordinal()] != null)
+                allowed.append(allowed.length() > 0 ? ", " : "").append(method);
+        return new EmptyResult("405 Method Not Allowed", allowed.toString());
+    }
+
+    private static final class EmptyResult extends Result {
+        private final String allow;
+
+        EmptyResult(String resultCode, String allow) {
+            super(resultCode);
+            this.allow = allow;
+        }
+        @Override
+        protected void writeBody(OutputStream os) {
+            // no body
+        }
+        @Override
+        protected void addHeaders() {
+            if (allow != null)
+                addResponseHeader("Allow", allow);
+            addResponseHeader("Content-Length", "0");
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package virtualvoid.net;
+
+import static virtualvoid.net.Logging.log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector together with the thread running it. The NonBlockingWebServer runs several of
+ * these loops, usually one per core, and distributes connections among them. Each connection
+ * belongs to exactly one loop for its whole lifetime, so its HttpConnection is only ever touched
+ * by that loop's thread.
+ *
+ * Since only the thread selecting may register channels without risking to block on the
+ * selector, channels from other threads are queued and picked up after waking up the selector.
+ * A loop may also accept connections itself if it was given a server channel of its own.
+ * Likewise, connections waiting for a body source are resumed through a queue when the source
+ * calls back from another thread.
+ *
+ * All loops of a server share its ConnectionLimits. A loop accepting itself stops being
+ * interested in accepting while the server has too many connections open, and rejects
+ * connections of clients having too many.
+ *
+ * Requests are processed on the loop's thread, so a handler failing with an exception only
+ * closes its own connection, with a 500 if no response was being written yet. The loop keeps
+ * serving all other connections.
+ *
+ * When the server is stopping, the loop stops accepting (if it did), closes the connections
+ * waiting for their next request and keeps serving the others until they are closed, too. Their
+ * responses tell the clients to close the connection. If that takes too long, the loop is aborted
+ * and closes all connections.
+ */
+final class SelectorLoop implements Runnable {
+    private final HttpHandler handler;
+    private final ConnectionLimits limits;
+    private final Selector selector;
+    /**
+     * The key of the server channel if this loop accepts itself, or null.
+     */
+    private SelectionKey acceptKey;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<HttpConnection> resumed = new ConcurrentLinkedQueue<HttpConnection>();
+    /**
+     * The number of connections handed to this loop and not yet closed.
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+    /**
+     * With the default tick of 100ms, one revolution of the wheel covers the default keep-alive
+     * timeout and longer timeouts are still fine.
+     */
+    private final static int TIMEOUT_SLOTS = 512;
+    private final TimerWheel timeouts = new TimerWheel(Settings.timeoutTick, TIMEOUT_SLOTS, System.currentTimeMillis());
+
+    private volatile boolean stopping = false;
+    private volatile boolean aborting = false;
+    /**
+     * Whether this loop's thread closed the idle connections since it was stopped.
+     */
+    private boolean closedIdle = false;
+
+    SelectorLoop(HttpHandler handler, ConnectionLimits limits) throws IOException {
+        this.handler = handler;
+        this.limits = limits;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted connection, already counted by the ConnectionLimits, to this loop.
+     * May be called from any thread.
+     */
+    void register(SocketChannel clientChannel) {
+        connections.incrementAndGet();
+        pending.add(clientChannel);
+        selector.wakeup();
+    }
+    /**
+     * Makes the loop continue with a connection which was waiting. May be called from any thread.
+     */
+    void resume(HttpConnection connection) {
+        resumed.add(connection);
+        selector.wakeup();
+    }
+    /**
+     * Starts stopping the loop gracefully. May be called from any thread.
+     */
+    void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+    /**
+     * Makes a stopping loop close all its connections. May be called from any thread.
+     */
+    void abort() {
+        aborting = true;
+        selector.wakeup();
+    }
+    boolean isStopping() {
+        return stopping;
+    }
+    /**
+     * Makes this loop accept connections from the given channel itself. Must be called
+     * before the loop is started.
+     */
+    void listen(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    int load() {
+        return connections.get();
+    }
+    /**
+     * The timeouts of this loop's connections. May only be used by the loop's thread.
+     */
+    TimerWheel getTimeouts() {
+        return timeouts;
+    }
+    /**
+     * Called by HttpConnection when it was closed.
+     */
+    void closed(InetAddress address) {
+        connections.decrementAndGet();
+        limits.release(address);
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                // wake up for the next tick of the wheel if there's anything to expire
+                long timeout = timeouts.untilNextTick(System.currentTimeMillis());
+                // connections closed by other loops don't wake us, so look again after a tick
+                if (!updateAccepting())
+                    timeout = timeout < 0 ? Settings.timeoutTick : Math.min(timeout, Settings.timeoutTick);
+                selector.select(Math.max(timeout, 0));
+            } catch (IOException exception) {
+                System.err.println("Selecting failed, stopping loop: "+exception.getMessage());
+                return;
+            }
+            long now = System.currentTimeMillis();
+
+            registerPending(now);
+            HttpConnection connection;
+            while ((connection = resumed.poll()) != null)
+                try {
+                    connection.resume(now);
+                } catch (IOException exception) {
+                    fail(connection, exception);
+                } catch (RuntimeException exception) {
+                    fail(connection, exception);
+                }
+
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+
+                if (!key.isValid())
+                    continue;
+
+                if (key.isAcceptable())
+                    accept((ServerSocketChannel) key.channel(), now);
+                else {
+                    connection = (HttpConnection) key.attachment();
+                    try {
+                        connection.handle(now);
+                    } catch (IOException exception) {
+                        fail(connection, exception);
+                    } catch (RuntimeException exception) {
+                        // requests are processed on this thread, so a failing handler must
+                        // only cost its own connection and not the loop with all others
+                        fail(connection, exception);
+                    }
+                }
+            }
+
+            timeouts.advance(now);
+            if (stopping && drain())
+                return;
+        }
+    }
+    /**
+     * Called after each round while stopping.
+     *
+     * @return true if all connections are closed and the loop is done
+     */
+    private boolean drain() {
+        for (SelectionKey key: selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof HttpConnection) {
+                if (aborting)
+                    ((HttpConnection) attachment).close();
+                else if (!closedIdle)
+                    ((HttpConnection) attachment).closeIfIdle();
+            } else if (key.channel() instanceof ServerSocketChannel)
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // we don't accept anymore either way
+                }
+        }
+        closedIdle = true;
+
+        if (connections.get() > 0)
+            return false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+        return true;
+    }
+    /**
+     * Makes the loop stop or go on accepting, depending on the number of open connections.
+     *
+     * @return false if accepting is paused
+     */
+    private boolean updateAccepting() {
+        if (acceptKey == null || !acceptKey.isValid())
+            return true;
+        boolean accepting = limits.mayAccept();
+        int ops = accepting ? SelectionKey.OP_ACCEPT : 0;
+        if (acceptKey.interestOps() != ops)
+            acceptKey.interestOps(ops);
+        return accepting;
+    }
+    private static void fail(HttpConnection connection, IOException exception) {
+        Metrics.increment(Metrics.Counter.ERRORS);
+        System.err.println("Error when handling request: "+exception.getMessage());
+        connection.close();
+    }
+    private static void fail(HttpConnection connection, RuntimeException exception) {
+        Metrics.increment(Metrics.Counter.ERRORS);
+        System.err.println("Handler failed: "+exception);
+        connection.abort();
+    }
+
+    private void registerPending(long now) {
+        SocketChannel clientChannel;
+        while ((clientChannel = pending.poll()) != null)
+            open(clientChannel, now);
+    }
+    private void accept(ServerSocketChannel serverChannel, long now) {
+        try {
+            SocketChannel clientChannel;
+            while (limits.mayAccept() && (clientChannel = serverChannel.accept()) != null) {
+                log("New connection: %s", clientChannel);
+                Metrics.increment(Metrics.Counter.CONNECTIONS_ACCEPTED);
+                if (!limits.acquire(clientChannel.socket().getInetAddress())) {
+                    // the client has too many connections already, the channel is still blocking
+                    HttpHandler.reject(clientChannel.socket());
+                    continue;
+                }
+                connections.incrementAndGet();
+                open(clientChannel, now);
+            }
+        } catch (IOException exception) {
+            System.err.println("Error when accepting connection: "+exception.getMessage());
+        }
+    }
+    private void open(SocketChannel clientChannel, long now) {
+        InetAddress address = clientChannel.socket().getInetAddress();
+        try {
+            new HttpConnection(handler, clientChannel, address, this, selector, now);
+        } catch (IOException exception) {
+            System.err.println("Couldn't register connection: "+exception.getMessage());
+            closed(address);
+            try {
+                clientChannel.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
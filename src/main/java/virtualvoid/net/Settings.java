@@ -1,12 +1,51 @@
 package virtualvoid.net;
 
 import java.io.File;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * The configuration of the servers. The values given here are the defaults, each of them can be
+ * overridden in the properties file Configuration.FILE (by its field name, e.g.
+ * "keepAliveTimeout=5000") or with a system property (e.g. "-Dserver.keepAliveTimeout=5000"),
+ * which wins over the file. See Configuration for how values are parsed and checked against
+ * the bounds given by Min and AtMost.
+ *
+ * Settings marked as Reloadable are applied while the servers are running when the file
+ * changes, so they can be tuned without restarting and dropping all keep-alive connections.
+ * The others are only read at startup.
+ */
 public abstract class Settings {
+    /**
+     * Marks settings which take effect when changed at runtime.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Reloadable {}
+    /**
+     * The smallest value a numeric setting may take, smaller ones are refused when loading.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Min {
+        long value();
+    }
+    /**
+     * Names the setting a numeric setting may not be larger than.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface AtMost {
+        String value();
+    }
+
     // This is the most important configuration to do and you would have to find
     // out experimentally which is the setting for the pool.
     // Without keep-alive and when the handling of request is mainly CPU-bound
@@ -25,29 +64,330 @@ public abstract class Settings {
     // One possibility is to decouple connections and threads by putting open, waiting connections into
     // a list which is monitored for new data. When new data arrives the requests are scheduled again
     // for processing. (not implemented here)
+    //
+    // Since Java 21, virtual threads make threads waiting for I/O so cheap that the simplest model,
+    // one thread per connection for its whole lifetime, scales to very many connections again
+    // (see VirtualThreadWebServer). With `virtualThreads` set, the pooled servers use them, too.
+    //
+    // Otherwise the AdaptiveExecutor measures WT/ST of its tasks and applies the formula above
+    // itself, within the bounds given below. Its queue is bounded, so when the pool can't keep up,
+    // clients get a 503 instead of waiting in an ever-growing queue.
     public final static ExecutorService createExecutor() {
-        return Executors.newFixedThreadPool(2);
+        if (virtualThreads)
+            return createVirtualThreadExecutor();
+
+        AdaptiveExecutor executor = new AdaptiveExecutor(poolMinThreads, poolMaxThreads, poolQueueSize, poolResizeInterval);
+        // the listener mustn't keep executors of servers which are gone alive
+        final WeakReference<AdaptiveExecutor> reference = new WeakReference<AdaptiveExecutor>(executor);
+        Configuration.addListener(new Runnable() {
+            @Override
+            public void run() {
+                AdaptiveExecutor executor = reference.get();
+                if (executor != null)
+                    executor.setBounds(poolMinThreads, poolMaxThreads);
+                else
+                    Configuration.removeListener(this);
+            }
+        });
+        return executor;
     }
+    /**
+     * Creates an executor starting a new virtual thread for each task. Before Java 21
+     * platform threads are used instead.
+     */
+    public final static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21, using platform threads instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+    /**
+     * Use virtual threads instead of the adaptive pool in `createExecutor`.
+     */
+    public static boolean virtualThreads = false;
+    /**
+     * The bounds within which the pool adapts its number of threads.
+     */
+    @Reloadable
+    @Min(1)
+    @AtMost("poolMaxThreads")
+    public static volatile int poolMinThreads = 2;
+    @Reloadable
+    @Min(1)
+    public static volatile int poolMaxThreads = 256;
+    /**
+     * The number of connections waiting for a thread before further ones are rejected.
+     */
+    @Min(1)
+    public static int poolQueueSize = 1024;
+    /**
+     * The pool is resized at most this often (in milliseconds).
+     */
+    @Min(1)
+    public static long poolResizeInterval = 1000;
 
     /**
-     * The handler which handles requests.
+     * The port to listen on.
      */
-    public final static Handler handler = new StaticHttpFileHandler(new File("www"));
+    @Min(0)
+    public static int port = 8020;
     /**
-     * The endpoint to bind to.
+     * The number of connections the operating system queues for us while we don't accept them,
+     * e.g. while we have Settings.maxConnections open. Further ones are refused.
      */
-    public final static SocketAddress endpoint = new InetSocketAddress(8020);
+    @Min(0)
+    public static int acceptBacklog = 128;
+    /**
+     * The number of connections a server keeps open at most. While it has that many, it stops
+     * accepting (see ConnectionLimits).
+     */
+    @Reloadable
+    @Min(1)
+    public static volatile int maxConnections = 10000;
+    /**
+     * The number of connections a single client address may keep open, further ones get a 503.
+     * 0 disables the limit, since clients behind a proxy or NAT share their address.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile int maxConnectionsPerAddress = 0;
+    /**
+     * The number of seconds after which clients turned away with a 503 are told to try again,
+     * 0 leaves out the Retry-After header. 503s are rendered once, so this needs a restart.
+     */
+    @Min(0)
+    public static int retryAfter = 1;
     /**
      * The socket timeout between connection accept and expecting the first request.
      */
-    public final static int firstReadTimeout = 5000;
+    @Reloadable
+    @Min(1)
+    public static volatile int firstReadTimeout = 5000;
     /**
      * The timeout when waiting for headers.
      */
-    public final static int headerTimeout = 2000;
+    @Reloadable
+    @Min(1)
+    public static volatile int headerTimeout = 2000;
     /**
      * The timeout in keep-alive connections when waiting for the next request
      */
-    public final static int keepAliveTimeout = 20000;
+    @Reloadable
+    @Min(1)
+    public static volatile int keepAliveTimeout = 20000;
+    /**
+     * How long a connection waits for a response produced on a route's executor (see Router)
+     * in milliseconds before it gives up with a 503.
+     */
+    @Reloadable
+    @Min(1)
+    public static volatile int routeTimeout = 30000;
+    /**
+     * How long a server being stopped waits for its connections to finish their requests
+     * (in milliseconds) before it closes them.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile long shutdownTimeout = 10000;
+    /**
+     * Whether to disable Nagle's algorithm (TCP_NODELAY) on accepted connections. Responses
+     * leave in as few writes as possible anyway (see ResponseWriter and HttpConnection), so
+     * Nagle's algorithm saves no segments but holds back the end of a response until the client
+     * acknowledged the previous segment, which it may delay by up to 40ms.
+     */
+    public static boolean tcpNoDelay = true;
+    /**
+     * File bodies up to this size are read into memory and written with their head (and the
+     * responses to pipelined requests around them) in one gathering write, instead of being
+     * transferred on their own after it. That saves a write and, with tcpNoDelay, a segment per
+     * response, like corking the socket would. 0 transfers all files on their own. Only the
+     * blocking servers do this: the NonBlockingWebServer mustn't read files on its selector
+     * threads, it only gathers bodies already in memory (see FileCache and MappedFileCache).
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile int gatherFileSize = 16 * 1024;
+
+    /**
+     * The precision (in milliseconds) with which the NIO servers enforce the timeouts above.
+     * Their timer wheels advance in ticks of this length.
+     */
+    @Min(1)
+    public static int timeoutTick = 100;
+
+    /**
+     * The maximal number of bytes of hot files StaticHttpFileHandler keeps in memory together
+     * with their response heads, 0 disables the cache.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile long fileCacheSize = 32 * 1024 * 1024;
+    /**
+     * The maximal size of a single file to be cached.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile long fileCacheMaxFileSize = 1024 * 1024;
+    /**
+     * Cached files are checked for modifications at most this often (in milliseconds).
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile long fileCacheRevalidateInterval = 1000;
+
+    /**
+     * How long StaticHttpFileHandler relies on what it found out about the file (or its absence)
+     * for a path (in milliseconds), before it looks again.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile long pathCacheTtl = 1000;
+    /**
+     * The maximal number of paths whose files StaticHttpFileHandler remembers.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile int pathCacheSize = 10000;
 
+    /**
+     * Whether StaticHttpFileHandler serves compressed files to clients accepting them:
+     * precompressed siblings (".br", ".gz") and, with the FileCache enabled, gzip copies of
+     * compressible files made on first request.
+     */
+    @Reloadable
+    public static volatile boolean compression = true;
+    /**
+     * The maximal number of bytes of files StaticHttpFileHandler compresses in the background
+     * at once. Further files are served uncompressed until the compressed copies of earlier ones
+     * are done, so a burst of requests for new files can't make us compress lots of them.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile long compressionMaxPending = 4 * 1024 * 1024;
+    /**
+     * Requests for more ranges than this get the whole file, so that clients can't make us
+     * send lots of tiny parts.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile int maxRanges = 16;
+
+    /**
+     * The maximal number of bytes of small files StaticHttpFileHandler keeps memory-mapped,
+     * 0 disables mapping. Files truncated while being sent from their mapping may crash the
+     * sending thread, so only enable this if served files aren't changed in place.
+     */
+    @Min(0)
+    public static long mappedFileCacheSize = 0;
+    /**
+     * The maximal size of a single file to be kept memory-mapped. Only files not held by
+     * the file cache above are mapped.
+     */
+    @Min(0)
+    public static long mappedFileMaxSize = 64 * 1024;
+
+    /**
+     * The maximal number of bytes BufferPool keeps in its shared queues, for each of direct
+     * and heap buffers. Buffers cached by threads come on top.
+     */
+    @Min(0)
+    public static long bufferPoolSize = 16 * 1024 * 1024;
+    /**
+     * Report pooled buffers which are garbage collected without being released. This is
+     * expensive, only use it to find leaks.
+     */
+    public static boolean bufferPoolDebug = false;
+
+    /**
+     * The number of selector loops the NonBlockingWebServer spreads its connections over.
+     */
+    @Min(1)
+    public static int selectorThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * How the NonBlockingWebServer distributes accepted connections among its selector loops.
+     */
+    public static NonBlockingWebServer.Balancing balancing = NonBlockingWebServer.Balancing.ROUND_ROBIN;
+    /**
+     * If set, each selector loop of the NonBlockingWebServer binds its own server channel
+     * with SO_REUSEPORT instead of getting connections from a single acceptor. Only
+     * available on some platforms (e.g. Linux), otherwise the acceptor is used.
+     */
+    public static boolean reusePort = false;
+
+    /**
+     * Messages below this level are dropped, DEBUG logs each connection and request.
+     */
+    @Reloadable
+    public static volatile Logging.Level logLevel = Logging.Level.INFO;
+    /**
+     * The file each request is logged to (see AccessLog), null disables the access log.
+     */
+    public static String accessLog = null;
+    /**
+     * The number of access log entries buffered for the writer, rounded up to a power of two.
+     * Entries which don't fit are dropped.
+     */
+    @Min(1)
+    public static int accessLogBufferSize = 16384;
+    /**
+     * How often the access log writer writes the buffered entries (in milliseconds).
+     */
+    @Reloadable
+    @Min(1)
+    public static volatile long accessLogFlushInterval = 100;
+    /**
+     * The size at which the access log is rotated.
+     */
+    @Reloadable
+    @Min(1)
+    public static volatile long accessLogMaxFileSize = 64 * 1024 * 1024;
+    /**
+     * The number of rotated access logs kept, 0 keeps none.
+     */
+    @Reloadable
+    @Min(0)
+    public static volatile int accessLogFiles = 5;
+
+    /**
+     * Whether servers record counters and latencies (see Metrics).
+     */
+    @Reloadable
+    public static volatile boolean metrics = true;
+    /**
+     * The path under which the handler answers with the current metrics (see StatsHandler),
+     * e.g. "/_stats". They tell anybody about the load of the server, so they are off (null)
+     * unless an operator opts in.
+     */
+    public static String statsUri = null;
+
+    /**
+     * How often the properties file is checked for changes (in milliseconds), 0 disables
+     * reloading.
+     */
+    @Min(0)
+    public static long reloadInterval = 1000;
+
+    // everything above has to be initialized before it is overridden, everything below
+    // depends on the outcome
+    static {
+        Configuration.load();
+    }
+
+    /**
+     * The handler which handles requests: the static site together with a health check and,
+     * if `statsUri` is set, the metrics.
+     */
+    public final static Handler handler = createHandler();
+    private static Router createHandler() {
+        Router router = new Router().route("/_health", new HealthHandler());
+        if (statsUri != null)
+            router.route(statsUri, new StatsHandler());
+        return router.route("/", new StaticHttpFileHandler(new File("www")));
+    }
+    /**
+     * The endpoint to bind to.
+     */
+    public final static SocketAddress endpoint = new InetSocketAddress(port);
 }
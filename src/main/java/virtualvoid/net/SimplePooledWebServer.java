@@ -3,8 +3,11 @@ package virtualvoid.net;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple pooling web server. It waits on the main thread for new connections and
@@ -13,35 +16,110 @@ import java.util.concurrent.ExecutorService;
  * You can define the behaviour by setting executor and handler.
  * Field `executor` specifies the pooling strategy to use. The handler is called in its own
  * thread to handle an incoming connection.
+ *
+ * The server stops accepting while it has Settings.maxConnections open and rejects
+ * connections of clients having too many with a 503 (see ConnectionLimits), as it does when the
+ * pool's queue is full.
+ *
+ * `stop` shuts the server down gracefully: it stops accepting, lets the connections finish
+ * the requests they already sent, with the responses telling the clients to close the
+ * connection, and then shuts down the pool. `run` returns once the server was stopped.
  */
 public class SimplePooledWebServer {
     private final ExecutorService executor = Settings.createExecutor();
-    public void run() throws IOException {
-        ServerSocket theServer = new ServerSocket();
-        theServer.bind(Settings.endpoint);
+    private final Connections connections = new Connections();
+    private final ServerSocket theServer;
+
+    public SimplePooledWebServer() throws IOException {
+        theServer = new ServerSocket();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        theServer.bind(Settings.endpoint, Settings.acceptBacklog);
 
         while(true) {
-            final Socket client = theServer.accept();
+            // with too many connections open, clients wait in the backlog until some are closed
+            connections.awaitCapacity();
+            final Socket client;
+            try {
+                client = theServer.accept();
+            } catch (SocketException e) {
+                if (connections.isStopping())
+                    return;
+                throw e;
+            }
+            final long accepted = Metrics.start();
+            Metrics.increment(Metrics.Counter.CONNECTIONS_ACCEPTED);
             Logging.log("New connection: %s", client);
-            executor.submit(new Callable<Void>() {
-                @Override
-                public Void call() throws Exception {
-                    try {
-                        Settings.handler.handleConnection(client);
-                    } catch (IOException exception) {
-                        System.err.println("Error when handling request: "+exception.getMessage());
-                        exception.printStackTrace(System.err);
-                    } finally {
-                        if (!client.isClosed())
-                            client.close();
-                    }
-                    return null;
+            HttpHandler.configure(client);
+            Connections.Connection connection = connections.open(client);
+            if (connection == null)
+                // the client has too many connections already
+                HttpHandler.reject(client);
+            else
+                try {
+                    submit(client, connection, accepted);
+                } catch (RejectedExecutionException e) {
+                    connection.closed();
+                    HttpHandler.reject(client);
                 }
-            });
+            Metrics.record(Metrics.Phase.ACCEPT, accepted);
         }
     }
+    private void submit(final Socket client, final Connections.Connection connection, final long accepted) {
+        Callable<Void> task = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Metrics.record(Metrics.Phase.QUEUE, accepted);
+                try {
+                    HttpHandler.handleConnection(Settings.handler, client, connection);
+                } catch (IOException exception) {
+                    Metrics.increment(Metrics.Counter.ERRORS);
+                    System.err.println("Error when handling request: "+exception.getMessage());
+                    exception.printStackTrace(System.err);
+                } finally {
+                    connection.closed();
+                    if (!client.isClosed())
+                        client.close();
+                    Metrics.increment(Metrics.Counter.CONNECTIONS_CLOSED);
+                }
+                return null;
+            }
+        };
+        executor.submit(task);
+    }
+
+    /**
+     * Stops the server gracefully, waiting at most `timeout` milliseconds for the connections
+     * to finish. Those which don't are closed.
+     *
+     * @return whether all connections finished in time
+     */
+    public boolean stop(long timeout) throws IOException, InterruptedException {
+        connections.stop();
+        theServer.close();
+        executor.shutdown();
+        if (executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            return true;
 
-    public static void main(String[] args) throws IOException {
-        new SimplePooledWebServer().run();
+        connections.closeAll();
+        executor.shutdownNow();
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SimplePooledWebServer server = new SimplePooledWebServer();
+        Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+            @Override
+            public void run() {
+                try {
+                    server.stop(Settings.shutdownTimeout);
+                } catch (Exception e) {
+                    System.err.println("Couldn't stop the server: "+e.getMessage());
+                }
+                AccessLog.flush();
+            }
+        });
+        server.run();
     }
 }
@@ -2,75 +2,176 @@ package virtualvoid.net;
 
 import static virtualvoid.net.Logging.log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An HttpHandler which interprets URIs as files with paths relative to
  * a root directory.
+ *
+ * Hot files are served from the FileCache if enabled. A file is loaded into it by the
+ * FileRegion.READER after its first request, which is served from the file meanwhile, so that
+ * no request (and no selector thread of the NonBlockingWebServer) waits for the file system.
+ * Otherwise file contents never pass
+ * through the Java heap: servers with a channel to the client transfer them directly from the
+ * file (see FileRegion) or, for small files kept in the optional MappedFileCache, from their
+ * mapping.
+ *
+ * URIs are mapped to files by a PathResolver, which keeps clients from leaving the root
+ * directory and caches the files' metadata.
+ *
+ * Clients sending Accept-Encoding get a precompressed sibling of the file ("index.html.br" or
+ * "index.html.gz") if there is one. Otherwise compressible files small enough for the FileCache
+ * are compressed with gzip once and served from the cache. Compressing as well as possible takes
+ * long, so it's done by a background thread and the file is served uncompressed until its
+ * compressed copy is ready (see Settings.compressionMaxPending). Responses which depend on the
+ * encoding carry "Vary: Accept-Encoding" so that shared caches keep them apart.
  */
 public class StaticHttpFileHandler extends HttpHandler {
-    private static final int BUFFERSIZE = 65536;
-    private final File root;
+    private final PathResolver resolver;
+    private final MappedFileCache mappedFiles =
+        new MappedFileCache(Settings.mappedFileCacheSize, Settings.mappedFileMaxSize);
+    private final FileCache cache = new FileCache(Settings.fileCacheSize, Settings.fileCacheMaxFileSize);
+    /**
+     * Compresses files for all handlers, so that requests never wait for it.
+     */
+    private final static ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "compression");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * The total size of the files being compressed or waiting for the COMPRESSOR.
+     */
+    private final static AtomicLong pendingCompression = new AtomicLong();
+    /**
+     * The variants being compressed, by accepted encodings and path.
+     */
+    private final Set<String> compressing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The total size of the files being loaded into the cache or waiting for the READER.
+     */
+    private final static AtomicLong pendingLoads = new AtomicLong();
+    /**
+     * The files being loaded into the cache, by encoding and path.
+     */
+    private final Set<String> loading = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public StaticHttpFileHandler(File root) {
         super();
-        this.root = root;
+        this.resolver = new PathResolver(root, Settings.pathCacheTtl, Settings.pathCacheSize);
+        listen(new WeakReference<StaticHttpFileHandler>(this));
+    }
+    /**
+     * Applies reloaded settings to the caches of a handler. The listener mustn't keep handlers
+     * which are gone alive, with their caches, so it only has a weak reference and is created
+     * in a static context.
+     */
+    private static void listen(final WeakReference<StaticHttpFileHandler> reference) {
+        Configuration.addListener(new Runnable() {
+            @Override
+            public void run() {
+                StaticHttpFileHandler handler = reference.get();
+                if (handler != null) {
+                    handler.resolver.setLimits(Settings.pathCacheTtl, Settings.pathCacheSize);
+                    handler.cache.setLimits(Settings.fileCacheSize, Settings.fileCacheMaxFileSize);
+                } else
+                    Configuration.removeListener(this);
+            }
+        });
     }
 
-    private File fileByPath(String path) {
-        /* FIXME: This is a potential security risk.
-         * In a real application, you would have to make
-         * sure that you effectively restrict the scope of
-         * accessible files to the ones intended by excluding
-         * the parent path (..) and symbolic links etc.
-         */
-
-        // strip off leading slashes
-        while(path.startsWith("/"))
-            path = path.substring(1);
+    /**
+     * Whether files of a type get smaller when compressed. Images (except SVG), fonts and
+     * archives are compressed already.
+     */
+    private static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.equals("application/javascript")
+            || mimeType.equals("application/json") || mimeType.equals("application/xml")
+            || mimeType.equals("application/wasm") || mimeType.equals("image/svg+xml");
+    }
 
-        return new File(root, path);
+    /**
+     * The encodings we serve if the client accepts them, best compression first.
+     */
+    private final static Request.Encoding[] PREFERRED_ENCODINGS = { Request.Encoding.BR, Request.Encoding.GZIP };
+    private static String extension(Request.Encoding encoding) {
+        return encoding == Request.Encoding.GZIP ? ".gz" : ".br";
     }
-    private String mimeTypeByExtension(File f) {
-        String name = f.getName();
-        String extension = name.substring(name.lastIndexOf(".") + 1);
-        if ("html".equals(extension))
-            return "text/html";
-        else
-            return "application/octet-stream";
+    /**
+     * Returns the precompressed sibling of a file (like "index.html.gz") for an encoding or null
+     * if there is none or it is older than the file.
+     */
+    private PathResolver.Entry precompressed(PathResolver.Entry file, Request.Encoding encoding) {
+        PathResolver.Entry sibling = resolver.resolveSibling(file, extension(encoding));
+        return sibling != null && sibling.lastModified >= file.lastModified ? sibling : null;
+    }
+
+    @Override
+    protected Result serve(Request request) {
+        return serve(request.getUri(), Settings.compression ? request.getAcceptedEncodings() : 0);
     }
     @Override
     protected Result serve(String uri) {
-        final File f = fileByPath(uri);
-
-        if (f.exists() && f.isFile() && !f.isHidden()) {
-            log("Serving '%s'", f);
+        return serve(uri, 0);
+    }
+    /**
+     * Serves a file in the best encoding the client accepts: its precompressed sibling if
+     * there is one, else a compressed copy made once and kept in the FileCache, else the file
+     * itself.
+     *
+     * @param accepted the Request.Encoding bits of the encodings the client accepts
+     */
+    private Result serve(String uri, int accepted) {
+        // the cache is keyed by the normalized path, so that URIs differing only in their query
+        // or spelling share an entry instead of each loading the file again
+        String path = PathResolver.normalize(uri);
+        Result cached = path != null ? cache.get(path, accepted) : null;
+        if (cached != null)
+            return cached;
 
-            return new Result("200 OK") {
-                @Override
-                protected void writeBody(OutputStream os) throws IOException {
-                    InputStream is = new FileInputStream(f);
+        PathResolver.Entry f = path != null ? resolver.resolvePath(path) : null;
 
-                    try {
-                        byte[] buffer = new byte[BUFFERSIZE];
+        if (f != null) {
+            log("Serving '%s'", f.file);
 
-                        while (is.available() > 0) {
-                            int read = is.read(buffer);
-                            os.write(buffer, 0, read);
-                        }
-                    } finally {
-                        is.close();
+            String type = f.mimeType;
+            boolean compressible = Settings.compression && isCompressible(type);
+            boolean varies = compressible;
+            if (Settings.compression)
+                for (Request.Encoding encoding: PREFERRED_ENCODINGS) {
+                    PathResolver.Entry sibling = precompressed(f, encoding);
+                    if (sibling != null) {
+                        if ((accepted & encoding.bit()) != 0)
+                            return serveFile(path, accepted, true, true, sibling, type, encoding);
+                        varies = true;
                     }
                 }
-                protected void addHeaders() {
-                    addResponseHeader("Content-Type", mimeTypeByExtension(f));
-                    addResponseHeader("Content-Length", Long.toString(f.length()));
-                }
-            };
+
+            boolean cacheable = true;
+            if (compressible && (accepted & Request.Encoding.GZIP.bit()) != 0)
+                cacheable = compress(path, accepted, f, type);
+
+            return serveFile(path, accepted, varies, cacheable, f, type, null);
         } else {
             return new Result("404 File not found") {
                 @Override
@@ -84,4 +185,234 @@ public class StaticHttpFileHandler extends HttpHandler {
             };
         }
     }
+
+    /**
+     * Serves a file as it is on disk.
+     *
+     * @param path the normalized path the FileCache keeps the file under
+     * @param varies whether clients accepting other encodings get another response
+     * @param cacheable whether the file may be put into the FileCache, which happens in the
+     *     background (see `load`)
+     * @param encoding the encoding of the file or null for identity
+     */
+    private Result serveFile(String path, int accepted, final boolean varies, boolean cacheable,
+            PathResolver.Entry entry, final String type, final Request.Encoding encoding) {
+        final File f = entry.file;
+        final long length = entry.length;
+        final long lastModified = entry.lastModified;
+        final String etag = etag(lastModified, length, encoding);
+        final String headers = headers(type, encoding, varies, length, etag, lastModified);
+        if (cacheable) {
+            // another client may have got the file in the same encoding already
+            Result shared = cache.share(path, accepted, varies, encoding, length, lastModified);
+            if (shared != null)
+                return shared;
+            load(path, accepted, varies, encoding, f, length, headers);
+        }
+
+        ByteBuffer cached = null;
+        try {
+            cached = mappedFiles.get(f, length);
+        } catch (IOException e) {
+            System.err.println("Couldn't map "+f+": "+e.getMessage());
+        }
+        final ByteBuffer mapped = cached;
+
+        return new Result("200 OK") {
+            @Override
+            protected ByteBuffer getBodyBuffer() {
+                return mapped != null ? mapped.duplicate() : null;
+            }
+            @Override
+            protected FileRegion getFileRegion() {
+                return mapped == null ? new FileRegion(f, 0, length) : null;
+            }
+            @Override
+            protected void writeBody(OutputStream os) throws IOException {
+                if (mapped != null)
+                    BufferPool.write(mapped.duplicate(), os);
+                else {
+                    FileRegion region = getFileRegion();
+                    try {
+                        region.transferTo(os);
+                    } finally {
+                        region.close();
+                    }
+                }
+            }
+            @Override
+            protected String getETag() {
+                return etag;
+            }
+            @Override
+            protected long getLastModified() {
+                return lastModified;
+            }
+            @Override
+            protected void addHeaders() {
+                addResponseHeaders(headers);
+            }
+        };
+    }
+    private static String headers(String type, Request.Encoding encoding, boolean varies, long length,
+            String etag, long lastModified) {
+        return "Content-Type: " + type + "\r\n" +
+            (encoding != null ? "Content-Encoding: " + encoding.getToken() + "\r\n" : "") +
+            (varies ? "Vary: Accept-Encoding\r\n" : "") +
+            "ETag: " + etag + "\r\n" +
+            "Last-Modified: " + Preconditions.formatDate(lastModified) + "\r\n" +
+            "Accept-Ranges: bytes\r\n" +
+            "Content-Length: " + length + "\r\n";
+    }
+    /**
+     * Entity tags are made from the file's metadata, so they are cheap to compute. Each
+     * encoding is a different representation and gets a different tag.
+     */
+    private static String etag(long lastModified, long length, Request.Encoding encoding) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) +
+            (encoding != null ? "-" + encoding.getToken() : "") + "\"";
+    }
+
+    private Result cache(String path, int accepted, boolean varies, Request.Encoding encoding, File f,
+            long length, String headers) {
+        try {
+            return cache.put(path, accepted, varies, encoding, f, length, headers);
+        } catch (IOException e) {
+            System.err.println("Couldn't cache "+f+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Makes the READER load a file into the cache, unless it's too large to be cached or being
+     * loaded already. Reading blocks until the file system delivers, which neither the
+     * NonBlockingWebServer's selector threads nor the pooled threads serving connections should
+     * wait for, so the request asking for it is served from the file meanwhile.
+     */
+    private void load(final String path, final int accepted, final boolean varies, final Request.Encoding encoding,
+            final File f, final long length, final String headers) {
+        if (!cache.fits(length))
+            return;
+
+        final String key = encoding + ":" + path;
+        if (!loading.add(key))
+            return;
+        long pending = pendingLoads.addAndGet(length);
+        if (pending > Settings.fileCacheSize && pending > length) {
+            // a later request tries again
+            pendingLoads.addAndGet(-length);
+            loading.remove(key);
+            return;
+        }
+
+        try {
+            FileRegion.READER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        cache(path, accepted, varies, encoding, f, length, headers);
+                    } finally {
+                        pendingLoads.addAndGet(-length);
+                        loading.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingLoads.addAndGet(-length);
+            loading.remove(key);
+        }
+    }
+
+    /**
+     * Makes the COMPRESSOR compress a file with gzip into the cache, unless it's too large to be
+     * cached or being compressed already. Until the compressed copy is there, the file is served
+     * uncompressed.
+     *
+     * @return whether the uncompressed file may be cached for the clients accepting gzip, which
+     *     is only the case if it won't be compressed: caching it would keep later requests from
+     *     compressing it or overwrite the compressed copy
+     */
+    private boolean compress(final String path, final int accepted, final PathResolver.Entry entry, final String type) {
+        final long length = entry.length;
+        if (!cache.fits(length))
+            return true;
+
+        final String key = accepted + ":" + path;
+        if (!compressing.add(key))
+            return false;
+        long pending = pendingCompression.addAndGet(length);
+        if (pending > Settings.compressionMaxPending && pending > length) {
+            // a later request tries again
+            pendingCompression.addAndGet(-length);
+            compressing.remove(key);
+            return false;
+        }
+
+        try {
+            COMPRESSOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compressNow(path, accepted, entry, type);
+                    } finally {
+                        pendingCompression.addAndGet(-length);
+                        compressing.remove(key);
+                    }
+                }
+            });
+            return false;
+        } catch (RejectedExecutionException e) {
+            pendingCompression.addAndGet(-length);
+            compressing.remove(key);
+            return true;
+        }
+    }
+    /**
+     * Compresses a file into the cache. If that fails or the file doesn't get smaller, it's
+     * cached uncompressed instead, so that it isn't compressed again.
+     */
+    private void compressNow(String path, int accepted, PathResolver.Entry entry, String type) {
+        File f = entry.file;
+        long length = entry.length;
+        long lastModified = entry.lastModified;
+
+        byte[] compressed = null;
+        try {
+            compressed = gzip(f);
+        } catch (IOException e) {
+            System.err.println("Couldn't compress "+f+": "+e.getMessage());
+        }
+        if (compressed == null || compressed.length >= length) {
+            cache(path, accepted, true, null, f, length,
+                headers(type, null, true, length, etag(lastModified, length, null), lastModified));
+            return;
+        }
+
+        log("Compressed '%s' from %d to %d bytes", f, length, compressed.length);
+        cache.put(path, accepted, Request.Encoding.GZIP, f, length, lastModified, compressed,
+            headers(type, Request.Encoding.GZIP, true, compressed.length,
+                etag(lastModified, length, Request.Encoding.GZIP), lastModified));
+    }
+    private static byte[] gzip(File f) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // files are compressed only once and in the background, so it's worth compressing them
+        // as well as possible
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+        InputStream is = new FileInputStream(f);
+        ByteBuffer chunk = BufferPool.HEAP.acquire(BufferPool.MAX_SIZE);
+        try {
+            int read;
+            while ((read = is.read(chunk.array(), 0, chunk.capacity())) > 0)
+                gzip.write(chunk.array(), 0, read);
+            gzip.close();
+        } finally {
+            BufferPool.HEAP.release(chunk);
+            is.close();
+        }
+        return bytes.toByteArray();
+    }
 }
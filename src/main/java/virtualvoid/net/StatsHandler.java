@@ -0,0 +1,12 @@
+package virtualvoid.net;
+
+/**
+ * Answers each request with the current metrics as text (see Metrics.render). They tell
+ * anybody about the load of the server, so this is only routed to if Settings.statsUri is set.
+ */
+public class StatsHandler extends HttpHandler {
+    @Override
+    protected Result serve(String uri) {
+        return new TextResult(Metrics.render());
+    }
+}
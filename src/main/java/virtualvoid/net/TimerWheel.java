@@ -0,0 +1,145 @@
+package virtualvoid.net;
+
+/**
+ * A hashed timing wheel to manage the timeouts of many connections in a selector loop.
+ *
+ * Time is divided into ticks and the wheel has a slot for each tick of one revolution. A timeout
+ * is kept in the slot of the tick its deadline falls into, so scheduling and cancelling are O(1)
+ * and advancing the wheel only looks at the slots of the ticks passed since the last call, not at
+ * all timeouts. Deadlines further away than one revolution just stay in their slot until their
+ * round comes. Deadlines are only precise up to one tick.
+ *
+ * Since timeouts of connections are mostly pushed back (each time data arrives), pushing back a
+ * scheduled timeout only updates its deadline. It is moved to the right slot when its old slot
+ * comes up.
+ *
+ * The wheel isn't thread-safe, it's meant to be used by the thread of a single selector loop.
+ * Timeouts link themselves into the slots, so nothing is allocated.
+ */
+final class TimerWheel {
+    /**
+     * Something to happen at a deadline. An instance can be scheduled on at most one wheel.
+     */
+    static abstract class Timeout {
+        private long deadline;
+        private Timeout previous, next;
+        private int slot = -1;
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+        long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Called by the wheel when the deadline has passed. The timeout isn't scheduled
+         * anymore at this point but may be rescheduled.
+         */
+        protected abstract void expire(long now);
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;
+    /**
+     * The last tick which was processed. Only ticks which are over are processed, so all timeouts
+     * in their slots which are due can be expired.
+     */
+    private long lastTick;
+    private int size = 0;
+
+    TimerWheel(long tickMillis, int slotCount, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slotCount];
+        this.lastTick = now / tickMillis - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules a timeout or changes the deadline of an already scheduled one.
+     */
+    void schedule(Timeout timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            if (deadline >= timeout.deadline) {
+                // moved to the right slot when the current one comes up
+                timeout.deadline = deadline;
+                return;
+            }
+            unlink(timeout);
+        }
+        timeout.deadline = deadline;
+        link(timeout);
+    }
+    void cancel(Timeout timeout) {
+        if (timeout.isScheduled())
+            unlink(timeout);
+    }
+
+    /**
+     * Expires all timeouts whose deadline has passed.
+     */
+    void advance(long now) {
+        long tick = now / tickMillis - 1;
+        // after one revolution we have seen every slot
+        long first = Math.max(lastTick + 1, tick - slots.length + 1);
+        for (long t = first; t <= tick; t++) {
+            // timeouts scheduled by expire go to later slots
+            lastTick = t;
+            int index = slotOf(t);
+            Timeout timeout = slots[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline / tickMillis <= t) {
+                    unlink(timeout);
+                    timeout.expire(now);
+                } else if (slotOf(timeout.deadline / tickMillis) != index) {
+                    // it was pushed back, move it to its current slot (otherwise it's due in
+                    // a later revolution)
+                    unlink(timeout);
+                    link(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * The time until the next tick or -1 if nothing is scheduled. Selector loops use this as timeout
+     * for select.
+     */
+    long untilNextTick(long now) {
+        if (size == 0)
+            return -1;
+        return Math.max(1, (lastTick + 2) * tickMillis - now);
+    }
+
+    private int slotOf(long tick) {
+        return (int) (tick % slots.length);
+    }
+    private void link(Timeout timeout) {
+        // a deadline already passed is handled with the next tick
+        int index = slotOf(Math.max(timeout.deadline / tickMillis, lastTick + 1));
+        timeout.slot = index;
+        timeout.previous = null;
+        timeout.next = slots[index];
+        if (timeout.next != null)
+            timeout.next.previous = timeout;
+        slots[index] = timeout;
+        size++;
+    }
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            slots[timeout.slot] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+
+        timeout.previous = timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+}
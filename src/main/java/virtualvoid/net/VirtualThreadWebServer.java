@@ -0,0 +1,127 @@
+package virtualvoid.net;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A web server dedicating a virtual thread to each connection for its whole lifetime.
+ *
+ * This is the programming model of SimplePooledWebServer with the simple blocking Handler API,
+ * but without its main problem: a platform thread waiting for the next request of a keep-alive
+ * connection is an expensive resource, so the pool has to be small and idle connections starve
+ * active ones. A virtual thread blocked on a socket costs little more than its stack, so we can
+ * simply keep waiting for further requests on each connection until it stays idle for
+ * Settings.keepAliveTimeout.
+ *
+ * Virtual threads need Java 21, on earlier versions a platform thread is used per connection
+ * (see Settings.createVirtualThreadExecutor).
+ *
+ * Without a pool bounding it, the number of connections is only bounded by
+ * Settings.maxConnections and Settings.maxConnectionsPerAddress (see ConnectionLimits).
+ *
+ * `stop` shuts the server down gracefully like SimplePooledWebServer's does, connections
+ * idly waiting for their next request are closed right away.
+ */
+public class VirtualThreadWebServer {
+    private final ExecutorService executor = Settings.createVirtualThreadExecutor();
+    private final Connections connections = new Connections();
+    private final ServerSocket theServer;
+
+    public VirtualThreadWebServer() throws IOException {
+        theServer = new ServerSocket();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        theServer.bind(Settings.endpoint, Settings.acceptBacklog);
+
+        while(true) {
+            // with too many connections open, clients wait in the backlog until some are closed
+            connections.awaitCapacity();
+            final Socket client;
+            try {
+                client = theServer.accept();
+            } catch (SocketException e) {
+                if (connections.isStopping())
+                    return;
+                throw e;
+            }
+            Metrics.increment(Metrics.Counter.CONNECTIONS_ACCEPTED);
+            Logging.log("New connection: %s", client);
+            HttpHandler.configure(client);
+            final Connections.Connection connection = connections.open(client);
+            if (connection == null) {
+                // the client has too many connections already
+                HttpHandler.reject(client);
+                continue;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client, connection);
+                    } catch (IOException exception) {
+                        Metrics.increment(Metrics.Counter.ERRORS);
+                        System.err.println("Error when handling request: "+exception.getMessage());
+                    } finally {
+                        connection.closed();
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // nothing left to do
+                        }
+                        Metrics.increment(Metrics.Counter.CONNECTIONS_CLOSED);
+                    }
+                }
+            });
+        }
+    }
+    private static void serve(Socket client, Connections.Connection connection) throws IOException {
+        if (Settings.handler instanceof HttpHandler)
+            ((HttpHandler) Settings.handler).serveConnection(client, connection);
+        else {
+            // other handlers are simply called again as long as they want to keep the connection
+            boolean keepAlive;
+            do
+                keepAlive = Settings.handler.handleConnection(client);
+            while (keepAlive && connection.mayKeepAlive() && !client.isClosed());
+        }
+    }
+
+    /**
+     * Stops the server gracefully, waiting at most `timeout` milliseconds for the connections
+     * to finish. Those which don't are closed.
+     *
+     * @return whether all connections finished in time
+     */
+    public boolean stop(long timeout) throws IOException, InterruptedException {
+        connections.stop();
+        theServer.close();
+        executor.shutdown();
+        if (executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            return true;
+
+        connections.closeAll();
+        executor.shutdownNow();
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final VirtualThreadWebServer server = new VirtualThreadWebServer();
+        Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+            @Override
+            public void run() {
+                try {
+                    server.stop(Settings.shutdownTimeout);
+                } catch (Exception e) {
+                    System.err.println("Couldn't stop the server: "+e.getMessage());
+                }
+                AccessLog.flush();
+            }
+        });
+        server.run();
+    }
+}
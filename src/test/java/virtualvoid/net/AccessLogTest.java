@@ -0,0 +1,120 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class AccessLogTest {
+    private static Request request(String requestLine) {
+        RequestParser parser = new RequestParser();
+        parser.parse(ByteBuffer.wrap((requestLine + "\r\n\r\n").getBytes(HttpHandler.ASCII)));
+        return parser.getRequest();
+    }
+    private static ByteBuffer head(String head) {
+        return ByteBuffer.wrap((head + "\r\n\r\n").getBytes(HttpHandler.ASCII));
+    }
+
+    @Test
+    public void testContentLength() {
+        assertEquals(103, AccessLog.contentLength(head("HTTP/1.1 200 OK\r\nContent-Length: 103")));
+        assertEquals(7, AccessLog.contentLength(head("HTTP/1.1 200 OK\r\ncontent-length:7\r\nETag: \"x\"")));
+        assertEquals(-1, AccessLog.contentLength(head("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked")));
+    }
+
+    @Test
+    public void testWritesEntries() throws IOException {
+        File file = File.createTempFile("access", ".log");
+        try {
+            AccessLog log = new AccessLog(file, 4);
+            try {
+                // more entries than the buffer holds, the writer has to keep up
+                for (int i = 0; i < 10; i++) {
+                    log.add(request("GET /index.html?n=" + i + " HTTP/1.1"), head("HTTP/1.1 200 OK\r\nContent-Length: 103"), false, 52000);
+                    assertTrue(log.awaitWritten(1000));
+                }
+                log.add(request("HEAD /a%20b\u00e4 HTTP/1.0"), head("HTTP/1.0 404 Not Found\r\nContent-Length: 0"), true, 1000);
+                assertTrue(log.awaitWritten(1000));
+            } finally {
+                log.close();
+            }
+
+            List<String> lines = Files.readAllLines(file.toPath(), HttpHandler.ASCII);
+            assertEquals(11, lines.size());
+            assertTrue(lines.get(0), lines.get(0).matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z GET /index.html\\?n=0 HTTP/1.1 200 103 52"));
+            assertTrue(lines.get(10), lines.get(10).endsWith("Z HEAD /a%20b%E4 HTTP/1.0 404 0 1"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWritesResponsesWithoutHandler() throws IOException {
+        File file = File.createTempFile("access", ".log");
+        try {
+            AccessLog log = new AccessLog(file, 4);
+            try {
+                log.add(request("PUT /upload HTTP/1.1"), head("HTTP/1.0 501 Method not implemented"), true, 0);
+                log.add(request("GET /index.html HTTP/2.0"), head("HTTP/1.0 501 Version not implemented 2.0"), true, 0);
+                // a request whose version couldn't be parsed
+                log.add(request("GET /index.html HTTP/x"), head("HTTP/1.0 400 Bad Request"), true, 0);
+                // a rejected connection
+                log.add(null, head("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0"), true, 0);
+            } finally {
+                // writes what was logged before the writer stops
+                log.close();
+            }
+            // the writer is gone, so later entries are dropped
+            long dropped = AccessLog.getDropped();
+            log.add(null, head("HTTP/1.1 503 Service Unavailable"), true, 0);
+            assertEquals(dropped + 1, AccessLog.getDropped());
+
+            List<String> lines = Files.readAllLines(file.toPath(), HttpHandler.ASCII);
+            assertEquals(4, lines.size());
+            assertTrue(lines.get(0), lines.get(0).endsWith("Z PUT /upload HTTP/1.1 501 0 0"));
+            assertTrue(lines.get(1), lines.get(1).endsWith("Z GET /index.html HTTP/2.0 501 0 0"));
+            assertTrue(lines.get(2), lines.get(2).endsWith("Z GET /index.html - 400 0 0"));
+            assertTrue(lines.get(3), lines.get(3).endsWith("Z - - - 503 0 0"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCountsEntriesRacingClose() throws Exception {
+        File file = File.createTempFile("access", ".log");
+        try {
+            final AccessLog log = new AccessLog(file, 1024);
+            final int count = 20000;
+            long dropped = AccessLog.getDropped();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        Request request = request("GET /index.html HTTP/1.1");
+                        for (int n = 0; n < count; n++)
+                            log.add(request, head("HTTP/1.1 200 OK\r\nContent-Length: 103"), false, 0);
+                    }
+                };
+                threads[i].start();
+            }
+            Thread.sleep(5);
+            log.close();
+            for (Thread thread: threads)
+                thread.join();
+
+            // each entry was either written or counted as dropped, also those added while closing
+            List<String> lines = Files.readAllLines(file.toPath(), HttpHandler.ASCII);
+            assertEquals(threads.length * count, lines.size() + AccessLog.getDropped() - dropped);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveExecutorTest {
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws InterruptedException {
+        AdaptiveExecutor executor = new AdaptiveExecutor(1, 1, 1, 1000);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.execute(await(latch));
+            executor.execute(await(latch));
+            try {
+                executor.execute(await(latch));
+                fail("Expected rejection");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testGrowsForWaitingTasks() throws InterruptedException {
+        AdaptiveExecutor executor = new AdaptiveExecutor(1, 8, 100, 10);
+        Runnable waiting = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            for (int i = 0; i < 100; i++) {
+                executor.execute(waiting);
+                Thread.sleep(1);
+            }
+            assertTrue(executor.getMaximumPoolSize() > 1);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testChangesBounds() throws InterruptedException {
+        AdaptiveExecutor executor = new AdaptiveExecutor(2, 4, 10, 1000);
+        try {
+            executor.setBounds(6, 8);
+            assertEquals(6, executor.getMaximumPoolSize());
+            assertEquals(6, executor.getCorePoolSize());
+            executor.setBounds(1, 3);
+            assertEquals(3, executor.getMaximumPoolSize());
+            try {
+                executor.setBounds(3, 2);
+                fail("Expected invalid bounds to be refused");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class BodySourceTest {
+    private static ByteBuffer bytes(String str) {
+        return ByteBuffer.wrap(str.getBytes(HttpHandler.ASCII));
+    }
+    private static Runnable count(final AtomicInteger calls) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testPipeAppliesBackpressure() throws IOException {
+        BodyPipe pipe = new BodyPipe(4);
+        AtomicInteger available = new AtomicInteger();
+        AtomicInteger drained = new AtomicInteger();
+
+        ByteBuffer target = ByteBuffer.allocate(16);
+        assertEquals(0, pipe.read(target));
+        pipe.whenAvailable(count(available));
+        assertEquals(0, available.get());
+
+        assertTrue(pipe.offer(bytes("abcde")));
+        assertEquals(1, available.get());
+        assertFalse(pipe.offer(bytes("f")));
+        pipe.whenDrained(count(drained));
+        assertEquals(0, drained.get());
+
+        target.limit(2);
+        assertEquals(2, pipe.read(target));
+        assertEquals(1, drained.get());
+        assertTrue(pipe.offer(bytes("f")));
+
+        target.limit(16);
+        assertEquals(4, pipe.read(target));
+        pipe.finish();
+        assertEquals(-1, pipe.read(target));
+        assertEquals("abcdef", new String(target.array(), 0, target.position(), HttpHandler.ASCII));
+    }
+
+    @Test
+    public void testClosedPipeRefusesChunks() {
+        BodyPipe pipe = new BodyPipe(4);
+        pipe.close();
+        try {
+            pipe.offer(bytes("a"));
+            fail("Expected the pipe to be closed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWritesChunks() throws IOException {
+        final BodyPipe pipe = new BodyPipe(1 << 20);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pipe.write(bytes("Hello"));
+                    pipe.write(bytes(new String(new char[300]).replace('\0', 'x')));
+                    pipe.finish();
+                } catch (Exception e) {
+                    pipe.fail(new IOException(e));
+                }
+            }
+        }.start();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+        pipe.transferTo(chunks);
+        chunks.finish();
+
+        String body = new String(out.toByteArray(), HttpHandler.ASCII);
+        assertTrue(body.startsWith("5\r\nHello\r\n") || body.startsWith("131\r\nHello"));
+        assertTrue(body.endsWith("x\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void testEnforcesAnnouncedLength() {
+        BodySource tooShort = new BodySource() {
+            private boolean done = false;
+
+            @Override
+            public long getLength() {
+                return 10;
+            }
+            @Override
+            public int read(ByteBuffer target) {
+                if (done)
+                    return -1;
+                done = true;
+                target.put((byte) 'a');
+                return 1;
+            }
+        };
+        try {
+            tooShort.transferTo(new ByteArrayOutputStream());
+            fail("Expected the short body to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Collects what is written and counts the calls, taking at most `max` bytes at once.
+     */
+    @Test
+    public void testWritesEachChunkAtOnce() throws IOException {
+        CountingChannel channel = new CountingChannel(Integer.MAX_VALUE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, channel);
+        chunks.write("Hello".getBytes(HttpHandler.ASCII));
+        chunks.write(new byte[300], 10, 20);
+        assertEquals(2, channel.writes);
+        assertEquals(0, out.size());
+        assertEquals("5\r\nHello\r\n14\r\n" + new String(new byte[20], HttpHandler.ASCII) + "\r\n",
+            new String(channel.written.toByteArray(), HttpHandler.ASCII));
+
+        // a channel taking less goes on where it stopped
+        channel = new CountingChannel(3);
+        chunks = new ChunkedOutputStream(out, channel);
+        chunks.write("Hello".getBytes(HttpHandler.ASCII));
+        assertEquals(4, channel.writes);
+        assertEquals("5\r\nHello\r\n", new String(channel.written.toByteArray(), HttpHandler.ASCII));
+    }
+}
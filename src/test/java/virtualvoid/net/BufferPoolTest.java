@@ -0,0 +1,65 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClasses() {
+        assertEquals(4096, BufferPool.HEAP.acquire(1).capacity());
+        assertEquals(4096, BufferPool.HEAP.acquire(4096).capacity());
+        assertEquals(8192, BufferPool.HEAP.acquire(4097).capacity());
+        assertEquals(65536, BufferPool.HEAP.acquire(65536).capacity());
+        assertEquals(100000, BufferPool.HEAP.acquire(100000).capacity());
+
+        assertTrue(BufferPool.DIRECT.acquire(100).isDirect());
+        assertTrue(BufferPool.HEAP.acquire(100).hasArray());
+    }
+
+    @Test
+    public void testReuse() {
+        ByteBuffer buffer = BufferPool.DIRECT.acquire(8192);
+        buffer.put((byte) 1);
+        BufferPool.DIRECT.release(buffer);
+
+        ByteBuffer again = BufferPool.DIRECT.acquire(8000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        BufferPool.DIRECT.release(again);
+
+        // buffers which don't belong into a pool aren't taken
+        ByteBuffer foreign = ByteBuffer.allocate(8192);
+        BufferPool.DIRECT.release(foreign);
+        assertNotSame(foreign, BufferPool.DIRECT.acquire(8192));
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        byte[] bytes = new byte[100000];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) i;
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferPool.write(direct, out);
+        assertFalse(direct.hasRemaining());
+        assertTrue(Arrays.equals(bytes, out.toByteArray()));
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes, 10, 20).slice();
+        out.reset();
+        BufferPool.write(heap, out);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 10, 30), out.toByteArray()));
+    }
+}
@@ -0,0 +1,115 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Properties;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class ConfigurationTest {
+    @Test
+    public void testParsesByType() {
+        assertEquals(5000, Configuration.parse(int.class, "5000"));
+        assertEquals(33554432L, Configuration.parse(long.class, "33554432"));
+        assertEquals(Boolean.FALSE, Configuration.parse(boolean.class, "False"));
+        assertEquals(Logging.Level.DEBUG, Configuration.parse(Logging.Level.class, "debug"));
+        assertEquals("/stats", Configuration.parse(String.class, "/stats"));
+        assertNull(Configuration.parse(String.class, ""));
+    }
+
+    private static void assertInvalid(Class<?> type, String value) {
+        try {
+            Configuration.parse(type, value);
+            fail("Expected '"+value+"' to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidValues() {
+        assertInvalid(int.class, "5s");
+        assertInvalid(long.class, "");
+        assertInvalid(boolean.class, "yes");
+        assertInvalid(Logging.Level.class, "verbose");
+    }
+
+    private static Properties properties(String... pairs) {
+        Properties properties = new Properties();
+        for (int i = 0; i < pairs.length; i += 2)
+            properties.setProperty(pairs[i], pairs[i + 1]);
+        return properties;
+    }
+
+    @AfterMethod
+    public void restoreDefaults() {
+        System.clearProperty("server.keepAliveTimeout");
+        assertTrue(Configuration.apply(new Properties(), false));
+    }
+
+    @Test
+    public void testSystemPropertiesWin() {
+        int keepAliveTimeout = Settings.keepAliveTimeout;
+        System.setProperty("server.keepAliveTimeout", "7000");
+        assertTrue(Configuration.apply(properties("keepAliveTimeout", "6000"), false));
+        assertEquals(7000, Settings.keepAliveTimeout);
+
+        System.clearProperty("server.keepAliveTimeout");
+        assertTrue(Configuration.apply(properties("keepAliveTimeout", "6000"), false));
+        assertEquals(6000, Settings.keepAliveTimeout);
+        // settings removed from the file go back to their defaults
+        assertTrue(Configuration.apply(new Properties(), false));
+        assertEquals(keepAliveTimeout, Settings.keepAliveTimeout);
+    }
+
+    @Test
+    public void testReloadsOnlyReloadableSettings() {
+        int port = Settings.port;
+        assertTrue(Configuration.apply(properties("port", "9999", "headerTimeout", "1500"), false));
+        assertEquals(port, Settings.port);
+        assertEquals(1500, Settings.headerTimeout);
+    }
+
+    @Test
+    public void testListenersDontKeepHandlersAlive() throws InterruptedException {
+        WeakReference<StaticHttpFileHandler> handler =
+            new WeakReference<StaticHttpFileHandler>(new StaticHttpFileHandler(new File("www")));
+        for (int i = 0; i < 50 && handler.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(handler.get());
+        // the listener of the collected handler drops itself
+        Configuration.reload();
+    }
+
+    @Test
+    public void testKeepsSettingsWhenInvalid() {
+        int headerTimeout = Settings.headerTimeout;
+        long flushInterval = Settings.accessLogFlushInterval;
+        int minThreads = Settings.poolMinThreads;
+        int maxThreads = Settings.poolMaxThreads;
+
+        assertFalse(Configuration.apply(properties("headerTimeout", "1500", "keepAliveTimeout", "0"), false));
+        assertFalse(Configuration.apply(properties("headerTimeout", "1500", "accessLogFlushInterval", "0"), false));
+        assertFalse(Configuration.apply(properties("headerTimeout", "1500", "routeTimeout", "soon"), false));
+        assertEquals(headerTimeout, Settings.headerTimeout);
+        assertEquals(flushInterval, Settings.accessLogFlushInterval);
+
+        // the bounds are checked together, whichever of them changes
+        assertFalse(Configuration.apply(properties("poolMinThreads", "300"), false));
+        assertFalse(Configuration.apply(properties("poolMinThreads", "8", "poolMaxThreads", "4"), false));
+        assertEquals(minThreads, Settings.poolMinThreads);
+        assertEquals(maxThreads, Settings.poolMaxThreads);
+        assertTrue(Configuration.apply(properties("poolMinThreads", "300", "poolMaxThreads", "400"), false));
+        assertEquals(300, Settings.poolMinThreads);
+        assertEquals(400, Settings.poolMaxThreads);
+    }
+}
@@ -0,0 +1,68 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.testng.annotations.Test;
+
+public class ConnectionLimitsTest {
+    @Test
+    public void testLimitsConnectionsPerAddress() throws UnknownHostException {
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        InetAddress other = InetAddress.getByName("192.0.2.2");
+        int limit = Settings.maxConnectionsPerAddress;
+        Settings.maxConnectionsPerAddress = 2;
+        try {
+            ConnectionLimits limits = new ConnectionLimits();
+            assertTrue(limits.acquire(client));
+            assertTrue(limits.acquire(client));
+            assertFalse(limits.acquire(client));
+            assertTrue(limits.acquire(other));
+            assertTrue(limits.acquire(null));
+            assertEquals(2, limits.getOpen(client));
+            assertEquals(4, limits.getOpen());
+
+            limits.release(client);
+            assertTrue(limits.acquire(client));
+            limits.release(client);
+            limits.release(client);
+            limits.release(other);
+            limits.release(null);
+            assertEquals(0, limits.getOpen(client));
+            assertEquals(0, limits.getOpen());
+        } finally {
+            Settings.maxConnectionsPerAddress = limit;
+        }
+    }
+
+    @Test
+    public void testPausesAccepting() throws Exception {
+        int max = Settings.maxConnections;
+        Settings.maxConnections = 1;
+        try {
+            final ConnectionLimits limits = new ConnectionLimits();
+            final InetAddress client = InetAddress.getByName("192.0.2.1");
+            assertTrue(limits.mayAccept());
+            assertTrue(limits.acquire(client));
+            assertFalse(limits.mayAccept());
+
+            Thread closer = new Thread() {
+                @Override
+                public void run() {
+                    limits.release(client);
+                }
+            };
+            closer.start();
+            limits.awaitCapacity();
+            closer.join();
+            assertEquals(0, limits.getOpen());
+            assertTrue(limits.mayAccept());
+        } finally {
+            Settings.maxConnections = max;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.net.Socket;
+
+import org.testng.annotations.Test;
+
+public class ConnectionsTest {
+    @Test
+    public void testStopClosesIdleConnections() {
+        Connections connections = new Connections();
+        Connections.Connection idle = connections.open(new Socket());
+        Connections.Connection busy = connections.open(new Socket());
+        Connections.Connection done = connections.open(new Socket());
+        assertTrue(idle.idle());
+        done.closed();
+
+        assertTrue(busy.mayKeepAlive());
+        connections.stop();
+        assertTrue(idle.socket.isClosed());
+        assertFalse(busy.socket.isClosed());
+        assertFalse(busy.mayKeepAlive());
+        // too late to wait for another request
+        assertFalse(busy.idle());
+
+        connections.closeAll();
+        assertTrue(busy.socket.isClosed());
+        assertFalse(done.socket.isClosed());
+    }
+}
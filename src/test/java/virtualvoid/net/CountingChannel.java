@@ -0,0 +1,49 @@
+package virtualvoid.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A channel standing in for a socket in tests. It keeps what was written and the size of each
+ * write, and takes at most `max` bytes per write like a non-blocking socket with a full buffer.
+ */
+final class CountingChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    final List<Long> sizes = new ArrayList<Long>();
+    final int max;
+    int writes = 0;
+
+    CountingChannel(int max) {
+        this.max = max;
+    }
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) {
+        writes++;
+        long count = 0;
+        for (int i = offset; i < offset + length && count < max; i++)
+            while (sources[i].hasRemaining() && count < max) {
+                written.write(sources[i].get());
+                count++;
+            }
+        sizes.add(count);
+        return count;
+    }
+    @Override
+    public long write(ByteBuffer[] sources) {
+        return write(sources, 0, sources.length);
+    }
+    @Override
+    public int write(ByteBuffer source) {
+        return (int) write(new ByteBuffer[] { source });
+    }
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+    @Override
+    public void close() {
+    }
+}
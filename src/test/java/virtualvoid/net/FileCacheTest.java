@@ -0,0 +1,142 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.annotations.Test;
+
+public class FileCacheTest {
+    private static File file(int length) throws IOException {
+        File file = File.createTempFile("cached", ".txt");
+        Files.write(file.toPath(), new byte[length]);
+        return file;
+    }
+    private static HttpHandler.Result put(FileCache cache, String path, File file) throws IOException {
+        return cache.put(path, 0, false, null, file, file.length(), "ETag: \"x\"\r\nContent-Length: " + file.length() + "\r\n");
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        File a = file(4), b = file(4), c = file(4);
+        try {
+            FileCache cache = new FileCache(10, 10);
+            assertNotNull(put(cache, "a", a));
+            assertNotNull(put(cache, "b", b));
+            assertNotNull(cache.get("a", 0));
+            // "b" is the least recently used now and has to make room for "c"
+            assertNotNull(put(cache, "c", c));
+            assertNull(cache.get("b", 0));
+            assertNotNull(cache.get("a", 0));
+            assertNotNull(cache.get("c", 0));
+        } finally {
+            a.delete();
+            b.delete();
+            c.delete();
+        }
+    }
+
+    @Test
+    public void testKeepsWithinBudget() throws IOException {
+        File small = file(4), large = file(9);
+        try {
+            FileCache cache = new FileCache(16, 8);
+            assertFalse(cache.fits(9));
+            assertNull(put(cache, "large", large));
+            assertNull(cache.get("large", 0));
+
+            assertNotNull(put(cache, "small", small));
+            assertEquals(4, cache.get("small", 0).getBodyBuffer().remaining());
+            cache.setLimits(2, 8);
+            assertNull(cache.get("small", 0));
+            cache.setLimits(0, 8);
+            assertFalse(cache.fits(1));
+            assertNull(put(cache, "small", small));
+        } finally {
+            small.delete();
+            large.delete();
+        }
+    }
+
+    @Test
+    public void testDropsModifiedFiles() throws IOException {
+        long interval = Settings.fileCacheRevalidateInterval;
+        Settings.fileCacheRevalidateInterval = 0;
+        File file = file(4);
+        try {
+            FileCache cache = new FileCache(16, 8);
+            assertNotNull(put(cache, "file", file));
+            assertNotNull(cache.get("file", 0));
+
+            assertTrue(file.setLastModified(file.lastModified() - 10000));
+            assertNull(cache.get("file", 0));
+            assertNotNull(put(cache, "file", file));
+            assertNotNull(cache.get("file", 0));
+        } finally {
+            Settings.fileCacheRevalidateInterval = interval;
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSharesEncodingsBetweenClients() throws IOException {
+        File file = file(6), other = file(4);
+        String headers = "Vary: Accept-Encoding\r\nContent-Length: 6\r\n";
+        int gzip = Request.Encoding.GZIP.bit(), br = Request.Encoding.BR.bit();
+        try {
+            FileCache cache = new FileCache(10, 10);
+            assertNotNull(cache.put("file", 0, true, null, file, 6, headers));
+            // only clients known to get the identity are served from the cache
+            assertNull(cache.get("file", gzip));
+            assertNotNull(cache.put("file", gzip, true, null, file, 6, headers));
+            assertNotNull(cache.get("file", gzip));
+            assertNull(cache.get("file", br));
+
+            // both clients share the identity, so there is room for another file
+            assertNotNull(put(cache, "other", other));
+            assertNotNull(cache.get("file", 0));
+            assertNotNull(cache.get("file", gzip));
+            assertNotNull(cache.get("other", 0));
+
+            // a compressed copy replaces the identity only for the clients accepting it
+            assertNotNull(cache.put("file", gzip, Request.Encoding.GZIP, file, 6, file.lastModified(), new byte[2],
+                "Content-Encoding: gzip\r\nVary: Accept-Encoding\r\nContent-Length: 2\r\n"));
+            assertEquals(2, cache.get("file", gzip).getBodyBuffer().remaining());
+            assertEquals(6, cache.get("file", 0).getBodyBuffer().remaining());
+        } finally {
+            file.delete();
+            other.delete();
+        }
+    }
+
+    @Test
+    public void testLoadsFilesInTheBackground() throws Exception {
+        File file = file(100);
+        try {
+            StaticHttpFileHandler handler = new StaticHttpFileHandler(file.getParentFile());
+            // the first request doesn't wait for the file to be read
+            HttpHandler.Result first = handler.serve("/" + file.getName());
+            assertNull(first.getBodyBuffer());
+            assertNotNull(first.getFileRegion());
+
+            HttpHandler.Result cached = null;
+            for (int i = 0; i < 500 && cached == null; i++) {
+                HttpHandler.Result result = handler.serve("/" + file.getName());
+                if (result.getBodyBuffer() != null)
+                    cached = result;
+                else
+                    Thread.sleep(10);
+            }
+            assertNotNull(cached);
+            assertEquals(100, cached.getBodyBuffer().remaining());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -1,24 +1,202 @@
 package virtualvoid.net;
 
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
 
-import java.util.regex.Pattern;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 
 import org.testng.annotations.Test;
 
 public class HttpHandlerTest {
-    private static boolean matches(Pattern p, String str) {
-        return p.matcher(str).matches();
+    private static RequestParser.Status parse(RequestParser parser, String str) {
+        return parser.parse(ByteBuffer.wrap(str.getBytes(HttpHandler.ASCII)));
+    }
+    private static boolean matches(String requestLine) {
+        RequestParser parser = new RequestParser();
+        RequestParser.Status status = parse(parser, requestLine);
+        if (status == RequestParser.Status.INCOMPLETE)
+            status = parse(parser, "\r\n\r\n");
+        return status == RequestParser.Status.COMPLETE;
     }
 
     @Test
     public void testGetRequestLines() {
-        assertTrue(matches(HttpHandler.GETHEADRequest, "GET /src/test/server/ HTTP/0.9\r\n"));
-        assertTrue(matches(HttpHandler.GETHEADRequest, "GET /src/test/server/ HTTP/1.0\r\n"));
-        assertTrue(matches(HttpHandler.GETHEADRequest, "GET /src/test/server/ HTTP/1.1\r\n"));
+        assertTrue(matches("GET /src/test/server/ HTTP/0.9\r\n"));
+        assertTrue(matches("GET /src/test/server/ HTTP/1.0\r\n"));
+        assertTrue(matches("GET /src/test/server/ HTTP/1.1\r\n"));
+
+        assertTrue(matches("HEAD /src/test/server/ HTTP/1.0\r\n"));
+
+        assertTrue(matches("GET / HTTP/1.1"));
+    }
+
+    @Test
+    public void testRequestLineParts() {
+        RequestParser parser = new RequestParser();
+        assertEquals(RequestParser.Status.COMPLETE, parse(parser, "HEAD /src/test/server/ HTTP/1.0\r\n\r\n"));
 
-        assertTrue(matches(HttpHandler.GETHEADRequest, "HEAD /src/test/server/ HTTP/1.0\r\n"));
+        Request request = parser.getRequest();
+        assertEquals(Request.Method.HEAD, request.getMethod());
+        assertEquals("/src/test/server/", request.getUri());
+        assertEquals("1.0", request.getVersion());
+    }
+
+    /**
+     * Answers with the URI it got.
+     */
+    private static HttpHandler echo() {
+        return new HttpHandler() {
+            @Override
+            protected Result serve(String uri) {
+                return new TextResult(uri);
+            }
+        };
+    }
+    /**
+     * Pipelines requests around one with a body, which hides another request.
+     */
+    private static String[] requestsWithBodies() {
+        String hidden = "GET /smuggled HTTP/1.1\r\n\r\n";
+        return new String[] {
+            "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\nContent-Length: " + hidden.length() + "\r\n\r\n"
+                + hidden + "GET /c HTTP/1.1\r\n\r\n",
+            "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(hidden.length()) + "\r\n" + hidden + "\r\n0\r\n\r\nGET /c HTTP/1.1\r\n\r\n"
+        };
+    }
+    /**
+     * Sends the requests at once and returns everything received until the server closes the
+     * connection.
+     */
+    private static String exchange(InetSocketAddress server, String requests) throws IOException {
+        Socket socket = new Socket(server.getAddress(), server.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.getBytes(HttpHandler.ASCII));
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream is = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = is.read(buffer)) >= 0)
+                received.write(buffer, 0, read);
+            return new String(received.toByteArray(), HttpHandler.ASCII);
+        } finally {
+            socket.close();
+        }
+    }
+    private static void assertClosedAfterBody(String responses) {
+        assertTrue(responses, responses.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(responses, responses.endsWith("Connection: close\r\n\r\n/b"));
+        assertEquals(responses, 2, responses.split("HTTP/1.1 200 OK").length - 1);
+        assertFalse(responses, responses.contains("/smuggled"));
+        assertFalse(responses, responses.contains("/c"));
+    }
+
+    @Test
+    public void testClosesAfterRequestWithBody() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final HttpHandler handler = echo();
+        Thread serving = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket client = server.accept();
+                        try {
+                            handler.serveConnection(client);
+                        } finally {
+                            client.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed
+                }
+            }
+        };
+        serving.start();
+        try {
+            for (String requests: requestsWithBodies())
+                assertClosedAfterBody(exchange((InetSocketAddress) server.getLocalSocketAddress(), requests));
+        } finally {
+            server.close();
+            serving.join(5000);
+        }
+    }
+
+    @Test
+    public void testNonBlockingClosesAfterRequestWithBody() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SelectorLoop loop = new SelectorLoop(echo(), new ConnectionLimits());
+        loop.listen(server);
+        Thread thread = new Thread(loop);
+        thread.start();
+        try {
+            for (String requests: requestsWithBodies())
+                assertClosedAfterBody(exchange((InetSocketAddress) server.getLocalAddress(), requests));
+        } finally {
+            loop.stop();
+            loop.abort();
+            thread.join(5000);
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingSurvivesFailingHandler() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SelectorLoop loop = new SelectorLoop(new HttpHandler() {
+            @Override
+            protected Result serve(String uri) {
+                if (uri.equals("/fail"))
+                    throw new IllegalStateException("Failing on purpose");
+                return new TextResult(uri);
+            }
+        }, new ConnectionLimits());
+        loop.listen(server);
+        Thread thread = new Thread(loop);
+        thread.start();
+        try {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            String responses = exchange(address, "GET /fail HTTP/1.1\r\n\r\n");
+            assertTrue(responses, responses.startsWith("HTTP/1.0 500 Internal Server Error\r\n"));
+            // the loop still serves other connections
+            responses = exchange(address, "GET /ok HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue(responses, responses.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(responses, responses.endsWith("/ok"));
+        } finally {
+            loop.stop();
+            loop.abort();
+            thread.join(5000);
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRequestBodies() {
+        RequestParser parser = new RequestParser();
+        assertEquals(RequestParser.Status.COMPLETE, parse(parser, "GET / HTTP/1.1\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(parser.getRequest().hasBody());
+        parser.reset();
+        assertEquals(RequestParser.Status.COMPLETE, parse(parser, "GET / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"));
+        assertTrue(parser.getRequest().hasBody());
+        assertFalse(echo().respond(parser.getRequest()).keepAlive);
 
-        assertTrue(matches(HttpHandler.GETHEADRequest, "GET / HTTP/1.1"));
+        // differing lengths are ambiguous
+        parser.reset();
+        assertEquals(RequestParser.Status.BAD_REQUEST, parse(parser, "GET / HTTP/1.1\r\nContent-Length: 0\r\nContent-Length: 5\r\n\r\n"));
+        parser.reset();
+        assertEquals(RequestParser.Status.COMPLETE, parse(parser, "GET / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n"));
+        assertEquals(5, parser.getRequest().getContentLength());
     }
 }
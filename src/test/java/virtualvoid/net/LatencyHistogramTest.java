@@ -0,0 +1,62 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void testRelativeErrorOfLargeValues() {
+        long[] values = { 255, 256, 257, 1000, 123456, 987654321, 1L << 40, Long.MAX_VALUE };
+        for (long value: values) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(0);
+
+            long reported = histogram.getValueAtPercentile(50);
+            assertEquals(0, reported);
+            // the percentile is reported as the highest value of the bucket
+            long bucketHighest = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value));
+            assertTrue(bucketHighest >= value);
+            assertTrue((bucketHighest - value) / (double) value < 0.01);
+            assertEquals(value, histogram.getValueAtPercentile(100));
+        }
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        for (int index = 1; index < 5000; index++)
+            assertEquals(index, LatencyHistogram.indexOf(LatencyHistogram.highestValueOf(index - 1) + 1));
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 90; i++)
+            a.record(1000);
+        for (int i = 0; i < 10; i++)
+            b.record(1000000);
+
+        a.add(b);
+        assertEquals(100, a.getCount());
+        assertEquals(1000000, a.getMax());
+        assertTrue(Math.abs(a.getValueAtPercentile(90) - 1000) <= 10);
+        assertTrue(Math.abs(a.getValueAtPercentile(99) - 1000000) <= 10000);
+    }
+}
@@ -0,0 +1,130 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.Test;
+
+public class PathResolverTest {
+    @Test
+    public void testNormalize() {
+        assertEquals("", PathResolver.normalize("/"));
+        assertEquals("index.html", PathResolver.normalize("/index.html"));
+        assertEquals("a/b.html", PathResolver.normalize("//a/./c/../b.html?x=/../..#top"));
+        assertEquals("a b/ä.txt", PathResolver.normalize("/a%20b/%C3%A4.txt"));
+        assertEquals("index.html", PathResolver.normalize("http://localhost:8020/index.html"));
+        // "%2F" is just another slash after decoding
+        assertEquals("a/b", PathResolver.normalize("/a%2Fb"));
+    }
+
+    @Test
+    public void testRejectsEscapes() {
+        assertNull(PathResolver.normalize("/../etc/passwd"));
+        assertNull(PathResolver.normalize("/a/../../etc/passwd"));
+        assertNull(PathResolver.normalize("/%2e%2e/etc/passwd"));
+        assertNull(PathResolver.normalize("/a%2F..%2F..%2Fetc"));
+        assertNull(PathResolver.normalize("/..\\etc"));
+        assertNull(PathResolver.normalize("/index.html%00.txt"));
+        assertNull(PathResolver.normalize("/.git/config"));
+        assertNull(PathResolver.normalize("/a/.htaccess"));
+        assertNull(PathResolver.normalize("/%zz"));
+        assertNull(PathResolver.normalize("/%4"));
+        assertNull(PathResolver.normalize("index.html"));
+    }
+
+    @Test
+    public void testResolvesAndCaches() throws IOException {
+        Path root = Files.createTempDirectory("resolver");
+        Path file = root.resolve("page.html");
+        Files.write(file, "hello".getBytes(HttpHandler.ASCII));
+        Files.createDirectory(root.resolve("dir"));
+        try {
+            PathResolver resolver = new PathResolver(root.toFile(), 60000, 100);
+            PathResolver.Entry entry = resolver.resolve("/page.html");
+            assertNotNull(entry);
+            assertEquals(5, entry.length);
+            assertEquals("text/html", entry.mimeType);
+            assertEquals(file.toFile().getAbsoluteFile(), entry.file);
+            assertSame(entry, resolver.resolve("/page.html"));
+            assertNull(resolver.resolve("/dir"));
+            assertNull(resolver.resolve("/missing.html"));
+
+            // within the TTL, nothing is looked up again
+            Files.delete(file);
+            assertSame(entry, resolver.resolve("/page.html"));
+            assertNull(new PathResolver(root.toFile(), 60000, 100).resolve("/page.html"));
+        } finally {
+            Files.delete(root.resolve("dir"));
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testCachesByPath() throws IOException {
+        Path root = Files.createTempDirectory("resolver");
+        Path file = root.resolve("page.html");
+        Files.write(file, "hello".getBytes(HttpHandler.ASCII));
+        try {
+            PathResolver resolver = new PathResolver(root.toFile(), 60000, 16);
+            PathResolver.Entry entry = resolver.resolve("/page.html?v=1");
+            assertSame(entry, resolver.resolve("/page.html?v=2"));
+            assertSame(entry, resolver.resolve("/./%70age.html"));
+            assertNull(resolver.resolve("/../page.html"));
+            assertEquals(1, resolver.size());
+
+            // a full cache only drops some entries
+            for (int i = 0; i < 100; i++)
+                assertNull(resolver.resolve("/missing" + i + ".html"));
+            assertEquals(16, resolver.size());
+        } finally {
+            Files.delete(file);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testRejectsLinksOutOfRoot() throws IOException {
+        Path outside = Files.createTempFile("outside", ".txt");
+        Path root = Files.createTempDirectory("resolver");
+        Path link = root.resolve("link.txt");
+        try {
+            Files.createSymbolicLink(link, outside);
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        try {
+            PathResolver resolver = new PathResolver(root.toFile(), 60000, 100);
+            assertNull(resolver.resolve("/link.txt"));
+        } finally {
+            Files.delete(link);
+            Files.delete(root);
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    public void testSiblings() throws IOException {
+        Path root = Files.createTempDirectory("resolver");
+        Path file = root.resolve("app.js");
+        Path gz = root.resolve("app.js.gz");
+        Files.write(file, new byte[10]);
+        Files.write(gz, new byte[3]);
+        try {
+            PathResolver resolver = new PathResolver(new File(root.toString()), 60000, 100);
+            PathResolver.Entry entry = resolver.resolve("/app.js?v=1");
+            assertEquals(3, resolver.resolveSibling(entry, ".gz").length);
+            assertNull(resolver.resolveSibling(entry, ".br"));
+        } finally {
+            Files.delete(gz);
+            Files.delete(file);
+            Files.delete(root);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import virtualvoid.net.HttpHandler.Result;
+
+public class PreconditionsTest {
+    private static final String ETAG = "\"abc-10\"";
+    private static final long LAST_MODIFIED = 784111777000L;
+    private static final byte[] BODY = "0123456789".getBytes(HttpHandler.ASCII);
+
+    private static Result result() {
+        return new Result("200 OK") {
+            @Override
+            protected ByteBuffer getBodyBuffer() {
+                return ByteBuffer.wrap(BODY);
+            }
+            @Override
+            protected void writeBody(OutputStream os) throws IOException {
+                os.write(BODY);
+            }
+            @Override
+            protected String getETag() {
+                return ETAG;
+            }
+            @Override
+            protected long getLastModified() {
+                return LAST_MODIFIED;
+            }
+            @Override
+            protected void addHeaders() {
+                addResponseHeader("Content-Type", "text/plain");
+                addResponseHeader("ETag", ETAG);
+                addResponseHeader("Content-Length", Integer.toString(BODY.length));
+            }
+        };
+    }
+    private static Result apply(String head) {
+        RequestParser parser = new RequestParser();
+        parser.parse(ByteBuffer.wrap(("GET / HTTP/1.1\r\n" + head + "\r\n").getBytes(HttpHandler.ASCII)));
+        return Preconditions.apply(parser.getRequest(), result());
+    }
+    private static String body(Result result) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result.writeBody(out);
+        return new String(out.toByteArray(), HttpHandler.ASCII);
+    }
+
+    @Test
+    public void testDates() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", Preconditions.formatDate(LAST_MODIFIED));
+        assertEquals(LAST_MODIFIED, Preconditions.parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(-1, Preconditions.parseDate("yesterday"));
+    }
+
+    @Test
+    public void testParseRanges() {
+        assertTrue(Arrays.equals(new long[] { 0, 99 }, Preconditions.parseRanges("bytes=0-99", 1000)));
+        assertTrue(Arrays.equals(new long[] { 900, 999 }, Preconditions.parseRanges("bytes=-100", 1000)));
+        assertTrue(Arrays.equals(new long[] { 500, 999 }, Preconditions.parseRanges("bytes=500-", 1000)));
+        assertTrue(Arrays.equals(new long[] { 990, 999 }, Preconditions.parseRanges("bytes=990-2000", 1000)));
+        // sorted and merged
+        assertTrue(Arrays.equals(new long[] { 0, 20, 50, 59 },
+            Preconditions.parseRanges("bytes=50-59, 10-20,0-9 ,5-15", 1000)));
+        // unsatisfiable
+        assertEquals(0, Preconditions.parseRanges("bytes=1000-", 1000).length);
+        assertEquals(0, Preconditions.parseRanges("bytes=-0", 1000).length);
+        // ignored
+        assertNull(Preconditions.parseRanges("items=0-1", 1000));
+        assertNull(Preconditions.parseRanges("bytes=5-1", 1000));
+        assertNull(Preconditions.parseRanges("bytes=a-b", 1000));
+        assertNull(Preconditions.parseRanges("bytes=+1-2", 1000));
+    }
+
+    @Test
+    public void testNotModified() {
+        assertEquals("304 Not Modified", apply("If-None-Match: \"x\", W/" + ETAG + "\r\n").getResultCode());
+        assertEquals("304 Not Modified", apply("If-None-Match: *\r\n").getResultCode());
+        assertEquals("200 OK", apply("If-None-Match: \"x\"\r\n").getResultCode());
+
+        assertEquals("304 Not Modified", apply("If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n").getResultCode());
+        assertEquals("200 OK", apply("If-Modified-Since: Sun, 06 Nov 1994 08:49:36 GMT\r\n").getResultCode());
+        // If-None-Match takes precedence
+        assertEquals("200 OK",
+            apply("If-None-Match: \"x\"\r\nIf-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n").getResultCode());
+
+        Result notModified = apply("If-None-Match: " + ETAG + "\r\n");
+        notModified.addHeaders();
+        assertEquals("ETag: " + ETAG + "\r\n", notModified.getHeaders());
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        Result partial = apply("Range: bytes=2-4\r\n");
+        assertEquals("206 Partial Content", partial.getResultCode());
+        assertEquals("234", body(partial));
+        partial.addHeaders();
+        assertEquals("bytes 2-4/10", Preconditions.headerValue(partial.getHeaders(), "Content-Range"));
+        assertEquals("3", Preconditions.headerValue(partial.getHeaders(), "Content-Length"));
+
+        Result multipart = apply("Range: bytes=0-0,-1\r\n");
+        multipart.addHeaders();
+        assertTrue(Preconditions.headerValue(multipart.getHeaders(), "Content-Type").startsWith("multipart/byteranges"));
+        String body = body(multipart);
+        assertTrue(body.contains("Content-Range: bytes 0-0/10\r\n\r\n0\r\n"));
+        assertTrue(body.contains("Content-Range: bytes 9-9/10\r\n\r\n9\r\n"));
+        assertEquals(Long.parseLong(Preconditions.headerValue(multipart.getHeaders(), "Content-Length")), body.length());
+
+        Result unsatisfiable = apply("Range: bytes=10-\r\n");
+        assertEquals("416 Range Not Satisfiable", unsatisfiable.getResultCode());
+
+        // If-Range must match, otherwise the whole body is sent
+        assertEquals("206 Partial Content", apply("Range: bytes=1-\r\nIf-Range: " + ETAG + "\r\n").getResultCode());
+        assertEquals("200 OK", apply("Range: bytes=1-\r\nIf-Range: \"old\"\r\n").getResultCode());
+        assertEquals("200 OK", apply("Range: bytes=1-\r\nIf-Range: W/" + ETAG + "\r\n").getResultCode());
+        assertEquals("206 Partial Content",
+            apply("Range: bytes=1-\r\nIf-Range: Sun, 06 Nov 1994 08:49:37 GMT\r\n").getResultCode());
+    }
+
+    @Test
+    public void testReadsFilePartsAhead() throws IOException {
+        final File file = File.createTempFile("ranges", ".txt");
+        try {
+            byte[] contents = new byte[100000];
+            for (int i = 0; i < contents.length; i++)
+                contents[i] = (byte) ('a' + i % 26);
+            Files.write(file.toPath(), contents);
+            Result result = new Result("200 OK") {
+                @Override
+                protected FileRegion getFileRegion() {
+                    return new FileRegion(file, 0, file.length());
+                }
+                @Override
+                protected void addHeaders() {
+                    addResponseHeader("Content-Type", "text/plain");
+                }
+            };
+            RequestParser parser = new RequestParser();
+            parser.parse(ByteBuffer.wrap("GET / HTTP/1.1\r\nRange: bytes=0-0,50000-\r\n\r\n".getBytes(HttpHandler.ASCII)));
+            Result multipart = Preconditions.apply(parser.getRequest(), result);
+
+            // the caller only gets the head of the first part, the file is read by another thread
+            BodySource source = multipart.getBodySource();
+            ByteBuffer target = ByteBuffer.allocate(200000);
+            int read = source.read(target);
+            assertTrue(read > 0);
+            assertTrue(new String(target.array(), 0, read, HttpHandler.ASCII).endsWith("Content-Range: bytes 0-0/100000\r\n\r\n"));
+            source.close();
+
+            source = multipart.getBodySource();
+            String body = body(multipart);
+            assertEquals(source.getLength(), body.length());
+            source.close();
+            assertTrue(body.contains("Content-Range: bytes 0-0/100000\r\n\r\na\r\n"));
+            assertTrue(body.contains("Content-Range: bytes 50000-99999/100000\r\n\r\n"
+                + new String(contents, 50000, 50000, HttpHandler.ASCII) + "\r\n"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOtherResultsAreUntouched() {
+        RequestParser parser = new RequestParser();
+        parser.parse(ByteBuffer.wrap("GET / HTTP/1.1\r\nIf-None-Match: *\r\n\r\n".getBytes(HttpHandler.ASCII)));
+        Result notFound = new Result("404 Not Found") {
+            @Override
+            protected void writeBody(OutputStream os) {
+            }
+            @Override
+            protected void addHeaders() {
+            }
+        };
+        assertSame(notFound, Preconditions.apply(parser.getRequest(), notFound));
+        assertFalse(notFound.getHeaders().contains("ETag"));
+    }
+}
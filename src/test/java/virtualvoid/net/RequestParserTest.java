@@ -0,0 +1,120 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+public class RequestParserTest {
+    private static final String REQUEST =
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: localhost:8020\r\n" +
+        "User-Agent: test\r\n" +
+        "connection:  Upgrade, Keep-Alive \r\n" +
+        "If-None-Match: \"abc\"\r\n" +
+        "RANGE: bytes=0-99\r\n" +
+        "Accept-Encoding: deflate, GZIP;q=0.8\r\n" +
+        "Content-Length: 0\r\n" +
+        "\r\n";
+
+    private static ByteBuffer bytes(String str) {
+        return ByteBuffer.wrap(str.getBytes(HttpHandler.ASCII));
+    }
+    private static RequestParser.Status parse(String str) {
+        return new RequestParser().parse(bytes(str));
+    }
+
+    private static void checkRequest(Request request) {
+        assertEquals(Request.Method.GET, request.getMethod());
+        assertEquals("/index.html", request.getUri());
+        assertTrue(request.isVersion(1, 1));
+        assertEquals("localhost:8020", request.getHost());
+        assertTrue(request.hasConnectionKeepAlive());
+        assertFalse(request.hasConnectionClose());
+        assertEquals("\"abc\"", request.getIfNoneMatch());
+        assertEquals("bytes=0-99", request.getRange());
+        assertEquals(0, request.getContentLength());
+        assertTrue(request.accepts(Request.Encoding.GZIP));
+        assertFalse(request.accepts(Request.Encoding.BR));
+    }
+
+    @Test
+    public void testWellKnownHeaders() {
+        RequestParser parser = new RequestParser();
+        assertEquals(RequestParser.Status.COMPLETE, parser.parse(bytes(REQUEST)));
+        checkRequest(parser.getRequest());
+    }
+
+    @Test
+    public void testResumesAtEveryPosition() {
+        for (int split = 0; split < REQUEST.length(); split++) {
+            RequestParser parser = new RequestParser();
+            assertEquals(RequestParser.Status.INCOMPLETE, parser.parse(bytes(REQUEST.substring(0, split))));
+            assertEquals(RequestParser.Status.COMPLETE, parser.parse(bytes(REQUEST.substring(split))));
+            checkRequest(parser.getRequest());
+        }
+    }
+
+    @Test
+    public void testStopsAfterHeadAndIsReusable() {
+        RequestParser parser = new RequestParser();
+        ByteBuffer in = bytes("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.0\r\nConnection: close\r\n\r\n");
+
+        assertEquals(RequestParser.Status.COMPLETE, parser.parse(in));
+        assertEquals("/a", parser.getRequest().getUri());
+        assertFalse(parser.getRequest().hasConnectionClose());
+
+        parser.reset();
+        assertEquals(RequestParser.Status.COMPLETE, parser.parse(in));
+        assertEquals("/b", parser.getRequest().getUri());
+        assertTrue(parser.getRequest().hasConnectionClose());
+        assertNull(parser.getRequest().getHost());
+        assertFalse(in.hasRemaining());
+    }
+
+    private static int acceptedEncodings(String acceptEncoding) {
+        RequestParser parser = new RequestParser();
+        parser.parse(bytes("GET / HTTP/1.1\r\nAccept-Encoding: " + acceptEncoding + "\r\n\r\n"));
+        return parser.getRequest().getAcceptedEncodings();
+    }
+    @Test
+    public void testAcceptEncoding() {
+        int gzip = Request.Encoding.GZIP.bit();
+        int br = Request.Encoding.BR.bit();
+        assertEquals(gzip | br, acceptedEncodings("gzip, deflate, br"));
+        assertEquals(br, acceptedEncodings("br;q=1.0,gzip;q=0"));
+        assertEquals(gzip, acceptedEncodings("gzip ; q=0.001, br; q=0.000"));
+        assertEquals(0, acceptedEncodings("identity, xgzip, gzipx"));
+        assertEquals(0, acceptedEncodings(""));
+        assertTrue((acceptedEncodings("*") & (gzip | br)) == (gzip | br));
+    }
+
+    @Test
+    public void testMethods() {
+        RequestParser parser = new RequestParser();
+        parser.parse(bytes("DELETE / HTTP/1.1\r\n\r\n"));
+        assertEquals(Request.Method.DELETE, parser.getRequest().getMethod());
+
+        parser.reset();
+        parser.parse(bytes("PATCH / HTTP/1.1\r\n\r\n"));
+        assertEquals(Request.Method.OTHER, parser.getRequest().getMethod());
+    }
+
+    @Test
+    public void testInvalidRequests() {
+        assertEquals(RequestParser.Status.BAD_REQUEST, parse("GET  HTTP/1.1\r\n\r\n"));
+        assertEquals(RequestParser.Status.BAD_REQUEST, parse("GET / HTTP/1.x\r\n\r\n"));
+        assertEquals(RequestParser.Status.BAD_REQUEST, parse("G(T / HTTP/1.1\r\n\r\n"));
+        assertEquals(RequestParser.Status.BAD_REQUEST, parse("GET / HTTP/1.1\r\nFolded: a\r\n b\r\n\r\n"));
+        assertEquals(RequestParser.Status.BAD_REQUEST, parse("GET / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n"));
+
+        StringBuilder huge = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (huge.length() <= RequestParser.MAX_HEAD_SIZE)
+            huge.append("X-Filler: 0123456789\r\n");
+        assertEquals(RequestParser.Status.TOO_LARGE, parse(huge.toString()));
+    }
+}
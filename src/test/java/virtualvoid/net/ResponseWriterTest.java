@@ -0,0 +1,76 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class ResponseWriterTest {
+    private static final byte[] HEAD = "HTTP/1.1 200 OK\r\n\r\n".getBytes(HttpHandler.ASCII);
+
+    private static File file(int length) throws IOException {
+        File file = File.createTempFile("body", ".txt");
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) 'x');
+        Files.write(file.toPath(), content);
+        return file;
+    }
+    private static HttpHandler.Response response(final File file) {
+        HttpHandler.Result body = new HttpHandler.Result("200 OK") {
+            @Override
+            protected void addHeaders() {
+            }
+            @Override
+            protected FileRegion getFileRegion() {
+                return new FileRegion(file, 0, file.length());
+            }
+        };
+        return new HttpHandler.Response(ByteBuffer.wrap(HEAD), body, true);
+    }
+    private static void assertWritten(CountingChannel channel, File file) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(HEAD);
+        expected.write(Files.readAllBytes(file.toPath()));
+        assertTrue(Arrays.equals(expected.toByteArray(), channel.written.toByteArray()));
+    }
+
+    @Test
+    public void testGathersSmallFilesWithTheirHead() throws IOException {
+        File file = file(Settings.gatherFileSize / 2);
+        try {
+            CountingChannel channel = new CountingChannel(Integer.MAX_VALUE);
+            ResponseWriter writer = new ResponseWriter(channel, new ByteArrayOutputStream());
+            assertTrue(writer.add(response(file)));
+            assertEquals(0, channel.writes);
+            writer.flush();
+            assertEquals(1, channel.writes);
+            assertWritten(channel, file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTransfersLargeFiles() throws IOException {
+        File file = file(Settings.gatherFileSize + 1);
+        try {
+            CountingChannel channel = new CountingChannel(Integer.MAX_VALUE);
+            ResponseWriter writer = new ResponseWriter(channel, new ByteArrayOutputStream());
+            assertTrue(writer.add(response(file)));
+            writer.flush();
+            // the head leaves on its own, then the file is transferred after it
+            assertEquals(Long.valueOf(HEAD.length), channel.sizes.get(0));
+            assertTrue(channel.writes > 1);
+            assertWritten(channel, file);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import virtualvoid.net.HttpHandler.Response;
+
+public class RouterTest {
+    /**
+     * Answers with its name and the URI it got.
+     */
+    private static HttpHandler named(final String name) {
+        return new HttpHandler() {
+            @Override
+            protected Result serve(String uri) {
+                return new TextResult(name + " " + uri);
+            }
+        };
+    }
+    private static Response respond(Router router, String requestLine) {
+        RequestParser parser = new RequestParser();
+        parser.parse(ByteBuffer.wrap((requestLine + " HTTP/1.1\r\n\r\n").getBytes(HttpHandler.ASCII)));
+        return router.respond(parser.getRequest());
+    }
+    private static String status(Response response) {
+        String head = new String(response.head.array(), HttpHandler.ASCII);
+        return head.substring("HTTP/1.1 ".length(), head.indexOf("\r\n"));
+    }
+    private static String body(Response response) {
+        ByteBuffer body = response.body.getBodyBuffer();
+        return new String(body.array(), body.position(), body.remaining(), HttpHandler.ASCII);
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        Router router = new Router()
+            .route("/", named("site"))
+            .route("/api", named("api"))
+            .route("/api/v2/", named("v2"));
+
+        assertEquals("site /", body(respond(router, "GET /")));
+        assertEquals("site /apis", body(respond(router, "GET /apis")));
+        assertEquals("api /api", body(respond(router, "GET /api")));
+        assertEquals("api /api?x=1", body(respond(router, "GET /api?x=1")));
+        assertEquals("api /api/users", body(respond(router, "GET /api/users")));
+        assertEquals("api /api/v2", body(respond(router, "GET /api/v2")));
+        assertEquals("v2 /api/v2/users", body(respond(router, "GET /api/v2/users")));
+        assertEquals("api http://localhost/api/x", body(respond(router, "GET http://localhost/api/x")));
+    }
+
+    @Test
+    public void testUnroutedRequests() {
+        Router router = new Router()
+            .route("/_health", new HealthHandler(), null, Request.Method.HEAD);
+
+        assertEquals("404 Not Found", status(respond(router, "GET /index.html")));
+        assertEquals("404 Not Found", status(respond(router, "HEAD /_healthy")));
+        assertEquals("200 OK", status(respond(router, "HEAD /_health")));
+        Response notAllowed = respond(router, "GET /_health");
+        assertEquals("405 Method Not Allowed", status(notAllowed));
+        assertTrue(new String(notAllowed.head.array(), HttpHandler.ASCII).contains("Allow: HEAD\r\n"));
+        // metrics are only answered where they are routed to
+        assertEquals("404 Not Found", status(respond(router, "GET /_stats")));
+        router.route("/_stats", new StatsHandler());
+        Response stats = respond(router, "GET /_stats");
+        assertEquals("200 OK", status(stats));
+        assertTrue(body(stats).contains("accessLogDropped "));
+    }
+
+    @Test
+    public void testServesUris() {
+        Router router = new Router()
+            .route("/api", named("api"))
+            .route("/_health", new HealthHandler(), null, Request.Method.HEAD);
+
+        HttpHandler.Result result = router.serve("/api/users?x=1");
+        ByteBuffer body = result.getBodyBuffer();
+        assertEquals("api /api/users?x=1", new String(body.array(), body.position(), body.remaining(), HttpHandler.ASCII));
+        assertEquals("404 Not Found", router.serve("/index.html").getResultCode());
+        assertEquals("405 Method Not Allowed", router.serve("/_health").getResultCode());
+    }
+
+    @Test
+    public void testRunsRoutesOnTheirExecutor() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Router router = new Router()
+            .route("/", named("fast"))
+            .route("/slow", named("slow"), new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    tasks.add(task);
+                }
+            });
+
+        Response response = respond(router, "GET /slow/report");
+        assertNotNull(response.pending);
+        assertNull(response.pending.poll());
+        assertEquals("fast /", body(respond(router, "GET /")));
+
+        final AtomicInteger done = new AtomicInteger();
+        response.pending.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        });
+        // the request was copied, the parser it came from is gone by now
+        tasks.get(0).run();
+        assertEquals(1, done.get());
+        assertEquals("slow /slow/report", body(response.pending.poll()));
+    }
+
+    @Test
+    public void testRejectedRequests() {
+        Router router = new Router()
+            .route("/", named("site"), new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    throw new RejectedExecutionException();
+                }
+            });
+        Response response = respond(router, "GET /");
+        assertNull(response.pending);
+        String head = new String(response.head.array(), HttpHandler.ASCII);
+        assertTrue(head.startsWith("HTTP/1.1 503"));
+        assertTrue(head.contains("Retry-After: " + Settings.retryAfter + "\r\n"));
+    }
+}
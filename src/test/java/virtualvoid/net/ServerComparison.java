@@ -0,0 +1,171 @@
+package virtualvoid.net;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares server implementations under the same load: a number of idle keep-alive connections
+ * is opened and held while a number of clients send requests over their own keep-alive
+ * connections as fast as they can. This shows how well a server copes with many open but
+ * mostly idle connections, which is where thread-per-connection models used to break down.
+ *
+ * Each server is started in its own JVM. Run with
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dserver.main=virtualvoid.net.ServerComparison \
+ *       -Dexec.args="[idle connections] [clients] [seconds] [server classes...]"
+ *
+ * By default 1000 idle connections, 32 clients and 10 seconds are used to compare
+ * VirtualThreadWebServer with NonBlockingWebServer.
+ */
+public class ServerComparison {
+    private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(HttpHandler.ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String[] servers = args.length > 3
+            ? Arrays.copyOfRange(args, 3, args.length)
+            : new String[] { "VirtualThreadWebServer", "NonBlockingWebServer" };
+
+        System.out.printf("%d idle connections, %d clients, %d seconds%n", idle, clients, seconds);
+        for (String server: servers)
+            compare(server.contains(".") ? server : "virtualvoid.net." + server, idle, clients, seconds);
+    }
+
+    private static void compare(String server, int idle, int clients, final int seconds) throws Exception {
+        Process process = startServer(server);
+        try {
+            InetSocketAddress address = new InetSocketAddress("localhost", ((InetSocketAddress) Settings.endpoint).getPort());
+            awaitStart(address);
+
+            List<Connection> idleConnections = new ArrayList<Connection>();
+            for (int i = 0; i < idle; i++) {
+                Connection connection = new Connection(address);
+                request(connection);
+                idleConnections.add(connection);
+            }
+
+            final AtomicLong requests = new AtomicLong();
+            final AtomicLong nanos = new AtomicLong();
+            final AtomicLong errors = new AtomicLong();
+            final long end = System.currentTimeMillis() + seconds * 1000L;
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < clients; i++) {
+                final InetSocketAddress target = address;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Connection connection = new Connection(target);
+                            while (System.currentTimeMillis() < end) {
+                                long start = System.nanoTime();
+                                request(connection);
+                                nanos.addAndGet(System.nanoTime() - start);
+                                requests.incrementAndGet();
+                            }
+                            connection.socket.close();
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread: threads)
+                thread.join();
+
+            int alive = 0;
+            for (Connection connection: idleConnections)
+                try {
+                    request(connection);
+                    alive++;
+                    connection.socket.close();
+                } catch (IOException e) {
+                    // the server dropped it
+                }
+
+            long count = requests.get();
+            System.out.printf("%-40s %8.0f req/s  avg %6.3f ms  %d client errors  %d/%d idle connections still served%n",
+                server, count / (double) seconds, count > 0 ? nanos.get() / 1e6 / count : 0.0,
+                errors.get(), alive, idle);
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    private static Process startServer(String server) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        // the servers only need the main classes, not what maven runs us with
+        String classpath = new File(HttpHandler.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        File nowhere = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+        return new ProcessBuilder(java, "-cp", classpath, server)
+            .redirectOutput(nowhere)
+            .redirectError(nowhere)
+            .start();
+    }
+    private static void awaitStart(InetSocketAddress address) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(address.getAddress(), address.getPort()).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server didn't start");
+    }
+
+    /**
+     * A keep-alive connection to the server.
+     */
+    private static final class Connection {
+        final Socket socket;
+        final InputStream is;
+        final OutputStream os;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.connect(address);
+            is = new BufferedInputStream(socket.getInputStream());
+            os = socket.getOutputStream();
+        }
+    }
+
+    /**
+     * Sends a request and reads the response up to the end of its body.
+     */
+    private static void request(Connection connection) throws IOException {
+        connection.os.write(REQUEST);
+
+        InputStream is = connection.is;
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")) {
+            int b = is.read();
+            if (b < 0)
+                throw new IOException("Connection closed");
+            head.append((char) b);
+        }
+
+        String lower = head.toString().toLowerCase();
+        int index = lower.indexOf("content-length:");
+        long length = index < 0 ? 0 : Long.parseLong(lower.substring(index + 15, lower.indexOf('\r', index)).trim());
+        while (length > 0) {
+            long skipped = is.skip(length);
+            if (skipped <= 0 && is.read() < 0)
+                throw new IOException("Connection closed");
+            length -= Math.max(skipped, 1);
+        }
+    }
+}
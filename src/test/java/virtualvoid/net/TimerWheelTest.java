@@ -0,0 +1,114 @@
+package virtualvoid.net;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class TimerWheelTest {
+    private static final class Recorder extends TimerWheel.Timeout {
+        final List<Long> expired = new ArrayList<Long>();
+
+        @Override
+        protected void expire(long now) {
+            expired.add(now);
+        }
+    }
+
+    @Test
+    public void testExpiresOnlyWhenDue() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        Recorder timeout = new Recorder();
+        wheel.schedule(timeout, 25);
+
+        wheel.advance(20);
+        assertTrue(timeout.expired.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(30);
+        assertEquals(1, timeout.expired.size());
+        assertFalse(timeout.isScheduled());
+        assertEquals(0, wheel.size());
+
+        wheel.advance(100);
+        assertEquals(1, timeout.expired.size());
+    }
+
+    @Test
+    public void testCancel() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        Recorder timeout = new Recorder();
+        wheel.schedule(timeout, 25);
+        wheel.cancel(timeout);
+        wheel.cancel(timeout);
+
+        wheel.advance(100);
+        assertTrue(timeout.expired.isEmpty());
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.untilNextTick(100));
+    }
+
+    @Test
+    public void testReschedule() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        Recorder later = new Recorder();
+        Recorder earlier = new Recorder();
+        wheel.schedule(later, 25);
+        wheel.schedule(earlier, 55);
+
+        // pushed back repeatedly while time passes
+        for (long now = 10; now <= 60; now += 10) {
+            wheel.schedule(later, now + 25);
+            wheel.advance(now);
+        }
+        assertTrue(later.expired.isEmpty());
+        assertEquals(1, earlier.expired.size());
+
+        // brought forward
+        wheel.schedule(later, 65);
+        wheel.advance(70);
+        assertEquals(1, later.expired.size());
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneRevolution() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        Recorder timeout = new Recorder();
+        wheel.schedule(timeout, 205);
+
+        for (long now = 10; now <= 200; now += 10)
+            wheel.advance(now);
+        assertTrue(timeout.expired.isEmpty());
+
+        wheel.advance(210);
+        assertEquals(1, timeout.expired.size());
+    }
+
+    @Test
+    public void testLongPauses() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        Recorder pending = new Recorder();
+        wheel.schedule(first, 15);
+        wheel.schedule(second, 300);
+        wheel.schedule(pending, 1000);
+
+        wheel.advance(500);
+        assertEquals(1, first.expired.size());
+        assertEquals(1, second.expired.size());
+        assertTrue(pending.expired.isEmpty());
+
+        // a deadline already passed expires with the next tick
+        Recorder late = new Recorder();
+        wheel.schedule(late, 400);
+        wheel.advance(505);
+        assertTrue(late.expired.isEmpty());
+        wheel.advance(510);
+        assertEquals(1, late.expired.size());
+    }
+}